@@ -0,0 +1,112 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.drawing;
+
+import com.glavsoft.rfb.encoding.PixelFormat;
+import com.glavsoft.rfb.encoding.decoder.PayloadEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of a row of pixels into colors per pixel format: pixel format specialized converter
+ * compared to the generic conversion (bytes assembled with variable shifts, components scaled with division),
+ * which ColorDecoder used for all the formats before.
+ * Converters of vector backend (jdk.incubator.vector, 24/32 and 16 bit pixels) are compared to the scalar ones
+ * with backend=vector, which falls back to scalar converters when JVM has no jdk.incubator.vector module.
+ * Score multiplied by rowLength gives pixels per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorConverterBenchmark {
+
+    @Param({"24", "16", "8", "6", "3"})
+    public int colorDepth;
+
+    @Param({"0", "1"})
+    public int bigEndianFlag;
+
+    @Param({"16", "64", "1024", "4096"})
+    public int rowLength;
+
+    @Param({"scalar", "vector"})
+    public String backend;
+
+    private PixelFormat pixelFormat;
+    private ColorDecoder colorDecoder;
+    private byte[] bytes;
+    private int[] colors;
+    private int startShift;
+    private int shiftStep;
+
+    @Setup
+    public void setUp() {
+        pixelFormat = PayloadEncoder.pixelFormat(colorDepth);
+        pixelFormat.bigEndianFlag = (byte) bigEndianFlag;
+        colorDecoder = new ColorDecoder(pixelFormat, "vector".equals(backend));
+        bytes = new byte[rowLength * colorDecoder.bytesPerPixel];
+        new Random(1).nextBytes(bytes);
+        colors = new int[rowLength];
+        startShift = 0 == bigEndianFlag ? 0 : pixelFormat.bitsPerPixel - 8;
+        shiftStep = 0 == bigEndianFlag ? 8 : -8;
+    }
+
+    @Benchmark
+    public int[] converter() {
+        colorDecoder.pixelConverter.convertRow(bytes, 0, colors, 0, rowLength);
+        return colors;
+    }
+
+    @Benchmark
+    public int[] generic() {
+        final PixelFormat pf = pixelFormat;
+        final int bytesPerPixel = colorDecoder.bytesPerPixel;
+        for (int i = 0, offset = 0; i < rowLength; ++i) {
+            int shift = startShift;
+            int rawColor = (bytes[offset++] & 0xff) << shift;
+            for (int j = 1; j < bytesPerPixel; ++j) {
+                rawColor |= (bytes[offset++] & 0xff) << (shift += shiftStep);
+            }
+            colors[i] = 255 * (rawColor >> pf.redShift & pf.redMax) / pf.redMax << 16 |
+                    255 * (rawColor >> pf.greenShift & pf.greenMax) / pf.greenMax << 8 |
+                    255 * (rawColor >> pf.blueShift & pf.blueMax) / pf.blueMax;
+        }
+        return colors;
+    }
+}
@@ -0,0 +1,64 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.drawing;
+
+import com.glavsoft.rfb.encoding.PixelFormat;
+import com.glavsoft.rfb.encoding.decoder.FramebufferUpdateRectangle;
+import com.glavsoft.viewer.swing.JpegImageDecoder;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Renderer without any UI, for decoding data only (benchmarks and replays).
+ * Jpeg images are decoded the way the viewer does, right into the pixels array.
+ */
+public class HeadlessRenderer extends Renderer {
+    private final BufferedImage image;
+
+    public HeadlessRenderer(int width, int height, PixelFormat pixelFormat) {
+        init(Math.max(width, 1), Math.max(height, 1), pixelFormat);
+        image = JpegImageDecoder.createImage(pixels, this.width, this.height);
+        cursor = new SoftCursor(0, 0, 0, 0) {
+            @Override
+            protected void createNewCursorImage(int[] cursorPixels, int hotX, int hotY, int width, int height) {
+                // nop
+            }
+        };
+    }
+
+    @Override
+    public void drawJpegImage(byte[] bytes, int offset, int jpegBufferLength, FramebufferUpdateRectangle rect) {
+        // broken images are skipped as the viewer does
+        JpegImageDecoder.decode(bytes, offset, jpegBufferLength, image, rect.x, rect.y, rect.width, rect.height);
+    }
+
+    @Override
+    public int[] decodeJpegImage(byte[] bytes, int offset, int jpegBufferLength, int width, int height) {
+        return JpegImageDecoder.decode(bytes, offset, jpegBufferLength, width, height);
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+}
@@ -0,0 +1,127 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.drawing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expansion of packed palette tile (ZRLE packed palette, Tight palette filter) into colors:
+ * table driven PaletteExpander compared to the index by index extraction decoders used before.
+ * With palettes=same every tile has the same colors like text tiles of text heavy desktop,
+ * with palettes=changing the palette differs from tile to tile, so expander table is never prepared.
+ * Score multiplied by tileSize * tileSize gives pixels per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaletteExpansionBenchmark {
+    private static final int TILES = 16;
+
+    @Param({"1", "2", "4", "8"})
+    public int bitsPerIndex;
+
+    @Param({"16", "64"})
+    public int tileSize;
+
+    @Param({"same", "changing"})
+    public String palettes;
+
+    private byte[][] tiles;
+    private int[][] tilePalettes;
+    private int paletteSize;
+    private int[] colors;
+    private PaletteExpander expander;
+    private int tile;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(1);
+        paletteSize = 1 << bitsPerIndex;
+        final int rowBytes = PaletteExpander.rowBytes(tileSize, bitsPerIndex);
+        tiles = new byte[TILES][rowBytes * tileSize];
+        tilePalettes = new int[TILES][paletteSize];
+        for (int i = 0; i < TILES; ++i) {
+            random.nextBytes(tiles[i]);
+            for (int j = 0; j < paletteSize; ++j) {
+                tilePalettes[i][j] = "same".equals(palettes) ? j * 0x010101 : random.nextInt() & 0xffffff;
+            }
+        }
+        colors = new int[tileSize * tileSize];
+        expander = new PaletteExpander();
+    }
+
+    private int nextTile() {
+        return tile = (tile + 1) % TILES;
+    }
+
+    @Benchmark
+    public int[] expander() {
+        final int t = nextTile();
+        final byte[] bytes = tiles[t];
+        expander.setPalette(tilePalettes[t], paletteSize, bitsPerIndex);
+        for (int y = 0, offset = 0; y < tileSize; ++y) {
+            offset += expander.expandRow(bytes, offset, colors, y * tileSize, tileSize);
+        }
+        return colors;
+    }
+
+    @Benchmark
+    public int[] indexByIndex() {
+        final int t = nextTile();
+        final byte[] bytes = tiles[t];
+        final int[] palette = tilePalettes[t];
+        int packedOffset = 0;
+        int decodedOffset = 0;
+        for (int y = 0; y < tileSize; ++y) {
+            final int decodedRowEnd = decodedOffset + tileSize;
+            int byteProcessed = 0;
+            int bitsRemain = 0;
+            while (decodedOffset < decodedRowEnd) {
+                if (0 == bitsRemain) {
+                    byteProcessed = bytes[packedOffset++];
+                    bitsRemain = 8;
+                }
+                bitsRemain -= bitsPerIndex;
+                colors[decodedOffset++] = palette[byteProcessed >> bitsRemain & (1 << bitsPerIndex) - 1];
+            }
+        }
+        return colors;
+    }
+}
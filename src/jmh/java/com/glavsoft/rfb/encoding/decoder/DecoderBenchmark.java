@@ -0,0 +1,233 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.encoding.decoder;
+
+import com.glavsoft.drawing.HeadlessRenderer;
+import com.glavsoft.exceptions.TransportException;
+import com.glavsoft.rfb.encoding.PixelFormat;
+import com.glavsoft.transport.ChannelTransport;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoders throughput at headless renderer. Operation is decoding of one frame
+ * ({@link #WIDTH}x{@link #HEIGHT}, split into rectangles) pre-encoded by {@link PayloadEncoder}
+ * from {@link WorkloadGenerator} content. Frames are decoded in order and repeated, so zlib streams
+ * are continued as at real session; decoder is reset when frames start over.
+ *
+ * Secondary "pixels" result is decoded pixels per second. Run with gc profiler (-prof gc, the default
+ * for gradle jmh task) to get bytes allocated per operation (gc.alloc.rate.norm).
+ * Tight JPEG is benchmarked separately, for 24 bit color depth only, as servers use it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoderBenchmark {
+    public static final int WIDTH = 1024;
+    public static final int HEIGHT = 768;
+    public static final int FRAMES = 8;
+
+    /**
+     * Pre-encoded frames and decoding setup
+     */
+    public abstract static class Workload {
+        private byte[][] frames;
+        private final FrameChannel channel = new FrameChannel();
+        private ChannelTransport transport;
+        private HeadlessRenderer renderer;
+        private Decoder decoder;
+        private final FramebufferUpdateRectangle rect = new FramebufferUpdateRectangle();
+        private int nextFrame;
+
+        void init(PayloadEncoder.Encoding encoding, WorkloadGenerator.Content content, int colorDepth)
+                throws IOException {
+            init(encoding, content, colorDepth, createDecoder(encoding));
+        }
+
+        void init(PayloadEncoder.Encoding encoding, WorkloadGenerator.Content content, int colorDepth,
+                  Decoder decoder) throws IOException {
+            final PixelFormat pixelFormat = PayloadEncoder.pixelFormat(colorDepth);
+            init(new PayloadEncoder(encoding, pixelFormat), content, pixelFormat, decoder);
+        }
+
+        void init(PayloadEncoder encoder, WorkloadGenerator.Content content, PixelFormat pixelFormat,
+                  Decoder decoder) throws IOException {
+            final WorkloadGenerator generator = new WorkloadGenerator(content, WIDTH, HEIGHT);
+            frames = new byte[FRAMES][];
+            for (int i = 0; i < FRAMES; ++i) {
+                frames[i] = encoder.encodeFrame(generator.frame(i), WIDTH, HEIGHT);
+            }
+            transport = new ChannelTransport(channel, null);
+            renderer = new HeadlessRenderer(WIDTH, HEIGHT, pixelFormat);
+            this.decoder = decoder;
+            nextFrame = 0;
+        }
+
+        private static Decoder createDecoder(PayloadEncoder.Encoding encoding) {
+            switch (encoding.getType()) {
+                case RAW_ENCODING:
+                    return RawDecoder.getInstance();
+                case COPY_RECT:
+                    return new CopyRectDecoder();
+                case RRE:
+                    return new RREDecoder();
+                case CO_RRE:
+                    return new CoRREDecoder();
+                case HEXTILE:
+                    return new HextileDecoder();
+                case ZLIB:
+                    return new ZlibDecoder();
+                case ZRLE:
+                    return new ZRLEDecoder();
+                case TIGHT:
+                    return new TightDecoder();
+                default:
+                    throw new IllegalArgumentException("No decoder for " + encoding);
+            }
+        }
+
+        /**
+         * @return number of pixels decoded
+         */
+        long decodeNextFrame() throws TransportException {
+            if (frames.length == nextFrame) {
+                nextFrame = 0;
+                decoder.reset();
+            }
+            channel.frame = ByteBuffer.wrap(frames[nextFrame++]);
+            int numberOfRectangles = transport.readUInt16();
+            while (numberOfRectangles-- > 0) {
+                rect.fill(transport);
+                decoder.decode(transport, renderer, rect);
+            }
+            decoder.commit();
+            return (long) WIDTH * HEIGHT;
+        }
+
+        @TearDown
+        public void tearDown() {
+            transport.release();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DecoderWorkload extends Workload {
+        @Param({"RAW", "COPY_RECT", "RRE", "CO_RRE", "HEXTILE", "ZLIB", "ZRLE",
+                "TIGHT_FILL", "TIGHT_BASIC", "TIGHT_PALETTE", "TIGHT_GRADIENT", "TIGHT_MIXED"})
+        public PayloadEncoder.Encoding encoding;
+
+        @Param({"TEXT", "PHOTO", "UI", "VIDEO"})
+        public WorkloadGenerator.Content content;
+
+        @Param({"24", "16", "8"})
+        public int colorDepth;
+
+        @Setup
+        public void setUp() throws IOException {
+            init(encoding, content, colorDepth);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class JpegWorkload extends Workload {
+        @Param({"TEXT", "PHOTO", "UI", "VIDEO"})
+        public WorkloadGenerator.Content content;
+
+        @Setup
+        public void setUp() throws IOException {
+            init(PayloadEncoder.Encoding.TIGHT_JPEG, content, 24);
+        }
+    }
+
+    /**
+     * Counts decoded pixels, reported as pixels per second
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Pixels {
+        public long pixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pixels = 0;
+        }
+    }
+
+    @Benchmark
+    public void decode(DecoderWorkload workload, Pixels pixels) throws TransportException {
+        pixels.pixels += workload.decodeNextFrame();
+    }
+
+    @Benchmark
+    public void decodeTightJpeg(JpegWorkload workload, Pixels pixels) throws TransportException {
+        pixels.pixels += workload.decodeNextFrame();
+    }
+
+    /**
+     * Channel reading current frame bytes
+     */
+    private static class FrameChannel implements ReadableByteChannel {
+        ByteBuffer frame;
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if ( ! frame.hasRemaining()) return -1;
+            final int portion = Math.min(dst.remaining(), frame.remaining());
+            final int limit = frame.limit();
+            frame.limit(frame.position() + portion);
+            dst.put(frame);
+            frame.limit(limit);
+            return portion;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // nop
+        }
+    }
+}
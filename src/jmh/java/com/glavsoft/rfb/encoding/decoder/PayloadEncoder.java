@@ -0,0 +1,721 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.encoding.decoder;
+
+import com.glavsoft.drawing.ColorDecoder;
+import com.glavsoft.rfb.encoding.EncodingType;
+import com.glavsoft.rfb.encoding.PixelFormat;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Server side encoder for benchmarks: encodes frames into framebuffer update rectangles
+ * of the encoding and pixel format given, the way decoders expect them.
+ * Zlib streams (Zlib, ZRLE, Tight) continue from frame to frame, so frames must be decoded in order
+ * from the first one, with decoder reset before the first frame.
+ * Encoders are simple (not the best compression), but produce all the subencodings decoders support.
+ */
+public class PayloadEncoder {
+    public enum Encoding {
+        RAW(EncodingType.RAW_ENCODING),
+        COPY_RECT(EncodingType.COPY_RECT),
+        RRE(EncodingType.RRE),
+        CO_RRE(EncodingType.CO_RRE),
+        HEXTILE(EncodingType.HEXTILE),
+        ZLIB(EncodingType.ZLIB),
+        ZRLE(EncodingType.ZRLE),
+        TIGHT_FILL(EncodingType.TIGHT),
+        TIGHT_BASIC(EncodingType.TIGHT),
+        TIGHT_PALETTE(EncodingType.TIGHT),
+        TIGHT_GRADIENT(EncodingType.TIGHT),
+        TIGHT_JPEG(EncodingType.TIGHT),
+        /**
+         * Tight subencoding and zlib stream chosen per rectangle, as servers do: fill for solid rectangles,
+         * palette at streams 1 (two colors) and 2, full color basic and gradient at streams 0 and 3
+         */
+        TIGHT_MIXED(EncodingType.TIGHT);
+
+        private final EncodingType type;
+
+        Encoding(EncodingType type) {
+            this.type = type;
+        }
+
+        public EncodingType getType() {
+            return type;
+        }
+    }
+
+    /**
+     * Frames are split into rectangles up to this size by default, as servers do
+     */
+    public static final int RECT_WIDTH = 256;
+    public static final int RECT_HEIGHT = 128;
+
+    private static final int HEXTILE_RAW = 1;
+    private static final int HEXTILE_BACKGROUND_SPECIFIED = 2;
+    private static final int HEXTILE_FOREGROUND_SPECIFIED = 4;
+    private static final int HEXTILE_ANY_SUBRECTS = 8;
+    private static final int HEXTILE_SUBRECTS_COLOURED = 16;
+    private static final int HEXTILE_TILE_SIZE = 16;
+    private static final int ZRLE_TILE_SIZE = 64;
+    private static final int TIGHT_MIN_SIZE_TO_COMPRESS = 12;
+
+    private final Encoding encoding;
+    private final PixelFormat pixelFormat;
+    private final int bytesPerPixel;
+    private final int bytesPerCPixel;
+    private final int bytesPerPixelTight;
+    private final boolean isTightSpecific;
+    private final int rectWidth;
+    private final int rectHeight;
+    private final Deflater[] deflaters = new Deflater[4];
+    private final byte[] deflateBuffer = new byte[64 * 1024];
+    private int[] raw;
+    private int[] rgb;
+    private int frameWidth;
+    private int frameHeight;
+
+    public PayloadEncoder(Encoding encoding, PixelFormat pixelFormat) {
+        this(encoding, pixelFormat, RECT_WIDTH, RECT_HEIGHT);
+    }
+
+    /**
+     * @param rectWidth max width of rectangles frames are split into
+     * @param rectHeight max height of rectangles frames are split into
+     */
+    public PayloadEncoder(Encoding encoding, PixelFormat pixelFormat, int rectWidth, int rectHeight) {
+        this.encoding = encoding;
+        this.pixelFormat = pixelFormat;
+        // CoRRE rectangles are 255x255 at most
+        this.rectWidth = Encoding.CO_RRE == encoding ? Math.min(rectWidth, 255) : rectWidth;
+        this.rectHeight = Encoding.CO_RRE == encoding ? Math.min(rectHeight, 255) : rectHeight;
+        final ColorDecoder colorDecoder = new ColorDecoder(pixelFormat);
+        bytesPerPixel = colorDecoder.bytesPerPixel;
+        bytesPerCPixel = colorDecoder.bytesPerCPixel;
+        bytesPerPixelTight = colorDecoder.bytesPerPixelTight;
+        isTightSpecific = 4 == bytesPerPixel && 3 == bytesPerPixelTight;
+        for (int i = 0; i < deflaters.length; ++i) {
+            deflaters[i] = new Deflater();
+        }
+    }
+
+    /**
+     * Pixel format of color depth given, as the viewer requests it
+     */
+    public static PixelFormat pixelFormat(int colorDepth) {
+        switch (colorDepth) {
+            case 24:
+                return PixelFormat.create24bitColorDepthPixelFormat(0);
+            case 16:
+                return PixelFormat.create16bitColorDepthPixelFormat(0);
+            case 8:
+                return PixelFormat.create8bitColorDepthBGRPixelFormat(0);
+            case 6:
+                return PixelFormat.create6bitColorDepthPixelFormat(0);
+            case 3:
+                return PixelFormat.create3bitColorDepthPixelFormat(0);
+            default:
+                throw new IllegalArgumentException("Unsupported color depth: " + colorDepth);
+        }
+    }
+
+    /**
+     * Encode frame
+     * @param pixels frame pixels, 0x00rrggbb
+     * @return number of rectangles (U16) followed by the rectangles (header and data),
+     * that is framebuffer update message without message type and padding
+     */
+    public byte[] encodeFrame(int[] pixels, int width, int height) throws IOException {
+        rgb = pixels;
+        frameWidth = width;
+        frameHeight = height;
+        raw = new int[pixels.length];
+        for (int i = 0; i < pixels.length; ++i) {
+            raw[i] = toRawPixel(pixels[i]);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final int rectsCount = ((width + rectWidth - 1) / rectWidth) * ((height + rectHeight - 1) / rectHeight);
+        out.writeShort(rectsCount);
+        for (int y = 0; y < height; y += rectHeight) {
+            for (int x = 0; x < width; x += rectWidth) {
+                final int w = Math.min(rectWidth, width - x);
+                final int h = Math.min(rectHeight, height - y);
+                out.writeShort(x);
+                out.writeShort(y);
+                out.writeShort(w);
+                out.writeShort(h);
+                out.writeInt(encoding.getType().getId());
+                encodeRect(out, x, y, w, h);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void encodeRect(DataOutputStream out, int x, int y, int w, int h) throws IOException {
+        switch (encoding) {
+            case RAW:
+                for (int j = y; j < y + h; ++j) {
+                    for (int i = x; i < x + w; ++i) {
+                        writePixel(out, raw[j * frameWidth + i]);
+                    }
+                }
+                break;
+            case COPY_RECT:
+                // copy from half a rect below or above, as scrolling does
+                out.writeShort(x);
+                out.writeShort(Math.min(frameHeight - h, y >= rectHeight / 2 ? y - rectHeight / 2 : y + rectHeight / 2));
+                break;
+            case RRE:
+                encodeRre(out, x, y, w, h, 2);
+                break;
+            case CO_RRE:
+                encodeRre(out, x, y, w, h, 1);
+                break;
+            case HEXTILE:
+                encodeHextile(out, x, y, w, h);
+                break;
+            case ZLIB: {
+                final ByteArrayOutputStream data = new ByteArrayOutputStream();
+                for (int j = y; j < y + h; ++j) {
+                    for (int i = x; i < x + w; ++i) {
+                        writePixel(data, raw[j * frameWidth + i]);
+                    }
+                }
+                final byte[] zipped = deflate(deflaters[0], data.toByteArray());
+                out.writeInt(zipped.length);
+                out.write(zipped);
+                break;
+            }
+            case ZRLE:
+                encodeZrle(out, x, y, w, h);
+                break;
+            case TIGHT_FILL:
+                out.writeByte(0x80);
+                writeTightPixel(out, mostFrequent(x, y, w, h));
+                break;
+            case TIGHT_BASIC:
+                encodeTight(out, x, y, w, h, encoding, 0);
+                break;
+            case TIGHT_PALETTE:
+                encodeTight(out, x, y, w, h, encoding, 1);
+                break;
+            case TIGHT_GRADIENT:
+                encodeTight(out, x, y, w, h, encoding, 2);
+                break;
+            case TIGHT_JPEG:
+                encodeTightJpeg(out, x, y, w, h);
+                break;
+            case TIGHT_MIXED: {
+                final int colorsCount = countColors(x, y, w, h).size();
+                if (1 == colorsCount) {
+                    out.writeByte(0x80);
+                    writeTightPixel(out, raw[y * frameWidth + x]);
+                } else if (colorsCount <= 256) {
+                    encodeTight(out, x, y, w, h, Encoding.TIGHT_PALETTE, 2 == colorsCount ? 1 : 2);
+                } else if ((x / rectWidth + y / rectHeight) % 2 == 0) {
+                    encodeTight(out, x, y, w, h, Encoding.TIGHT_BASIC, 0);
+                } else {
+                    encodeTight(out, x, y, w, h, Encoding.TIGHT_GRADIENT, 3);
+                }
+                break;
+            }
+        }
+    }
+
+    private void encodeRre(DataOutputStream out, int x, int y, int w, int h, int coordinateBytes) throws IOException {
+        final int background = mostFrequent(x, y, w, h);
+        final ByteArrayOutputStream subrects = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(subrects);
+        final int count = encodeSubrects(data, x, y, w, h, background, true, coordinateBytes);
+        out.writeInt(count);
+        writePixel(out, background);
+        subrects.writeTo(out);
+    }
+
+    /**
+     * Cover pixels other than background with solid subrects, greedy: extend right then down
+     * @param colored write subrect color before its coordinates
+     * @param coordinateBytes 2 - RRE (x, y, w, h U16), 1 - CoRRE (x, y, w, h U8), 0 - Hextile (packed xy, wh)
+     * @return number of subrects
+     */
+    private int encodeSubrects(DataOutputStream out, int x, int y, int w, int h, int background,
+                               boolean colored, int coordinateBytes) throws IOException {
+        final boolean[] covered = new boolean[w * h];
+        int count = 0;
+        for (int j = 0; j < h; ++j) {
+            for (int i = 0; i < w; ++i) {
+                final int color = raw[(y + j) * frameWidth + x + i];
+                if (color == background || covered[j * w + i]) continue;
+                int sw = 1;
+                while (i + sw < w && ! covered[j * w + i + sw] && raw[(y + j) * frameWidth + x + i + sw] == color) {
+                    ++sw;
+                }
+                int sh = 1;
+                extend:
+                while (j + sh < h) {
+                    for (int k = 0; k < sw; ++k) {
+                        if (covered[(j + sh) * w + i + k] || raw[(y + j + sh) * frameWidth + x + i + k] != color) {
+                            break extend;
+                        }
+                    }
+                    ++sh;
+                }
+                for (int n = 0; n < sh; ++n) {
+                    for (int k = 0; k < sw; ++k) {
+                        covered[(j + n) * w + i + k] = true;
+                    }
+                }
+                if (colored) {
+                    writePixel(out, color);
+                }
+                if (2 == coordinateBytes) {
+                    out.writeShort(i);
+                    out.writeShort(j);
+                    out.writeShort(sw);
+                    out.writeShort(sh);
+                } else if (1 == coordinateBytes) {
+                    out.writeByte(i);
+                    out.writeByte(j);
+                    out.writeByte(sw);
+                    out.writeByte(sh);
+                } else {
+                    out.writeByte(i << 4 | j);
+                    out.writeByte(sw - 1 << 4 | sh - 1);
+                }
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private void encodeHextile(DataOutputStream out, int x, int y, int w, int h) throws IOException {
+        // decoder keeps background and foreground colors from tile to tile within rectangle
+        Integer background = null;
+        Integer foreground = null;
+        for (int ty = y; ty < y + h; ty += HEXTILE_TILE_SIZE) {
+            final int th = Math.min(HEXTILE_TILE_SIZE, y + h - ty);
+            for (int tx = x; tx < x + w; tx += HEXTILE_TILE_SIZE) {
+                final int tw = Math.min(HEXTILE_TILE_SIZE, x + w - tx);
+                final Map<Integer, Integer> colors = countColors(tx, ty, tw, th);
+                final int tileBackground = mostFrequent(colors);
+                int subencoding = 0;
+                if ( ! Integer.valueOf(tileBackground).equals(background)) {
+                    subencoding |= HEXTILE_BACKGROUND_SPECIFIED;
+                }
+                final ByteArrayOutputStream subrectsBytes = new ByteArrayOutputStream();
+                final DataOutputStream subrects = new DataOutputStream(subrectsBytes);
+                int tileForeground = 0;
+                int count = 0;
+                if (colors.size() > 1) {
+                    final boolean colored = colors.size() > 2;
+                    if (colored) {
+                        subencoding |= HEXTILE_SUBRECTS_COLOURED;
+                    } else {
+                        for (int color : colors.keySet()) {
+                            if (color != tileBackground) tileForeground = color;
+                        }
+                        if ( ! Integer.valueOf(tileForeground).equals(foreground)) {
+                            subencoding |= HEXTILE_FOREGROUND_SPECIFIED;
+                        }
+                    }
+                    subencoding |= HEXTILE_ANY_SUBRECTS;
+                    count = encodeSubrects(subrects, tx, ty, tw, th, tileBackground, colored, 0);
+                }
+                final int length = 1 + ((subencoding & HEXTILE_BACKGROUND_SPECIFIED) != 0 ? bytesPerPixel : 0) +
+                        ((subencoding & HEXTILE_FOREGROUND_SPECIFIED) != 0 ? bytesPerPixel : 0) +
+                        subrectsBytes.size();
+                if (count > 255 || length > 1 + tw * th * bytesPerPixel) {
+                    out.writeByte(HEXTILE_RAW);
+                    for (int j = ty; j < ty + th; ++j) {
+                        for (int i = tx; i < tx + tw; ++i) {
+                            writePixel(out, raw[j * frameWidth + i]);
+                        }
+                    }
+                    // colors are not specified after raw tile
+                    background = foreground = null;
+                    continue;
+                }
+                out.writeByte(subencoding);
+                if ((subencoding & HEXTILE_BACKGROUND_SPECIFIED) != 0) {
+                    writePixel(out, tileBackground);
+                    background = tileBackground;
+                }
+                if ((subencoding & HEXTILE_FOREGROUND_SPECIFIED) != 0) {
+                    writePixel(out, tileForeground);
+                    foreground = tileForeground;
+                }
+                if (count > 0) {
+                    out.writeByte(count);
+                    subrectsBytes.writeTo(out);
+                    if ((subencoding & HEXTILE_SUBRECTS_COLOURED) != 0) {
+                        // decoder uses the last subrect color as foreground
+                        final byte[] b = subrectsBytes.toByteArray();
+                        foreground = readPixel(b, b.length - 2 - bytesPerPixel);
+                    }
+                }
+            }
+        }
+    }
+
+    private void encodeZrle(DataOutputStream out, int x, int y, int w, int h) throws IOException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int ty = y; ty < y + h; ty += ZRLE_TILE_SIZE) {
+            final int th = Math.min(ZRLE_TILE_SIZE, y + h - ty);
+            for (int tx = x; tx < x + w; tx += ZRLE_TILE_SIZE) {
+                final int tw = Math.min(ZRLE_TILE_SIZE, x + w - tx);
+                encodeZrleTile(data, tx, ty, tw, th);
+            }
+        }
+        final byte[] zipped = deflate(deflaters[0], data.toByteArray());
+        out.writeInt(zipped.length);
+        out.write(zipped);
+    }
+
+    /**
+     * Encode tile with all the applicable subencodings and write out the shortest
+     */
+    private void encodeZrleTile(ByteArrayOutputStream out, int x, int y, int w, int h) throws IOException {
+        final Map<Integer, Integer> palette = new LinkedHashMap<Integer, Integer>();
+        for (int j = y; j < y + h && palette.size() <= 127; ++j) {
+            for (int i = x; i < x + w && palette.size() <= 127; ++i) {
+                final int color = raw[j * frameWidth + i];
+                if ( ! palette.containsKey(color)) palette.put(color, palette.size());
+            }
+        }
+        if (1 == palette.size()) {
+            out.write(1);
+            writeCPixel(out, raw[y * frameWidth + x]);
+            return;
+        }
+        ByteArrayOutputStream best = new ByteArrayOutputStream();
+        // raw
+        best.write(0);
+        for (int j = y; j < y + h; ++j) {
+            for (int i = x; i < x + w; ++i) {
+                writeCPixel(best, raw[j * frameWidth + i]);
+            }
+        }
+        // plain RLE
+        ByteArrayOutputStream candidate = new ByteArrayOutputStream();
+        candidate.write(128);
+        int position = 0;
+        while (position < w * h) {
+            final int color = raw[(y + position / w) * frameWidth + x + position % w];
+            final int run = runLength(x, y, w, h, position);
+            writeCPixel(candidate, color);
+            writeRunLength(candidate, run);
+            position += run;
+        }
+        if (candidate.size() < best.size()) best = candidate;
+        if (palette.size() <= 127) {
+            final int paletteSize = palette.size();
+            // packed palette
+            if (paletteSize <= 16) {
+                candidate = new ByteArrayOutputStream();
+                candidate.write(paletteSize);
+                writePalette(candidate, palette);
+                final int bits = paletteSize > 4 ? 4 : paletteSize > 2 ? 2 : 1;
+                for (int j = y; j < y + h; ++j) {
+                    int b = 0;
+                    int bitsUsed = 0;
+                    for (int i = x; i < x + w; ++i) {
+                        b = b << bits | palette.get(raw[j * frameWidth + i]);
+                        bitsUsed += bits;
+                        if (8 == bitsUsed) {
+                            candidate.write(b);
+                            b = bitsUsed = 0;
+                        }
+                    }
+                    if (bitsUsed > 0) {
+                        candidate.write(b << 8 - bitsUsed);
+                    }
+                }
+                if (candidate.size() < best.size()) best = candidate;
+            }
+            // palette RLE
+            candidate = new ByteArrayOutputStream();
+            candidate.write(128 + paletteSize);
+            writePalette(candidate, palette);
+            position = 0;
+            while (position < w * h) {
+                final int index = palette.get(raw[(y + position / w) * frameWidth + x + position % w]);
+                final int run = runLength(x, y, w, h, position);
+                if (1 == run) {
+                    candidate.write(index);
+                } else {
+                    candidate.write(index | 128);
+                    writeRunLength(candidate, run);
+                }
+                position += run;
+            }
+            if (candidate.size() < best.size()) best = candidate;
+        }
+        best.writeTo(out);
+    }
+
+    private void writePalette(ByteArrayOutputStream out, Map<Integer, Integer> palette) {
+        for (int color : palette.keySet()) {
+            writeCPixel(out, color);
+        }
+    }
+
+    private int runLength(int x, int y, int w, int h, int position) {
+        final int color = raw[(y + position / w) * frameWidth + x + position % w];
+        int run = 1;
+        while (position + run < w * h &&
+                raw[(y + (position + run) / w) * frameWidth + x + (position + run) % w] == color) {
+            ++run;
+        }
+        return run;
+    }
+
+    private static void writeRunLength(ByteArrayOutputStream out, int run) {
+        int rest = run - 1;
+        while (rest >= 255) {
+            out.write(255);
+            rest -= 255;
+        }
+        out.write(rest);
+    }
+
+    private void encodeTight(DataOutputStream out, int x, int y, int w, int h,
+                             Encoding filter, int streamId) throws IOException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        switch (filter) {
+            case TIGHT_PALETTE: {
+                final int[] colors = reduceColors(x, y, w, h, 256);
+                final Map<Integer, Integer> palette = new LinkedHashMap<Integer, Integer>();
+                for (int color : colors) {
+                    if ( ! palette.containsKey(color)) palette.put(color, palette.size());
+                }
+                out.writeByte(streamId << 4 | 0x40);
+                out.writeByte(1); // palette filter
+                out.writeByte(palette.size() - 1);
+                for (int color : palette.keySet()) {
+                    writeTightPixel(out, color);
+                }
+                if (2 == palette.size()) {
+                    for (int j = 0; j < h; ++j) {
+                        int b = 0;
+                        int bitsUsed = 0;
+                        for (int i = 0; i < w; ++i) {
+                            b = b << 1 | palette.get(colors[j * w + i]);
+                            if (8 == ++bitsUsed) {
+                                data.write(b);
+                                b = bitsUsed = 0;
+                            }
+                        }
+                        if (bitsUsed > 0) {
+                            data.write(b << 8 - bitsUsed);
+                        }
+                    }
+                } else {
+                    for (int color : colors) {
+                        data.write(palette.get(color));
+                    }
+                }
+                break;
+            }
+            case TIGHT_GRADIENT: {
+                out.writeByte(streamId << 4 | 0x40);
+                out.writeByte(2); // gradient filter
+                final int[] max = {pixelFormat.redMax, pixelFormat.greenMax, pixelFormat.blueMax};
+                final int[] shift = {pixelFormat.redShift, pixelFormat.greenShift, pixelFormat.blueShift};
+                for (int j = 0; j < h; ++j) {
+                    for (int i = 0; i < w; ++i) {
+                        int difference = 0;
+                        for (int c = 0; c < 3; ++c) {
+                            final int value = component(x + i, y + j, shift[c], max[c]);
+                            final int up = j > 0 ? component(x + i, y + j - 1, shift[c], max[c]) : 0;
+                            final int left = i > 0 ? component(x + i - 1, y + j, shift[c], max[c]) : 0;
+                            final int diagonal = i > 0 && j > 0 ? component(x + i - 1, y + j - 1, shift[c], max[c]) : 0;
+                            int predicted = up + left - diagonal;
+                            predicted = predicted < 0 ? 0 : predicted > max[c] ? max[c] : predicted;
+                            difference |= (value - predicted & max[c]) << shift[c];
+                        }
+                        writeTightPixel(data, difference);
+                    }
+                }
+                break;
+            }
+            default:
+                out.writeByte(streamId << 4);
+                for (int j = y; j < y + h; ++j) {
+                    for (int i = x; i < x + w; ++i) {
+                        writeTightPixel(data, raw[j * frameWidth + i]);
+                    }
+                }
+        }
+        if (data.size() < TIGHT_MIN_SIZE_TO_COMPRESS) {
+            data.writeTo(out);
+        } else {
+            final byte[] zipped = deflate(deflaters[streamId], data.toByteArray());
+            writeCompactLength(out, zipped.length);
+            out.write(zipped);
+        }
+    }
+
+    private int component(int x, int y, int shift, int max) {
+        return raw[y * frameWidth + x] >> shift & max;
+    }
+
+    /**
+     * Reduce rectangle colors to @code{maxColors} at most, dropping color components least significant bits
+     * @return rectangle raw pixels
+     */
+    private int[] reduceColors(int x, int y, int w, int h, int maxColors) {
+        final int[] colors = new int[w * h];
+        for (int dropBits = 0; ; ++dropBits) {
+            final Map<Integer, Boolean> distinct = new HashMap<Integer, Boolean>();
+            for (int j = 0; j < h; ++j) {
+                for (int i = 0; i < w; ++i) {
+                    final int color = reduce(raw[(y + j) * frameWidth + x + i], dropBits);
+                    colors[j * w + i] = color;
+                    distinct.put(color, Boolean.TRUE);
+                }
+            }
+            if (distinct.size() <= maxColors) return colors;
+        }
+    }
+
+    private int reduce(int rawPixel, int dropBits) {
+        return reduce(rawPixel, pixelFormat.redShift, pixelFormat.redMax, dropBits) |
+                reduce(rawPixel, pixelFormat.greenShift, pixelFormat.greenMax, dropBits) |
+                reduce(rawPixel, pixelFormat.blueShift, pixelFormat.blueMax, dropBits);
+    }
+
+    private static int reduce(int rawPixel, int shift, int max, int dropBits) {
+        return (rawPixel >> shift & max) >> dropBits << dropBits << shift;
+    }
+
+    private void encodeTightJpeg(DataOutputStream out, int x, int y, int w, int h) throws IOException {
+        final BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, w, h, rgb, y * frameWidth + x, frameWidth);
+        final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", jpeg);
+        out.writeByte(0x90);
+        writeCompactLength(out, jpeg.size());
+        jpeg.writeTo(out);
+    }
+
+    private static void writeCompactLength(DataOutputStream out, int length) throws IOException {
+        if (length < 0x80) {
+            out.writeByte(length);
+        } else if (length < 0x4000) {
+            out.writeByte(length & 0x7f | 0x80);
+            out.writeByte(length >> 7);
+        } else {
+            out.writeByte(length & 0x7f | 0x80);
+            out.writeByte(length >> 7 & 0x7f | 0x80);
+            out.writeByte(length >> 14);
+        }
+    }
+
+    private byte[] deflate(Deflater deflater, byte[] data) {
+        final ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        deflater.setInput(data);
+        int length;
+        do {
+            length = deflater.deflate(deflateBuffer, 0, deflateBuffer.length, Deflater.SYNC_FLUSH);
+            zipped.write(deflateBuffer, 0, length);
+        } while (length == deflateBuffer.length || ! deflater.needsInput());
+        return zipped.toByteArray();
+    }
+
+    private int toRawPixel(int color) {
+        return ((color >> 16 & 0xff) * pixelFormat.redMax + 127) / 255 << pixelFormat.redShift |
+                ((color >> 8 & 0xff) * pixelFormat.greenMax + 127) / 255 << pixelFormat.greenShift |
+                ((color & 0xff) * pixelFormat.blueMax + 127) / 255 << pixelFormat.blueShift;
+    }
+
+    private void writePixel(OutputStream out, int pixel) throws IOException {
+        for (int i = 0; i < bytesPerPixel; ++i) {
+            out.write(pixel >> 8 * i);
+        }
+    }
+
+    private int readPixel(byte[] bytes, int offset) {
+        int pixel = 0;
+        for (int i = 0; i < bytesPerPixel; ++i) {
+            pixel |= (bytes[offset + i] & 0xff) << 8 * i;
+        }
+        return pixel;
+    }
+
+    private void writeCPixel(ByteArrayOutputStream out, int pixel) {
+        for (int i = 0; i < bytesPerCPixel; ++i) {
+            out.write(pixel >> 8 * i);
+        }
+    }
+
+    private void writeTightPixel(OutputStream out, int pixel) throws IOException {
+        if (isTightSpecific) {
+            out.write(pixel >> 16);
+            out.write(pixel >> 8);
+            out.write(pixel);
+        } else {
+            writePixel(out, pixel);
+        }
+    }
+
+    private int mostFrequent(int x, int y, int w, int h) {
+        return mostFrequent(countColors(x, y, w, h));
+    }
+
+    private Map<Integer, Integer> countColors(int x, int y, int w, int h) {
+        final Map<Integer, Integer> counts = new LinkedHashMap<Integer, Integer>();
+        for (int j = y; j < y + h; ++j) {
+            for (int i = x; i < x + w; ++i) {
+                final int color = raw[j * frameWidth + i];
+                final Integer count = counts.get(color);
+                counts.put(color, null == count ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    private static int mostFrequent(Map<Integer, Integer> counts) {
+        int best = 0;
+        int bestCount = -1;
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > bestCount) {
+                best = entry.getKey();
+                bestCount = entry.getValue();
+            }
+        }
+        return best;
+    }
+}
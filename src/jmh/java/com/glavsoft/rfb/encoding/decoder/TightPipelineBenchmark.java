@@ -0,0 +1,75 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.encoding.decoder;
+
+import com.glavsoft.exceptions.TransportException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tight decoding with zlib streams inflated and jpeg images decoded at worker threads (pipelined)
+ * compared to decoding at receiver thread. Streams are inflated in parallel when server uses several
+ * of them in the update (see {@link PayloadEncoder.Encoding#TIGHT_MIXED}), jpeg images are decoded in parallel. See {@link DecoderBenchmark} for results meaning.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TightPipelineBenchmark {
+
+    @State(Scope.Thread)
+    public static class PipelineWorkload extends DecoderBenchmark.Workload {
+        @Param({"false", "true"})
+        public boolean pipelined;
+
+        @Param({"TIGHT_BASIC", "TIGHT_MIXED", "TIGHT_JPEG"})
+        public PayloadEncoder.Encoding encoding;
+
+        @Param({"TEXT", "PHOTO", "UI", "VIDEO"})
+        public WorkloadGenerator.Content content;
+
+        @Setup
+        public void setUp() throws IOException {
+            init(encoding, content, 24, new TightDecoder(pipelined));
+        }
+    }
+
+    @Benchmark
+    public void decode(PipelineWorkload workload, DecoderBenchmark.Pixels pixels) throws TransportException {
+        pixels.pixels += workload.decodeNextFrame();
+    }
+}
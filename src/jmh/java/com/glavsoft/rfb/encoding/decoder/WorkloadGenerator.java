@@ -0,0 +1,216 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.encoding.decoder;
+
+/**
+ * Generates frames of representative screen content as 0x00rrggbb pixels, for encoding
+ * with {@link PayloadEncoder}. Content is deterministic, consecutive frames differ the way
+ * the content usually changes: text scrolls, photo pans, ui widgets change, video changes everywhere.
+ */
+public class WorkloadGenerator {
+    public enum Content {
+        /** Two colored text with some syntax highlighted lines on solid background */
+        TEXT,
+        /** Smooth colors with noise, many colors per tile */
+        PHOTO,
+        /** Solid color panels, buttons and labels */
+        UI,
+        /** Noisy moving picture, each frame differs everywhere */
+        VIDEO
+    }
+
+    private static final int GLYPH_WIDTH = 8;
+    private static final int LINE_HEIGHT = 16;
+    private static final int[] TEXT_COLORS = {0x000000, 0x000080, 0x008000, 0x800000};
+
+    private final Content content;
+    private final int width;
+    private final int height;
+
+    public WorkloadGenerator(Content content, int width, int height) {
+        this.content = content;
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param index frame index
+     * @return frame pixels, row by row
+     */
+    public int[] frame(int index) {
+        final int[] pixels = new int[width * height];
+        switch (content) {
+            case TEXT:
+                fill(pixels, 0, 0, width, height, 0xffffff);
+                drawText(pixels, 0, 0, width, height, index);
+                break;
+            case PHOTO:
+                drawPicture(pixels, index * 8, 0, 0);
+                break;
+            case UI:
+                drawUi(pixels, index);
+                break;
+            case VIDEO:
+                drawPicture(pixels, index * 3, index * 2, index + 1);
+                drawBall(pixels, (index * 37) % width, height / 2 + (index * 23) % (height / 2) - height / 4,
+                        Math.min(width, height) / 8);
+                break;
+        }
+        return pixels;
+    }
+
+    private void fill(int[] pixels, int x, int y, int w, int h, int color) {
+        final int maxX = Math.min(width, x + w);
+        final int maxY = Math.min(height, y + h);
+        for (int j = Math.max(0, y); j < maxY; ++j) {
+            for (int i = Math.max(0, x); i < maxX; ++i) {
+                pixels[j * width + i] = color;
+            }
+        }
+    }
+
+    /**
+     * Lines of pseudo random glyphs, first line shown is @code{firstLine}
+     */
+    private void drawText(int[] pixels, int x, int y, int w, int h, int firstLine) {
+        for (int row = 0; row * LINE_HEIGHT < h; ++row) {
+            final int line = firstLine + row;
+            final int lineLength = hash(line, 0, 0) % (w / GLYPH_WIDTH + 1);
+            final int color = hash(line, 1, 0) % 4 == 0 ? TEXT_COLORS[1 + hash(line, 2, 0) % 3] : TEXT_COLORS[0];
+            final int indent = hash(line, 3, 0) % 4 * 2;
+            for (int column = indent; column < lineLength; ++column) {
+                final int glyph = hash(line, column, 4) % 96;
+                if (glyph < 16) continue; // space
+                drawGlyph(pixels, x + column * GLYPH_WIDTH, y + row * LINE_HEIGHT, x + w, y + h, glyph, color);
+            }
+        }
+    }
+
+    private void drawGlyph(int[] pixels, int x, int y, int maxX, int maxY, int glyph, int color) {
+        // 5x9 glyph at 8x16 cell
+        for (int j = 0; j < 9; ++j) {
+            final int bits = hash(glyph, j, 5);
+            for (int i = 0; i < 5; ++i) {
+                if ((bits >> i & 3) == 0) continue;
+                final int px = x + 1 + i;
+                final int py = y + 4 + j;
+                if (px < Math.min(maxX, width) && py < Math.min(maxY, height)) {
+                    pixels[py * width + px] = color;
+                }
+            }
+        }
+    }
+
+    /**
+     * Smooth color waves with noise, shifted by @code{dx, dy}, noise seed 0 means the same noise for all frames
+     */
+    private void drawPicture(int[] pixels, int dx, int dy, int noiseSeed) {
+        for (int y = 0; y < height; ++y) {
+            final double vy = (y + dy) / 53.0;
+            for (int x = 0; x < width; ++x) {
+                final double vx = (x + dx) / 37.0;
+                final int noise = hash(x + dx, y + dy, noiseSeed) % 25 - 12;
+                final int r = component(128 + 100 * Math.sin(vx) * Math.cos(vy) + noise);
+                final int g = component(128 + 90 * Math.sin(vx * 0.7 + vy * 1.3) + noise);
+                final int b = component(110 + 80 * Math.cos(vy * 0.9 - vx * 0.4) + noise);
+                pixels[y * width + x] = r << 16 | g << 8 | b;
+            }
+        }
+    }
+
+    private void drawBall(int[] pixels, int cx, int cy, int radius) {
+        for (int y = Math.max(0, cy - radius); y < Math.min(height, cy + radius); ++y) {
+            for (int x = Math.max(0, cx - radius); x < Math.min(width, cx + radius); ++x) {
+                final int d2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                if (d2 < radius * radius) {
+                    final int shade = component(255 - 160.0 * d2 / (radius * radius));
+                    pixels[y * width + x] = shade << 16 | shade / 2 << 8;
+                }
+            }
+        }
+    }
+
+    private void drawUi(int[] pixels, int index) {
+        fill(pixels, 0, 0, width, height, 0x3a6ea5); // desktop
+        final int wx = width / 16;
+        final int wy = height / 16;
+        final int ww = width - 2 * wx;
+        final int wh = height - 2 * wy;
+        fill(pixels, wx - 1, wy - 1, ww + 2, wh + 2, 0x404040); // window border
+        fill(pixels, wx, wy, ww, wh, 0xd4d0c8);
+        // title bar gradient
+        for (int x = 0; x < ww; ++x) {
+            final int c = 0x0a246a + (0xa6 - 0x24) * x / ww * 0x100 + (0xca - 0x6a) * x / ww;
+            fill(pixels, wx + x, wy, 1, 20, c);
+        }
+        // menu line and tree panel with selection moving each frame
+        fill(pixels, wx, wy + 20, ww, 20, 0xece9d8);
+        final int panelX = wx + 8;
+        final int panelY = wy + 48;
+        final int panelWidth = ww / 4;
+        final int panelHeight = wh - 96;
+        fill(pixels, panelX, panelY, panelWidth, panelHeight, 0xffffff);
+        final int selection = index % Math.max(1, panelHeight / LINE_HEIGHT);
+        fill(pixels, panelX, panelY + selection * LINE_HEIGHT, panelWidth, LINE_HEIGHT, 0x316ac5);
+        drawText(pixels, panelX, panelY, panelWidth, panelHeight, 1000);
+        // buttons grid
+        final int buttonsX = panelX + panelWidth + 16;
+        for (int j = 0; j < 4; ++j) {
+            for (int i = 0; i < 4; ++i) {
+                final int bx = buttonsX + i * 96;
+                final int by = panelY + j * 40;
+                if (bx + 88 > wx + ww) continue;
+                final boolean pressed = (i + j * 4) == index % 16;
+                fill(pixels, bx, by, 88, 28, pressed ? 0x808080 : 0xffffff);
+                fill(pixels, bx + 1, by + 1, 87, 27, pressed ? 0xffffff : 0x808080);
+                fill(pixels, bx + 1, by + 1, 86, 26, 0xd4d0c8);
+                drawText(pixels, bx + 12, by + 6, 64, LINE_HEIGHT, 2000 + i + j * 4);
+            }
+        }
+        // progress bar
+        final int barY = wy + wh - 36;
+        fill(pixels, buttonsX, barY, ww - panelWidth - 40, 20, 0xffffff);
+        fill(pixels, buttonsX + 2, barY + 2, (ww - panelWidth - 44) * (index % 32 + 1) / 32, 16, 0x316ac5);
+    }
+
+    private static int component(double value) {
+        return value < 0 ? 0 : value > 255 ? 255 : (int) value;
+    }
+
+    private static int hash(int a, int b, int c) {
+        int h = a * 0x27d4eb2d ^ b * 0x165667b1 ^ c * 0x9e3779b9;
+        h ^= h >>> 15;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & 0x7fffffff;
+    }
+}
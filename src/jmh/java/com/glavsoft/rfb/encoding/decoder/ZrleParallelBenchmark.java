@@ -0,0 +1,84 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.encoding.decoder;
+
+import com.glavsoft.exceptions.TransportException;
+import com.glavsoft.rfb.encoding.PixelFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ZRLE decoding of large rectangles with tiles decoded in parallel compared to sequential decoding.
+ * Rectangles are of rectWidth x rectHeight size (whole frame by default, as at full screen updates).
+ * See {@link DecoderBenchmark} for results meaning.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZrleParallelBenchmark {
+
+    @State(Scope.Thread)
+    public static class ParallelWorkload extends DecoderBenchmark.Workload {
+        @Param({"false", "true"})
+        public boolean parallel;
+
+        @Param({"TEXT", "PHOTO", "UI", "VIDEO"})
+        public WorkloadGenerator.Content content;
+
+        @Param({"24", "16"})
+        public int colorDepth;
+
+        @Param({"1024"})
+        public int rectWidth;
+
+        @Param({"768"})
+        public int rectHeight;
+
+        @Setup
+        public void setUp() throws IOException {
+            final PixelFormat pixelFormat = PayloadEncoder.pixelFormat(colorDepth);
+            init(new PayloadEncoder(PayloadEncoder.Encoding.ZRLE, pixelFormat, rectWidth, rectHeight),
+                    content, pixelFormat, new ZRLEDecoder(parallel ? 0 : Integer.MAX_VALUE));
+        }
+    }
+
+    @Benchmark
+    public void decode(ParallelWorkload workload, DecoderBenchmark.Pixels pixels) throws TransportException {
+        pixels.pixels += workload.decodeNextFrame();
+    }
+}
@@ -0,0 +1,274 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.protocol;
+
+import com.glavsoft.drawing.HeadlessRenderer;
+import com.glavsoft.drawing.Renderer;
+import com.glavsoft.exceptions.ClosedConnectionException;
+import com.glavsoft.exceptions.CommonException;
+import com.glavsoft.exceptions.TransportException;
+import com.glavsoft.rfb.IRequestString;
+import com.glavsoft.rfb.encoding.EncodingType;
+import com.glavsoft.rfb.encoding.decoder.Decoder;
+import com.glavsoft.rfb.encoding.decoder.FramebufferUpdateRectangle;
+import com.glavsoft.rfb.protocol.tunnel.TunnelType;
+import com.glavsoft.transport.ChannelTransport;
+import com.glavsoft.transport.FbsInputStream;
+import com.glavsoft.transport.Transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.channels.Channels;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Replays recorded server to client data (FBS file made by {@link com.glavsoft.transport.FbsRecorder}
+ * or raw capture starting with server's protocol version string) through the protocol handshake and decoders
+ * into headless renderer as fast as possible, and reports decoding throughput.
+ *
+ * Usage: ReplayRunner [-depth colorDepth] [-passes n] file
+ *
+ * Color depth must be the one set at the viewer while recording (24 by default), as server encodes data
+ * with pixel format the viewer requested. File is read into memory first, so disk io is not measured.
+ * First pass is warm up when more than one passes are requested.
+ */
+public class ReplayRunner {
+    private static final byte FRAMEBUFFER_UPDATE = 0;
+    private static final byte SET_COLOR_MAP_ENTRIES = 1;
+    private static final byte BELL = 2;
+    private static final byte SERVER_CUT_TEXT = 3;
+
+    private final byte[] data;
+    private final int colorDepth;
+    private final Map<EncodingType, long[]> encodingStats = new EnumMap<EncodingType, long[]>(EncodingType.class);
+    private long rectsCount;
+    private long updatesCount;
+    private Renderer renderer;
+    private Decoder pipelinedDecoder;
+    private EncodingType pipelinedEncoding;
+
+    public ReplayRunner(byte[] data, int colorDepth) {
+        this.data = data;
+        this.colorDepth = colorDepth;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int colorDepth = ProtocolSettings.COLOR_DEPTH_24;
+        int passes = 1;
+        String fileName = null;
+        for (int i = 0; i < args.length; ++i) {
+            if ("-depth".equals(args[i]) && i + 1 < args.length) {
+                colorDepth = Integer.parseInt(args[++i]);
+            } else if ("-passes".equals(args[i]) && i + 1 < args.length) {
+                passes = Integer.parseInt(args[++i]);
+            } else {
+                fileName = args[i];
+            }
+        }
+        if (null == fileName) {
+            System.err.println("Usage: ReplayRunner [-depth colorDepth] [-passes n] file");
+            System.exit(1);
+        }
+        final byte[] data = load(new File(fileName));
+        System.out.println("Replay " + fileName + ": " + data.length + " bytes of server data, depth " + colorDepth);
+        for (int pass = 1; pass <= passes; ++pass) {
+            final ReplayRunner runner = new ReplayRunner(data, colorDepth);
+            final long start = System.nanoTime();
+            final long allocatedBefore = allocatedBytes();
+            runner.run();
+            final long nanos = System.nanoTime() - start;
+            final long allocated = allocatedBytes() - allocatedBefore;
+            System.out.println((passes > 1 && 1 == pass ? "Warm up pass: " : "Pass " + pass + ": ") +
+                    runner.report(nanos, allocated));
+        }
+    }
+
+    /**
+     * Read file into memory, stripping FBS framing
+     */
+    static byte[] load(File file) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+        final InputStream fileStream = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = fileStream.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            fileStream.close();
+        }
+        final byte[] content = bytes.toByteArray();
+        if ( ! FbsInputStream.isFbs(content)) return content;
+        final InputStream fbs = new FbsInputStream(new ByteArrayInputStream(content));
+        bytes.reset();
+        final byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = fbs.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    public void run() throws CommonException {
+        Transport transport = new ChannelTransport(Channels.newChannel(new ByteArrayInputStream(data)),
+                new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                        // client messages are not needed
+                    }
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        // client messages are not needed
+                    }
+                });
+        final ProtocolSettings settings = ProtocolSettings.getDefaultSettings();
+        settings.setColorDepth(colorDepth);
+        settings.setTunnelType(TunnelType.NOTUNNEL); // tunneled session is recorded decrypted
+        final Protocol protocol = new Protocol(transport, new IRequestString() {
+            @Override
+            public String getResult() {
+                return ""; // server's auth result is recorded, any response fits
+            }
+        }, settings);
+        protocol.handshake();
+        protocol.initPixelFormat();
+        protocol.resetDecoders();
+        transport = protocol.getTransport();
+        renderer = new HeadlessRenderer(protocol.getFbWidth(), protocol.getFbHeight(), protocol.getPixelFormat());
+        try {
+            while (true) {
+                final byte messageId = transport.readByte();
+                switch (messageId) {
+                    case FRAMEBUFFER_UPDATE:
+                        framebufferUpdateMessage(transport, protocol);
+                        break;
+                    case SET_COLOR_MAP_ENTRIES:
+                        transport.skip(3);
+                        transport.skip(transport.readUInt16() * 6);
+                        break;
+                    case BELL:
+                        break;
+                    case SERVER_CUT_TEXT:
+                        transport.skip(3);
+                        transport.skip(transport.readInt32());
+                        break;
+                    default:
+                        throw new CommonException("Unsupported server message. Id = " + messageId);
+                }
+            }
+        } catch (ClosedConnectionException e) {
+            // end of data
+        }
+    }
+
+    private void framebufferUpdateMessage(Transport transport, Protocol protocol) throws CommonException {
+        ++updatesCount;
+        transport.skip(1); // padding
+        int numberOfRectangles = transport.readUInt16();
+        while (numberOfRectangles-- > 0) {
+            final FramebufferUpdateRectangle rect = new FramebufferUpdateRectangle();
+            rect.fill(transport);
+            final Decoder decoder = protocol.getDecoder(rect.getEncodingId());
+            if (null == decoder) throw new CommonException("Unprocessed encoding: " + rect.toString());
+            if (decoder != pipelinedDecoder) commitPipelined();
+            final long start = System.nanoTime();
+            decoder.decode(transport, renderer, rect);
+            final long nanos = System.nanoTime() - start;
+            long[] stats = stats(rect.getEncodingType());
+            ++stats[0];
+            stats[1] += nanos;
+            stats[2] += (long) rect.width * rect.height;
+            ++rectsCount;
+            if (decoder.isPipelined()) {
+                pipelinedDecoder = decoder;
+                pipelinedEncoding = rect.getEncodingType();
+            }
+            if (EncodingType.DESKTOP_SIZE == rect.getEncodingType()) {
+                renderer = new HeadlessRenderer(rect.width, rect.height, protocol.getPixelFormat());
+                return;
+            }
+        }
+        commitPipelined();
+    }
+
+    /**
+     * Draw rectangles decoded by pipelined decoder, drawing time is accounted to its encoding
+     */
+    private void commitPipelined() throws TransportException {
+        if (null == pipelinedDecoder) return;
+        final long start = System.nanoTime();
+        pipelinedDecoder.commit();
+        stats(pipelinedEncoding)[1] += System.nanoTime() - start;
+        pipelinedDecoder = null;
+    }
+
+    private long[] stats(EncodingType encodingType) {
+        long[] stats = encodingStats.get(encodingType);
+        if (null == stats) {
+            stats = new long[3];
+            encodingStats.put(encodingType, stats);
+        }
+        return stats;
+    }
+
+    String report(long nanos, long allocatedBytes) {
+        final double seconds = nanos / 1e9;
+        final StringBuilder sb = new StringBuilder(String.format(Locale.US,
+                "%.1f ms, %.1f MB/s, %.0f rects/s, %.0f updates/s",
+                nanos / 1e6, data.length / 1e6 / seconds, rectsCount / seconds, updatesCount / seconds));
+        if (allocatedBytes >= 0) {
+            sb.append(String.format(Locale.US, ", allocated %.1f MB (%.1f MB/s)",
+                    allocatedBytes / 1e6, allocatedBytes / 1e6 / seconds));
+        }
+        for (Map.Entry<EncodingType, long[]> entry : encodingStats.entrySet()) {
+            final long[] stats = entry.getValue();
+            sb.append(String.format(Locale.US, "\n  %-16s %8d rects %10.1f ms %8.1f Mpixels/s",
+                    entry.getKey().getName(), stats[0], stats[1] / 1e6,
+                    stats[1] > 0 ? stats[2] / 1e6 / (stats[1] / 1e9) : 0.));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return bytes allocated by current thread or -1 when JVM does not support allocation measurement
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
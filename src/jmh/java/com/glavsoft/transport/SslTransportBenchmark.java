@@ -0,0 +1,184 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import com.glavsoft.exceptions.TransportException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Echo round trip throughput of transports against local echo server: plain socket transport,
+ * channel transport and SSL/TLS transport over channel transport.
+ * Score multiplied by blockSize gives bytes per second each way.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SslTransportBenchmark {
+    private static final String KEYSTORE = "benchmark.jks";
+    private static final char[] KEYSTORE_PASSWORD = "benchmark".toCharArray();
+
+    @Param({"plain", "channel", "ssl"})
+    public String transportType;
+
+    @Param({"TLSv1.2"})
+    public String protocol;
+
+    @Param({"1024", "65536"})
+    public int blockSize;
+
+    private ServerSocket serverSocket;
+    private Socket socket;
+    private Transport transport;
+    private byte[] block;
+    private byte[] received;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final boolean ssl = "ssl".equals(transportType);
+        serverSocket = ssl ?
+                createSslContext(true).getServerSocketFactory().createServerSocket(0, 1, InetAddress.getLoopbackAddress()) :
+                new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        if (ssl) {
+            ((SSLServerSocket) serverSocket).setEnabledProtocols(new String[] {protocol});
+        }
+        startEchoServer(serverSocket);
+        socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        socket.setTcpNoDelay(true);
+        if ("plain".equals(transportType)) {
+            transport = new Transport(socket);
+        } else if ("channel".equals(transportType)) {
+            transport = new ChannelTransport(socket);
+        } else {
+            final SSLEngine engine = createSslContext(false).createSSLEngine();
+            engine.setUseClientMode(true);
+            engine.setEnabledProtocols(new String[] {protocol});
+            final SslTransport sslTransport = new SslTransport(new ChannelTransport(socket), engine);
+            sslTransport.handshake();
+            transport = sslTransport;
+        }
+        block = new byte[blockSize];
+        new Random(1).nextBytes(block);
+        received = new byte[blockSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        socket.close();
+        serverSocket.close();
+        transport.release();
+    }
+
+    @Benchmark
+    public byte[] echo() throws TransportException {
+        transport.write(block).flush();
+        return transport.readBytes(received, 0, blockSize);
+    }
+
+    private static void startEchoServer(final ServerSocket serverSocket) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Socket s = serverSocket.accept();
+                    s.setTcpNoDelay(true);
+                    final InputStream in = s.getInputStream();
+                    final OutputStream out = s.getOutputStream();
+                    final byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, read);
+                        out.flush();
+                    }
+                    s.close();
+                } catch (IOException e) {
+                    // connection closed at tear down
+                }
+            }
+        }, "EchoServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private SSLContext createSslContext(boolean server) throws Exception {
+        final SSLContext sslContext = SSLContext.getInstance(protocol);
+        if (server) {
+            final KeyStore keyStore = KeyStore.getInstance("JKS");
+            final InputStream is = SslTransportBenchmark.class.getResourceAsStream(KEYSTORE);
+            try {
+                keyStore.load(is, KEYSTORE_PASSWORD);
+            } finally {
+                is.close();
+            }
+            final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, KEYSTORE_PASSWORD);
+            sslContext.init(kmf.getKeyManagers(), null, null);
+        } else {
+            sslContext.init(null, new TrustManager[] {new X509TrustManager() {
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+                @Override
+                public void checkClientTrusted(X509Certificate[] certs, String authType) {
+                }
+                @Override
+                public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                }
+            }}, null);
+        }
+        return sslContext;
+    }
+}
@@ -27,7 +27,22 @@ import com.glavsoft.exceptions.TransportException;
 import com.glavsoft.rfb.encoding.PixelFormat;
 import com.glavsoft.transport.Transport;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
 public class ColorDecoder {
+	/**
+	 * Set to false to disable Vector API backend
+	 */
+	public static final String VECTOR_PROPERTY = "com.glavsoft.drawing.vector";
+	/**
+	 * Vector API backend of src/vector (built with JDK 16+ set by vectorJdk build property), it is used
+	 * when running JVM has jdk.incubator.vector module (run with --add-modules jdk.incubator.vector),
+	 * scalar converters are used otherwise
+	 */
+	private static final String VECTOR_BACKEND_CLASS = "com.glavsoft.drawing.vector.VectorConverterBackend";
+	private static final PixelConverterBackend backend = loadBackend();
     protected byte redShift;
 	protected byte greenShift;
 	protected byte blueShift;
@@ -43,8 +58,25 @@ public class ColorDecoder {
 	private int startShiftCompact;
 	private int addShiftItem;
 	private final boolean isTightSpecific;
+	/**
+	 * Colors of all the 16 bit pixel values (256 KiB each), shared by sessions of the same pixel format
+	 */
+	private static final ConcurrentMap<String, int[]> lookup16Tables = new ConcurrentHashMap<String, int[]>();
+	/**
+	 * Converters of pixels, compact pixels (ZRLE) and Tight pixels
+	 */
+	public final PixelConverter pixelConverter;
+	public final PixelConverter compactConverter;
+	public final PixelConverter tightConverter;
 
     public ColorDecoder(PixelFormat pf) {
+		this(pf, true);
+	}
+
+	/**
+	 * @param accelerated use accelerated backend converters when backend is available
+	 */
+	public ColorDecoder(PixelFormat pf, boolean accelerated) {
 		redShift = pf.redShift;
 		greenShift = pf.greenShift;
 		blueShift = pf.blueShift;
@@ -72,6 +104,105 @@ public class ColorDecoder {
 		}
 		isTightSpecific = 4==bytesPerPixel && 3==bytesPerPixelTight &&
 				255 == redMax && 255 == greenMax && 255 == blueMax;
+		final PixelConverterBackend converterBackend = accelerated ? backend : null;
+		pixelConverter = createConverter(bytesPerPixel, startShift, addShiftItem, converterBackend);
+		compactConverter = createConverter(bytesPerCPixel, startShiftCompact, addShiftItem, converterBackend);
+		tightConverter = isTightSpecific ?
+				createConverter(3, 16, -8, converterBackend) : // r, g, b bytes
+				pixelConverter;
+	}
+
+	private static PixelConverterBackend loadBackend() {
+		if ("false".equalsIgnoreCase(System.getProperty(VECTOR_PROPERTY))) return null;
+		try {
+			return (PixelConverterBackend) Class.forName(VECTOR_BACKEND_CLASS).newInstance();
+		} catch (Throwable e) {
+			// no backend classes or no jdk.incubator.vector module
+			Logger.getLogger(ColorDecoder.class.getName()).finer("No Vector API backend: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return accelerated converters backend, null when there is no one
+	 */
+	public static PixelConverterBackend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Create converter for pixels of @code{bytes} bytes, where the first byte is shifted by @code{firstShift},
+	 * next ones by @code{shiftStep} more (less) each to make raw pixel value of pixel format.
+	 * Pixels with 8 bit components in whole bytes are converted without calculations,
+	 * 8 and 16 bit pixels of fewer bits per component go through lookup tables of colors.
+	 */
+	private PixelConverter createConverter(int bytes, int firstShift, int shiftStep, PixelConverterBackend backend) {
+		if (bytes >= 3 && 255 == redMax && 255 == greenMax && 255 == blueMax) {
+			final int red = byteIndex(redShift, bytes, firstShift, shiftStep);
+			final int green = byteIndex(greenShift, bytes, firstShift, shiftStep);
+			final int blue = byteIndex(blueShift, bytes, firstShift, shiftStep);
+			if (red >= 0 && green >= 0 && blue >= 0) {
+				final PixelConverter scalar = new BytesConverter(bytes, red, green, blue);
+				final PixelConverter accelerated = null == backend ? null :
+						backend.bytesConverter(scalar, red, green, blue);
+				return accelerated != null ? accelerated : scalar;
+			}
+		}
+		final int[] reds = componentTable(redMax, 16);
+		final int[] greens = componentTable(greenMax, 8);
+		final int[] blues = componentTable(blueMax, 0);
+		switch (bytes) {
+		case 1:
+			final int[] colors = new int[256];
+			for (int b = 0; b < 256; ++b) {
+				final int rawColor = b << firstShift;
+				colors[b] = reds[rawColor >> redShift & redMax] | greens[rawColor >> greenShift & greenMax] |
+						blues[rawColor >> blueShift & blueMax];
+			}
+			return new LookupConverter(colors);
+		case 2:
+			if (firstShift + shiftStep != 8 - firstShift || firstShift % 8 != 0) break; // not a 16 bit value
+			final String key = firstShift + "," + shiftStep + ":" + redShift + "," + redMax + ":" +
+					greenShift + "," + greenMax + ":" + blueShift + "," + blueMax;
+			int[] table = lookup16Tables.get(key);
+			if (null == table) {
+				table = new int[0x10000];
+				for (int rawColor = 0; rawColor < 0x10000; ++rawColor) {
+					table[rawColor] = reds[rawColor >> redShift & redMax] | greens[rawColor >> greenShift & greenMax] |
+							blues[rawColor >> blueShift & blueMax];
+				}
+				final int[] existing = lookup16Tables.putIfAbsent(key, table);
+				if (existing != null) table = existing;
+			}
+			final PixelConverter scalar = new Lookup16Converter(table, firstShift, firstShift + shiftStep);
+			final PixelConverter accelerated = null == backend ? null :
+					backend.shortsConverter(scalar, firstShift, firstShift + shiftStep,
+							redShift, redMax, greenShift, greenMax, blueShift, blueMax);
+			return accelerated != null ? accelerated : scalar;
+		}
+		return new TablesConverter(bytes, firstShift, shiftStep,
+				redShift, redMax, reds, greenShift, greenMax, greens, blueShift, blueMax, blues);
+	}
+
+	/**
+	 * @return index of pixel byte shifted by @code{shift} at raw pixel value, -1 when there is no such byte
+	 */
+	private static int byteIndex(int shift, int bytes, int firstShift, int shiftStep) {
+		for (int i = 0; i < bytes; ++i) {
+			if (firstShift + i * shiftStep == shift) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return component values scaled into 0..255 range and shifted to its place at 0x00rrggbb
+	 */
+	private static int[] componentTable(int max, int shift) {
+		final int[] table = new int[max + 1];
+		for (int v = 1; v <= max; ++v) {
+			table[v] = 255 * v / max << shift;
+		}
+		return table;
 	}
 
 	protected int readColor(Transport transport) throws TransportException {
@@ -104,8 +235,19 @@ public class ColorDecoder {
 		comp[2] = (byte) (rawColor >> blueShift & blueMax);
 	}
 
+	/**
+	 * Get color components of Tight pixel at pixel format precision (not converted to 0..255 range)
+	 * @return components packed as 0x00rrggbb
+	 */
+	public int getRawTightComponents(byte[] bytes, int offset) {
+		int rawColor = getRawTightColor(bytes, offset);
+		return (rawColor >> redShift & redMax) << 16 |
+				(rawColor >> greenShift & greenMax) << 8 |
+				rawColor >> blueShift & blueMax;
+	}
+
 	public int getTightColor(byte[] bytes, int offset) {
-		return convertColor(getRawTightColor(bytes, offset));
+		return tightConverter.convert(bytes, offset);
 	}
 
 	private int getRawTightColor(byte[] bytes, int offset) {
@@ -118,7 +260,7 @@ public class ColorDecoder {
 	}
 
 	protected int getColor(byte[] bytes, int offset) {
-		return convertColor(getRawColor(bytes, offset));
+		return pixelConverter.convert(bytes, offset);
 	}
 
 	private int getRawColor(byte[] bytes, int offset) {
@@ -132,13 +274,136 @@ public class ColorDecoder {
 	}
 
 	protected int getCompactColor(byte[] bytes, int offset) {
-		int shift = startShiftCompact;
-		int item = addShiftItem;
-		int rawColor = (bytes[offset++] & 0xff)<<shift;
-		for (int i=1; i< bytesPerCPixel; ++i) {
-			rawColor |= (bytes[offset++] & 0xff)<<(shift+=item);
+		return compactConverter.convert(bytes, offset);
+	}
+
+	/**
+	 * Pixels with red, green and blue components in whole bytes (32 and 24 bit pixels of 8 bit components),
+	 * no calculations needed
+	 */
+	private static final class BytesConverter extends PixelConverter {
+		private final int red;
+		private final int green;
+		private final int blue;
+
+		BytesConverter(int bytesPerPixel, int red, int green, int blue) {
+			super(bytesPerPixel);
+			this.red = red;
+			this.green = green;
+			this.blue = blue;
+		}
+
+		@Override
+		public int convert(byte[] bytes, int offset) {
+			return (bytes[offset + red] & 0xff) << 16 | (bytes[offset + green] & 0xff) << 8 | bytes[offset + blue] & 0xff;
+		}
+
+		@Override
+		public int convertRow(byte[] bytes, int offset, int[] colors, int colorsOffset, int count) {
+			final int end = colorsOffset + count;
+			for (int i = offset; colorsOffset < end; ++colorsOffset, i += bytesPerPixel) {
+				colors[colorsOffset] = (bytes[i + red] & 0xff) << 16 | (bytes[i + green] & 0xff) << 8 |
+						bytes[i + blue] & 0xff;
+			}
+			return count * bytesPerPixel;
+		}
+	}
+
+	/**
+	 * One byte pixels (8, 6, 3 bit colour depth), color of every byte value is precalculated
+	 */
+	private static final class LookupConverter extends PixelConverter {
+		private final int[] colors;
+
+		LookupConverter(int[] colors) {
+			super(1);
+			this.colors = colors;
+		}
+
+		@Override
+		public int convert(byte[] bytes, int offset) {
+			return colors[bytes[offset] & 0xff];
+		}
+
+		@Override
+		public int convertRow(byte[] bytes, int offset, int[] colors, int colorsOffset, int count) {
+			final int[] table = this.colors;
+			for (int i = 0; i < count; ++i) {
+				colors[colorsOffset + i] = table[bytes[offset + i] & 0xff];
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Two byte pixels (16, 15 bit colour depth), color of every pixel value is precalculated
+	 */
+	private static final class Lookup16Converter extends PixelConverter {
+		private final int[] colors;
+		private final int firstShift;
+		private final int secondShift;
+
+		Lookup16Converter(int[] colors, int firstShift, int secondShift) {
+			super(2);
+			this.colors = colors;
+			this.firstShift = firstShift;
+			this.secondShift = secondShift;
+		}
+
+		@Override
+		public int convert(byte[] bytes, int offset) {
+			return colors[(bytes[offset] & 0xff) << firstShift | (bytes[offset + 1] & 0xff) << secondShift];
+		}
+
+		@Override
+		public int convertRow(byte[] bytes, int offset, int[] colors, int colorsOffset, int count) {
+			final int[] table = this.colors;
+			final int end = colorsOffset + count;
+			for (int i = offset; colorsOffset < end; ++colorsOffset, i += 2) {
+				colors[colorsOffset] = table[(bytes[i] & 0xff) << firstShift | (bytes[i + 1] & 0xff) << secondShift];
+			}
+			return count * 2;
+		}
+	}
+
+	/**
+	 * Any other pixels, colors of components are precalculated
+	 */
+	private static final class TablesConverter extends PixelConverter {
+		private final int firstShift, shiftStep;
+		private final int redShift, greenShift, blueShift;
+		private final int redMax, greenMax, blueMax;
+		private final int[] reds, greens, blues;
+
+		TablesConverter(int bytesPerPixel, int firstShift, int shiftStep,
+				int redShift, int redMax, int[] reds, int greenShift, int greenMax, int[] greens,
+				int blueShift, int blueMax, int[] blues) {
+			super(bytesPerPixel);
+			this.firstShift = firstShift;
+			this.shiftStep = shiftStep;
+			this.redShift = redShift; this.redMax = redMax; this.reds = reds;
+			this.greenShift = greenShift; this.greenMax = greenMax; this.greens = greens;
+			this.blueShift = blueShift; this.blueMax = blueMax; this.blues = blues;
+		}
+
+		@Override
+		public int convert(byte[] bytes, int offset) {
+			int shift = firstShift;
+			int rawColor = (bytes[offset] & 0xff) << shift;
+			for (int i = 1; i < bytesPerPixel; ++i) {
+				rawColor |= (bytes[offset + i] & 0xff) << (shift += shiftStep);
+			}
+			return reds[rawColor >> redShift & redMax] | greens[rawColor >> greenShift & greenMax] |
+					blues[rawColor >> blueShift & blueMax];
+		}
+
+		@Override
+		public int convertRow(byte[] bytes, int offset, int[] colors, int colorsOffset, int count) {
+			for (int i = 0; i < count; ++i) {
+				colors[colorsOffset + i] = convert(bytes, offset + i * bytesPerPixel);
+			}
+			return count * bytesPerPixel;
 		}
-		return convertColor(rawColor);
 	}
 
 }
\ No newline at end of file
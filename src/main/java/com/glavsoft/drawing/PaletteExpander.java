@@ -0,0 +1,180 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.drawing;
+
+import java.util.Arrays;
+
+/**
+ * Expander of packed palette indices (1, 2, 4 or 8 bits per pixel, rows start at byte boundary, the most significant
+ * bits first) into colors. Byte of 1, 2 or 4 bit indices is expanded by copy of colors of its pixels from table
+ * prepared for the palette. Preparing the table costs more than expansion of a small tile, so it is prepared
+ * when the same palette is set again (ex. the same text and background colors of text tiles), before that
+ * indices are extracted one by one.
+ * Not thread safe, use one expander per decoding thread.
+ */
+public class PaletteExpander {
+	private static final int MAX_PALETTE_SIZE = 256;
+	private final int[] palette = new int[MAX_PALETTE_SIZE];
+	private final int[] table = new int[256 * 8];
+	private boolean tableReady;
+	private int paletteSize = -1;
+	private int bitsPerIndex = 8;
+	private int pixelsPerByte = 1;
+
+	/**
+	 * @return bits per packed index of palette of @code{paletteSize} colors
+	 */
+	public static int bitsPerIndex(int paletteSize) {
+		return paletteSize > 16 ? 8 : paletteSize > 4 ? 4 : paletteSize > 2 ? 2 : 1;
+	}
+
+	/**
+	 * @return bytes of packed row of @code{width} pixels
+	 */
+	public static int rowBytes(int width, int bitsPerIndex) {
+		return (width * bitsPerIndex + 7) / 8;
+	}
+
+	/**
+	 * Set palette for indices of @code{bitsPerIndex} bits. Indices not in palette are expanded to black.
+	 */
+	public void setPalette(int[] palette, int paletteSize, int bitsPerIndex) {
+		paletteSize = Math.min(paletteSize, Math.min(MAX_PALETTE_SIZE, 1 << bitsPerIndex));
+		if (bitsPerIndex == this.bitsPerIndex && paletteSize == this.paletteSize &&
+				samePalette(palette, paletteSize)) {
+			if ( ! tableReady && bitsPerIndex < 8) {
+				prepareTable();
+			}
+			return;
+		}
+		System.arraycopy(palette, 0, this.palette, 0, paletteSize);
+		if (this.paletteSize > paletteSize) {
+			Arrays.fill(this.palette, paletteSize, this.paletteSize, 0);
+		}
+		this.paletteSize = paletteSize;
+		this.bitsPerIndex = bitsPerIndex;
+		pixelsPerByte = 8 / bitsPerIndex;
+		tableReady = false;
+	}
+
+	private boolean samePalette(int[] palette, int paletteSize) {
+		for (int i = 0; i < paletteSize; ++i) {
+			if (palette[i] != this.palette[i]) return false;
+		}
+		return true;
+	}
+
+	private void prepareTable() {
+		final int[] colors = palette;
+		final int mask = (1 << bitsPerIndex) - 1;
+		for (int b = 0, i = 0; b < 256; ++b) {
+			for (int shift = 8 - bitsPerIndex; shift >= 0; shift -= bitsPerIndex) {
+				table[i++] = colors[b >> shift & mask];
+			}
+		}
+		tableReady = true;
+	}
+
+	/**
+	 * Expand row of @code{width} pixels of packed indices into colors
+	 *
+	 * @return number of bytes processed
+	 */
+	public int expandRow(byte[] bytes, int offset, int[] colors, int colorsOffset, int width) {
+		if (8 == bitsPerIndex) {
+			final int[] palette = this.palette;
+			for (int i = offset, c = colorsOffset, end = colorsOffset + width; c < end; ++c) {
+				colors[c] = palette[bytes[i++] & 0xff];
+			}
+			return width;
+		}
+		return tableReady ?
+				expandWithTable(bytes, offset, colors, colorsOffset, width) :
+				expandWithShifts(bytes, offset, colors, colorsOffset, width);
+	}
+
+	private int expandWithTable(byte[] bytes, int offset, int[] colors, int colorsOffset, int width) {
+		final int[] table = this.table;
+		final int pixelsPerByte = this.pixelsPerByte;
+		int i = offset;
+		int c = colorsOffset;
+		final int wholeBytesEnd = colorsOffset + width - width % pixelsPerByte;
+		switch (pixelsPerByte) {
+		case 8:
+			while (c < wholeBytesEnd) {
+				final int t = (bytes[i++] & 0xff) << 3;
+				colors[c] = table[t];
+				colors[c + 1] = table[t + 1];
+				colors[c + 2] = table[t + 2];
+				colors[c + 3] = table[t + 3];
+				colors[c + 4] = table[t + 4];
+				colors[c + 5] = table[t + 5];
+				colors[c + 6] = table[t + 6];
+				colors[c + 7] = table[t + 7];
+				c += 8;
+			}
+			break;
+		case 4:
+			while (c < wholeBytesEnd) {
+				final int t = (bytes[i++] & 0xff) << 2;
+				colors[c] = table[t];
+				colors[c + 1] = table[t + 1];
+				colors[c + 2] = table[t + 2];
+				colors[c + 3] = table[t + 3];
+				c += 4;
+			}
+			break;
+		default:
+			while (c < wholeBytesEnd) {
+				final int t = (bytes[i++] & 0xff) << 1;
+				colors[c] = table[t];
+				colors[c + 1] = table[t + 1];
+				c += 2;
+			}
+		}
+		final int tail = colorsOffset + width - c;
+		if (tail > 0) {
+			System.arraycopy(table, (bytes[i++] & 0xff) * pixelsPerByte, colors, c, tail);
+		}
+		return i - offset;
+	}
+
+	private int expandWithShifts(byte[] bytes, int offset, int[] colors, int colorsOffset, int width) {
+		final int[] palette = this.palette;
+		final int bitsPerIndex = this.bitsPerIndex;
+		final int mask = (1 << bitsPerIndex) - 1;
+		int i = offset;
+		int b = 0;
+		int bitsRemain = 0;
+		for (int c = colorsOffset, end = colorsOffset + width; c < end; ++c) {
+			if (0 == bitsRemain) {
+				b = bytes[i++];
+				bitsRemain = 8;
+			}
+			bitsRemain -= bitsPerIndex;
+			colors[c] = palette[b >> bitsRemain & mask];
+		}
+		return i - offset;
+	}
+}
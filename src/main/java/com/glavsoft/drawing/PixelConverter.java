@@ -0,0 +1,50 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.drawing;
+
+/**
+ * Converter of pixels of one pixel format and layout into 0x00rrggbb colors, created by {@link ColorDecoder}.
+ * Implementations are specialized for pixel formats, so call sites of a session see one implementation only.
+ */
+public abstract class PixelConverter {
+	public final int bytesPerPixel;
+
+	protected PixelConverter(int bytesPerPixel) {
+		this.bytesPerPixel = bytesPerPixel;
+	}
+
+	/**
+	 * Convert pixel into 0x00rrggbb color
+	 */
+	public abstract int convert(byte[] bytes, int offset);
+
+	/**
+	 * Convert @code{count} pixels into colors.
+	 * Implementations override it with their own loop, so the loop calls one convert implementation only.
+	 *
+	 * @return number of bytes processed
+	 */
+	public abstract int convertRow(byte[] bytes, int offset, int[] colors, int colorsOffset, int count);
+
+}
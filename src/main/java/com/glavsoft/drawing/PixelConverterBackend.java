@@ -0,0 +1,45 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.drawing;
+
+/**
+ * Optional accelerated implementation of pixel converters for the common pixel formats, ex. Vector API based one
+ * of src/vector. Backend converters take scalar converter of the same pixels for single pixels and rows tails.
+ */
+public interface PixelConverterBackend {
+
+	/**
+	 * @return converter of pixels with 8 bit red, green and blue components at whole bytes of the indices given,
+	 * null when backend does not accelerate such pixels
+	 */
+	PixelConverter bytesConverter(PixelConverter scalar, int red, int green, int blue);
+
+	/**
+	 * @return converter of two byte pixels, which raw value is the first byte shifted by @code{firstShift} or-ed with
+	 * the second byte shifted by @code{secondShift}, null when backend does not accelerate such pixels
+	 */
+	PixelConverter shortsConverter(PixelConverter scalar, int firstShift, int secondShift,
+			int redShift, int redMax, int greenShift, int greenMax, int blueShift, int blueMax);
+
+}
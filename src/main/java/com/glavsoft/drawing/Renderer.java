@@ -42,11 +42,27 @@ public abstract class Renderer {
     public abstract void drawJpegImage(byte[] bytes, int offset,
                                        int jpegBufferLength, FramebufferUpdateRectangle rect);
 
+    /**
+     * Decode jpeg image data into separate pixels array, framebuffer is not changed.
+     * Thread safe, used by pipelined decoders to decode images at worker threads in parallel,
+     * decoded pixels are drawn later with {@link #drawColoredBitmap}.
+     *
+     * @return pixels of width x height image, or null when renderer does not support
+     * such a decoding (use {@link #drawJpegImage} then) or image is broken
+     */
+    public int[] decodeJpegImage(byte[] bytes, int offset, int jpegBufferLength, int width, int height) {
+        return null;
+    }
+
     protected int width;
     protected int height;
     protected int[] pixels;
     protected SoftCursor cursor;
     protected ColorDecoder colorDecoder;
+    /**
+     * Expander of palette pixels, used under lock
+     */
+    private final PaletteExpander paletteExpander = new PaletteExpander();
 
     protected void init(int width, int height, PixelFormat pixelFormat) {
         this.width = width;
@@ -74,12 +90,9 @@ public abstract class Renderer {
     public void drawBytes(byte[] bytes, int x, int y, int width, int height) {
         int i = 0;
         lock.lock();
+        final PixelConverter converter = colorDecoder.pixelConverter;
         for (int ly = y; ly < y + height; ++ly) {
-            int end = ly * this.width + x + width;
-            for (int pixelsOffset = ly * this.width + x; pixelsOffset < end; ++pixelsOffset) {
-                pixels[pixelsOffset] = getPixelColor(bytes, i);
-                i += colorDecoder.bytesPerPixel;
-            }
+            i += converter.convertRow(bytes, i, pixels, ly * this.width + x, width);
         }
         lock.unlock();
     }
@@ -90,49 +103,104 @@ public abstract class Renderer {
     public int drawCompactBytes(byte[] bytes, int offset, int x, int y, int width, int height) {
         int i = offset;
         lock.lock();
+        final PixelConverter converter = colorDecoder.compactConverter;
         for (int ly = y; ly < y + height; ++ly) {
-            int end = ly * this.width + x + width;
-            for (int pixelsOffset = ly * this.width + x; pixelsOffset < end; ++pixelsOffset) {
-                pixels[pixelsOffset] = getCompactPixelColor(bytes, i);
-                i += colorDecoder.bytesPerCPixel;
-            }
+            i += converter.convertRow(bytes, i, pixels, ly * this.width + x, width);
         }
         lock.unlock();
         return i - offset;
     }
 
     /**
-     * Draw int (colors) array bitmap data (for ZRLE)
+     * Draw int (colors) array bitmap data
      */
     public void drawColoredBitmap(int[] colors, int x, int y, int width, int height) {
-        int i = 0;
         lock.lock();
-        for (int ly = y; ly < y + height; ++ly) {
-            int end = ly * this.width + x + width;
-            for (int pixelsOffset = ly * this.width + x; pixelsOffset < end; ++pixelsOffset) {
-                pixels[pixelsOffset] = colors[i++];
-            }
+        for (int i = 0, pixelsOffset = y * this.width + x; i < width * height; i += width) {
+            System.arraycopy(colors, i, pixels, pixelsOffset, width);
+            pixelsOffset += this.width;
         }
         lock.unlock();
     }
 
+    /**
+     * Lock framebuffer for decoder which writes right into its pixels ({@link #getFramebuffer()}),
+     * ex. for a whole rectangle at once. Unlock it with {@link #unlockFramebuffer()} at the same thread.
+     */
+    public void lockFramebuffer() {
+        lock.lock();
+    }
+
+    public void unlockFramebuffer() {
+        lock.unlock();
+    }
+
+    /**
+     * @return framebuffer pixels, rows of {@link #getWidth()} colors, to be written while framebuffer is locked
+     */
+    public int[] getFramebuffer() {
+        return pixels;
+    }
+
     /**
      * Draw byte array bitmap data (for Tight)
      */
     public int drawTightBytes(byte[] bytes, int offset, int x, int y, int width, int height) {
         int i = offset;
         lock.lock();
+        final PixelConverter converter = colorDecoder.tightConverter;
         for (int ly = y; ly < y + height; ++ly) {
-            int end = ly * this.width + x + width;
-            for (int pixelsOffset = ly * this.width + x; pixelsOffset < end; ++pixelsOffset) {
-                pixels[pixelsOffset] = colorDecoder.getTightColor(bytes, i);
+            i += converter.convertRow(bytes, i, pixels, ly * this.width + x, width);
+        }
+        lock.unlock();
+        return i - offset;
+    }
+
+    /**
+     * Draw Tight gradient filtered bitmap data. Each color component of pixel is a difference between
+     * actual intensity and the one predicted from upper, left and upper left pixels.
+     * Intensities of previous row are kept at @code{row} (packed as 0x00rrggbb at pixel format precision),
+     * so the rectangle may be drawn by bands of rows. Row must be zeroed before the first band of rectangle.
+     *
+     * @param row previous row intensities buffer, at least @code{width} long
+     * @return number of bytes processed
+     */
+    public int drawTightGradientBytes(byte[] bytes, int offset, int x, int y, int width, int height, int[] row) {
+        final int redMax = colorDecoder.redMax;
+        final int greenMax = colorDecoder.greenMax;
+        final int blueMax = colorDecoder.blueMax;
+        final boolean isFullRange = 255 == redMax && 255 == greenMax && 255 == blueMax;
+        int i = offset;
+        lock.lock();
+        for (int ly = y; ly < y + height; ++ly) {
+            int left = 0;
+            int upperLeft = 0;
+            int pixelsOffset = ly * this.width + x;
+            for (int j = 0; j < width; ++j) {
+                final int upper = row[j];
+                final int difference = colorDecoder.getRawTightComponents(bytes, i);
                 i += colorDecoder.bytesPerPixelTight;
+                final int red = predict(difference >> 16, upper >> 16, left >> 16, upperLeft >> 16, redMax);
+                final int green = predict(difference >> 8 & 0xff, upper >> 8 & 0xff, left >> 8 & 0xff,
+                        upperLeft >> 8 & 0xff, greenMax);
+                final int blue = predict(difference & 0xff, upper & 0xff, left & 0xff, upperLeft & 0xff, blueMax);
+                left = red << 16 | green << 8 | blue;
+                upperLeft = upper;
+                row[j] = left;
+                pixels[pixelsOffset++] = isFullRange ? left :
+                        255 * red / redMax << 16 | 255 * green / greenMax << 8 | 255 * blue / blueMax;
             }
         }
         lock.unlock();
         return i - offset;
     }
 
+    private static int predict(int difference, int upper, int left, int upperLeft, int max) {
+        int predicted = upper + left - upperLeft;
+        predicted = predicted < 0 ? 0 : predicted > max ? max : predicted;
+        return difference + predicted & max;
+    }
+
     /**
      * Draw byte array bitmap data (from array with plain RGB color components. Assumed: rrrrrrrr gggggggg bbbbbbbb)
      */
@@ -161,34 +229,14 @@ public abstract class Renderer {
      */
     public void drawBytesWithPalette(byte[] buffer, FramebufferUpdateRectangle rect, int[] palette, int paletteSize) {
         lock.lock();
-        // 2 colors
-        if (2 == paletteSize) {
-            int dx, dy, n;
-            int i = rect.y * this.width + rect.x;
-            int rowBytes = (rect.width + 7) / 8;
-            byte b;
-
-            for (dy = 0; dy < rect.height; dy++) {
-                for (dx = 0; dx < rect.width / 8; dx++) {
-                    b = buffer[dy * rowBytes + dx];
-                    for (n = 7; n >= 0; n--) {
-                        pixels[i++] = palette[b >> n & 1];
-                    }
-                }
-                for (n = 7; n >= 8 - rect.width % 8; n--) {
-                    pixels[i++] = palette[buffer[dy * rowBytes + dx] >> n & 1];
-                }
-                i += this.width - rect.width;
-            }
-        } else {
-            // 3..255 colors (assuming bytesPixel == 4).
-            int i = 0;
-            for (int ly = rect.y; ly < rect.y + rect.height; ++ly) {
-                for (int lx = rect.x; lx < rect.x + rect.width; ++lx) {
-                    int pixelsOffset = ly * this.width + lx;
-                    pixels[pixelsOffset] = palette[buffer[i++] & 0xFF];
-                }
-            }
+        // 1 bit indices for 2 colors, a byte per index for 3..256 colors
+        final int bitsPerIndex = 2 == paletteSize ? 1 : 8;
+        paletteExpander.setPalette(palette, paletteSize, bitsPerIndex);
+        final int rowBytes = PaletteExpander.rowBytes(rect.width, bitsPerIndex);
+        int i = rect.y * this.width + rect.x;
+        for (int dy = 0, offset = 0; dy < rect.height; ++dy, offset += rowBytes) {
+            paletteExpander.expandRow(buffer, offset, pixels, i, rect.width);
+            i += this.width;
         }
         lock.unlock();
     }
@@ -251,6 +299,26 @@ public abstract class Renderer {
         lock.unlock();
     }
 
+    /**
+     * Fill rectangle regions with specified colours at once
+     *
+     * @param rects rectangles, five ints each: colour, x, y, width, height
+     * @param count number of rectangles
+     */
+    public void fillRects(int[] rects, int count) {
+        lock.lock();
+        for (int r = 0, end = count * 5; r < end; r += 5) {
+            int color = rects[r];
+            int width = rects[r + 3];
+            int sy = rects[r + 2] * this.width + rects[r + 1];
+            int ey = sy + rects[r + 4] * this.width;
+            for (int i = sy; i < ey; i += this.width) {
+                Arrays.fill(pixels, i, i + width, color);
+            }
+        }
+        lock.unlock();
+    }
+
     /**
      * Reads color bytes (PIXEL) from transport, returns int combined RGB
      * value consisting of the red component in bits 16-23, the green component
@@ -316,6 +384,7 @@ public abstract class Renderer {
     /**
      * Read and decode cursor image
      *
+     * @param cursorPixels cursor ARGB pixels, may be reused by caller after the call
      * @param rect new cursor hot point position and cursor dimensions
      * @throws TransportException
      */
@@ -83,6 +83,12 @@ public abstract class SoftCursor {
 		setNewDimensions(hotX, hotY, width, height);
 	}
 
+	/**
+	 * Build cursor image from ARGB pixels
+	 *
+	 * @param cursorPixels cursor pixels, width * height first items are used; the array is reused by decoder
+	 *                     for next cursor shape, so copy it when image keeps the reference
+	 */
 	protected abstract void createNewCursorImage(int[] cursorPixels, int hotX, int hotY, int width, int height);
 
     public Object getLock() {
@@ -56,9 +56,11 @@ public class RfbCapabilityInfo {
 	public static final String ENCODING_ZLIB = "ZLIB____";
 	public static final String ENCODING_ZRLE = "ZRLE____";
 	public static final String ENCODING_RRE = "RRE_____";
+	public static final String ENCODING_CORRE = "CORRE___";
 	public static final String ENCODING_TIGHT = "TIGHT___";
 	// "Pseudo" encoding types
 	public static final String ENCODING_RICH_CURSOR = "RCHCURSR";
+	public static final String ENCODING_X_CURSOR = "X11CURSR";
 	public static final String ENCODING_CURSOR_POS = "POINTPOS";
 	public static final String ENCODING_DESKTOP_SIZE = "NEWFBSIZ";
 
@@ -27,23 +27,37 @@ import com.glavsoft.exceptions.TransportException;
 import com.glavsoft.rfb.encoding.EncodingType;
 import com.glavsoft.transport.Transport;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Set;
 
 public class SetEncodingsMessage implements ClientToServerMessage {
 	private final Set<EncodingType> encodings;
+	private final Collection<Integer> otherEncodings;
 
 	public SetEncodingsMessage(Set<EncodingType> set) {
+		this(set, Collections.<Integer>emptySet());
+	}
+
+	/**
+	 * @param otherEncodings ids of encodings EncodingType does not know, sent after the set ones
+	 */
+	public SetEncodingsMessage(Set<EncodingType> set, Collection<Integer> otherEncodings) {
 		this.encodings = set;
+		this.otherEncodings = otherEncodings;
 	}
 
 	@Override
 	public void send(Transport transport) throws TransportException {
 		transport.writeByte(ClientMessageType.SET_ENCODINGS.id)
                 .zero(1) // padding byte
-		        .writeInt16(encodings.size());
+		        .writeInt16(encodings.size() + otherEncodings.size());
 		for (EncodingType enc : encodings) {
 			transport.writeInt32(enc.getId());
 		}
+		for (int id : otherEncodings) {
+			transport.writeInt32(id);
+		}
 		transport.flush();
 	}
 
@@ -53,6 +67,9 @@ public class SetEncodingsMessage implements ClientToServerMessage {
 		for (EncodingType enc : encodings) {
 			sb.append(enc.name()).append(',');
 		}
+		for (int id : otherEncodings) {
+			sb.append(id).append(',');
+		}
 		sb.setLength(sb.length()-1);
 		return sb.append(']').toString();
 	}
@@ -41,6 +41,10 @@ public enum EncodingType {
 	 */
 	COPY_RECT(1, "CopyRect", CopyRectDecoder.class),
 	RRE(2, "RRE", RREDecoder.class),
+	/**
+	 * Compact RRE, subrectangle coordinates and dimensions are one byte each
+	 */
+	CO_RRE(4, "CoRRE", CoRREDecoder.class),
 	/**
 	 *  Hextile encoding, uses palettes, filling and raw subencoding
 	 */
@@ -65,6 +69,11 @@ public enum EncodingType {
      * with transparency
      */
     RICH_CURSOR(0xFFFFFF11, "RichCursor", RichCursorDecoder.class),
+    /**
+     * XCursor pseudo encoding which allows to transfer two colour cursor shape
+     * with transparency mask
+     */
+    X_CURSOR(0xFFFFFF10, "XCursor", XCursorDecoder.class),
     /**
      * Desktop Size Pseudo encoding allows to notificate client about
      *  remote screen resolution changed.
@@ -121,6 +130,7 @@ public enum EncodingType {
 		ordinaryEncodings.add(HEXTILE);
 		ordinaryEncodings.add(ZRLE);
 		ordinaryEncodings.add(ZLIB);
+		ordinaryEncodings.add(CO_RRE);
 		ordinaryEncodings.add(RRE);
 		ordinaryEncodings.add(COPY_RECT);
 //		ordinaryEncodings.add(RAW_ENCODING);
@@ -129,17 +139,45 @@ public enum EncodingType {
 	public static final LinkedHashSet<EncodingType> pseudoEncodings = new LinkedHashSet<EncodingType>();
 	static {
 		pseudoEncodings.add(RICH_CURSOR);
+		pseudoEncodings.add(X_CURSOR);
 		pseudoEncodings.add(CURSOR_POS);
 		pseudoEncodings.add(DESKTOP_SIZE);
 	}
 
-	public static EncodingType byId(int id) {
-		// TODO needs to speedup with hash usage?
+	/**
+	 * Ids of all the encoding types fit into [SLOTS_BASE, SLOTS_BASE + SLOTS) range (pseudo encodings
+	 * are small negative numbers), so id is turned into dense table index (slot) by subtraction
+	 */
+	public static final int SLOTS_BASE = -256;
+	public static final int SLOTS = 512;
+	private static final EncodingType[] bySlot = new EncodingType[SLOTS];
+	static {
 		for (EncodingType type : values()) {
-			if (type.getId() == id)
-				return type;
+			bySlot[slot(type.id)] = type;
 		}
-		throw new IllegalArgumentException("Unsupported encoding code: " + id);
+	}
+
+	/**
+	 * @return dense table index for encoding id, or -1 when id is out of encoding types ids range
+	 */
+	public static int slot(int id) {
+		final int slot = id - SLOTS_BASE;
+		return slot >= 0 && slot < SLOTS ? slot : -1;
+	}
+
+	/**
+	 * @return encoding type with the id given, or null when there is no such type
+	 */
+	public static EncodingType find(int id) {
+		final int slot = slot(id);
+		return slot >= 0 ? bySlot[slot] : null;
+	}
+
+	public static EncodingType byId(int id) {
+		final EncodingType type = find(id);
+		if (null == type)
+			throw new IllegalArgumentException("Unsupported encoding code: " + id);
+		return type;
 	}
 
 }
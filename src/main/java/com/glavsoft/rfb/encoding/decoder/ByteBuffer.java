@@ -23,43 +23,131 @@
 //
 package com.glavsoft.rfb.encoding.decoder;
 
+import com.glavsoft.transport.BufferMeter;
+import com.glavsoft.transport.BufferPool;
+
+import java.util.concurrent.TimeUnit;
+
 /**
- * Resizeable to needed length byte buffer
- * Singleton for share among decoders.
+ * Resizeable to needed length byte buffer for share among decoders.
+ * Protocol session owns its buffer and binds it to the thread decoding the session (receiver thread or
+ * session engine worker), other threads get their own one. Buffer arrays are taken from {@link BufferPool}
+ * by size classes, and when buffer grown by a large update is not needed for {@link #SHRINK_IDLE_SECONDS},
+ * it is shrunk back to the size requested.
  */
 public class ByteBuffer {
+	public static final long SHRINK_IDLE_SECONDS = 10;
+	private static final long SHRINK_IDLE_NANOS = TimeUnit.SECONDS.toNanos(SHRINK_IDLE_SECONDS);
+	private static final byte[] EMPTY = new byte[0];
 	private static ThreadLocal<ByteBuffer> threadLocal = new ThreadLocal<ByteBuffer>() {
         @Override
         protected ByteBuffer initialValue() {
-            return new ByteBuffer();
+            return new ByteBuffer(BufferPool.getInstance());
         }
     };
-	private byte [] buffer = new byte[0];
+	private static final ThreadLocal<ByteBuffer> bound = new ThreadLocal<ByteBuffer>();
+	private final BufferPool pool;
+	private final BufferMeter meter = new BufferMeter();
+	private byte [] buffer = EMPTY;
+	private long lastLargeUse;
 
-	private ByteBuffer() { /*empty*/ }
+	public ByteBuffer(BufferPool pool) {
+		this.pool = pool;
+	}
 
+	/**
+	 * @return buffer bound to the current thread, or the thread's own one when there is no bound
+	 */
 	public static ByteBuffer getInstance() {
-		return threadLocal.get();
+		final ByteBuffer buffer = bound.get();
+		return buffer != null ? buffer : threadLocal.get();
 	}
 
+	/**
+	 * Release the current thread's own buffer
+	 */
     public static void removeInstance() {
+        threadLocal.get().release();
         threadLocal.remove();
     }
 
 	/**
-	 * Checks for buffer capacity is enougth ( &lt; length) and enlarge it if not
+	 * Make this buffer the current thread's one until {@link #unbind()}.
+	 * Buffer must be used by one thread at a time.
+	 */
+	public void bind() {
+		bound.set(this);
+	}
+
+	public void unbind() {
+		if (bound.get() == this) {
+			bound.remove();
+		}
+	}
+
+	/**
+	 * Checks for buffer capacity is enougth ( &lt; length) and enlarge it if not,
+	 * shrinks buffer when its large capacity is not used for a while
 	 */
 	public void correctBufferCapacity(int length) {
-		// procondition: buffer != null
-		assert (buffer != null);
 		if (buffer.length < length) {
-			buffer = new byte[length];
+			replace(length);
+			lastLargeUse = System.nanoTime();
+		} else if (buffer.length > BufferPool.MIN_LENGTH) {
+			final long now = System.nanoTime();
+			if (length > buffer.length / 2) {
+				lastLargeUse = now;
+			} else if (now - lastLargeUse > SHRINK_IDLE_NANOS) {
+				replace(length);
+				lastLargeUse = now;
+			}
 		}
 	}
 
+	private void replace(int length) {
+		release();
+		buffer = pool.acquire(length);
+		meter.allocated(buffer.length);
+	}
+
 	public byte[] getBuffer(int length) {
 		correctBufferCapacity(length);
 		return buffer;
 	}
 
+	/**
+	 * Enlarge buffer to length keeping its first bytes, unlike {@link #getBuffer(int)}
+	 *
+	 * @param keep number of buffer bytes to copy into enlarged one
+	 */
+	public byte[] growBuffer(int length, int keep) {
+		if (buffer.length < length) {
+			final byte[] grown = pool.acquire(length);
+			System.arraycopy(buffer, 0, grown, 0, keep);
+			release();
+			buffer = grown;
+			meter.allocated(buffer.length);
+			lastLargeUse = System.nanoTime();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Return buffer array into pool, buffer gets new one when requested next time
+	 */
+	public void release() {
+		if (buffer.length > 0) {
+			meter.freed(buffer.length);
+			pool.release(buffer);
+			buffer = EMPTY;
+		}
+	}
+
+	/**
+	 * @return meter of the buffer bytes: currently held, peak and acquired in total
+	 */
+	public BufferMeter getMeter() {
+		return meter;
+	}
+
 }
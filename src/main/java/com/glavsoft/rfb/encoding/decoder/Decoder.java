@@ -40,4 +40,17 @@ public abstract class Decoder {
 	 */
     public void reset() { /*empty*/ }
 
+	/**
+	 * @return true when decoded rectangles may be not drawn until {@link #commit()} is called
+	 */
+	public boolean isPipelined() {
+		return false;
+	}
+
+	/**
+	 * Draw rectangles decoded but not drawn yet, in order they were decoded.
+	 * Call before rectangles are decoded with other decoder and before framebuffer update completes.
+	 */
+	public void commit() throws TransportException { /*empty*/ }
+
 }
\ No newline at end of file
@@ -0,0 +1,55 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.encoding.decoder;
+
+/**
+ * Service provider interface for plugging decoders in without changing {@link com.glavsoft.rfb.encoding.EncodingType}.
+ * Providers are found with {@link java.util.ServiceLoader}, list implementation class names in
+ * META-INF/services/com.glavsoft.rfb.encoding.decoder.DecoderProvider resource.
+ *
+ * Provider of encoding id known to EncodingType replaces built in decoder, decoders of other ids are
+ * registered additionally and requested from server after built in ones.
+ * Note: session engine frames messages before decoding and knows built in encodings only,
+ * so provided decoders of new encodings work with blocking receiver.
+ */
+public interface DecoderProvider {
+
+	/**
+	 * @return encoding (or pseudo encoding) id as sent in SetEncodings and rectangle headers
+	 */
+	int getEncodingId();
+
+	String getName();
+
+	/**
+	 * @return true for pseudo encoding, which rectangle is not framebuffer area to repaint
+	 */
+	boolean isPseudoEncoding();
+
+	/**
+	 * @return new decoder instance, one per protocol session
+	 */
+	Decoder createDecoder();
+
+}
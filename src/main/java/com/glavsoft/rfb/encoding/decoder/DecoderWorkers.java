@@ -0,0 +1,110 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.encoding.decoder;
+
+import com.glavsoft.exceptions.TransportException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+/**
+ * Worker threads shared by pipelined decoders of all the sessions, for decoding tasks
+ * which may run in parallel with receiver thread (ex. zlib streams inflation, jpeg images decoding)
+ * and for splitting large rectangles decoding into parallel parts (fork-join tasks).
+ * Worker threads are daemons.
+ */
+class DecoderWorkers {
+	public static final String THREADS_PROPERTY = "com.glavsoft.rfb.encoding.decoderThreads";
+	private static final ForkJoinPool workers = new ForkJoinPool(
+			Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+			new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				@Override
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+					final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					thread.setName("DecoderWorker-" + thread.getPoolIndex());
+					return thread;
+				}
+			}, null, false);
+
+	private DecoderWorkers() { /*empty*/ }
+
+	static void execute(Runnable task) {
+		workers.execute(task);
+	}
+
+	static <T> Future<T> submit(Callable<T> task) {
+		return workers.submit(task);
+	}
+
+	/**
+	 * Run fork-join task at workers and wait for its completion
+	 */
+	static <T> T invoke(ForkJoinTask<T> task) {
+		return workers.invoke(task);
+	}
+
+	/**
+	 * Wait for task completion ignoring its result or failure, interrupt does not stop waiting but is kept
+	 */
+	static void await(Future<?> result) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				result.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				break;
+			} catch (CancellationException e) {
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait for task result
+	 */
+	static <T> T get(Future<T> result) throws TransportException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransportException("Interrupted while decoding data", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TransportException) {
+				throw (TransportException) e.getCause();
+			}
+			throw new TransportException("Cannot decode data", e.getCause());
+		}
+	}
+}
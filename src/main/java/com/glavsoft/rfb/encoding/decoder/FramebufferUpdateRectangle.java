@@ -41,6 +41,7 @@ public class FramebufferUpdateRectangle {
 	public int y;
 	public int width;
 	public int height;
+    private int encodingId;
     private EncodingType encodingType;
 
 	public FramebufferUpdateRectangle() {
@@ -57,10 +58,18 @@ public class FramebufferUpdateRectangle {
         y = transport.readUInt16();
         width = transport.readUInt16();
         height = transport.readUInt16();
-        int encoding = transport.readInt32();
-		encodingType = EncodingType.byId(encoding);
+        encodingId = transport.readInt32();
+		encodingType = EncodingType.find(encodingId);
     }
 
+	public int getEncodingId() {
+		return encodingId;
+	}
+
+	/**
+	 * @return encoding type of the rectangle, null for encodings {@link EncodingType} does not know
+	 * (ex. ones of {@link DecoderProvider} decoders)
+	 */
 	public EncodingType getEncodingType() {
 		return encodingType;
 	}
@@ -69,7 +78,7 @@ public class FramebufferUpdateRectangle {
 	public String toString() {
 		return "FramebufferUpdateRect: [x: " + x + ", y: " + y +
 			", width: " + width + ", height: " + height +
-			", encodingType: " + encodingType +
+			", encodingType: " + (encodingType != null ? encodingType : String.valueOf(encodingId)) +
 			"]";
 	}
 
@@ -37,12 +37,22 @@ public class HextileDecoder extends Decoder {
 	private static final int SUBRECTS_COLOURED_MASK = 16;
 	private static final int FG_COLOR_INDEX = 0;
 	private static final int BG_COLOR_INDEX = 1;
+	private static final int MAX_SUBRECTS = 255;
+	private final int[] colors = new int[2];
+	/**
+	 * Tile data read at once: background, foreground and subrects number, then subrects
+	 */
+	private final byte[] tileData = new byte[MAX_SUBRECTS * (4 + 2)];
+	/**
+	 * Tile background and subrects to fill at once, see {@link Renderer#fillRects}
+	 */
+	private final int[] fills = new int[(1 + MAX_SUBRECTS) * 5];
 
 	@Override
 	public void decode(Transport transport, Renderer renderer,
 			FramebufferUpdateRectangle rect) throws TransportException {
 		if (rect.width == 0  || rect.height == 0) return;
-		int[] colors = new int[] {-1, -1};
+		colors[FG_COLOR_INDEX] = colors[BG_COLOR_INDEX] = -1;
 		int maxX = rect.x + rect.width;
 		int maxY = rect.y + rect.height;
 		for (int tileY = rect.y; tileY < maxY;
@@ -68,36 +78,53 @@ public class HextileDecoder extends Decoder {
 					tileX, tileY, tileWidth, tileHeight);
 			return;
 		}
-
-		if ((subencoding & BACKGROUND_SPECIFIED_MASK) != 0) {
-			colors[BG_COLOR_INDEX] = renderer.readPixelColor(transport);
+		int bytesPerPixel = renderer.getBytesPerPixel();
+		boolean backgroundSpecified = (subencoding & BACKGROUND_SPECIFIED_MASK) != 0;
+		boolean foregroundSpecified = (subencoding & FOREGROUND_SPECIFIED_MASK) != 0;
+		boolean anySubrects = (subencoding & ANY_SUBRECTS_MASK) != 0;
+		transport.readBytes(tileData, 0, (backgroundSpecified ? bytesPerPixel : 0) +
+				(foregroundSpecified ? bytesPerPixel : 0) + (anySubrects ? 1 : 0));
+		int offset = 0;
+		if (backgroundSpecified) {
+			colors[BG_COLOR_INDEX] = renderer.getPixelColor(tileData, offset);
+			offset += bytesPerPixel;
         }
-		renderer.fillRect(colors[BG_COLOR_INDEX],
-				tileX, tileY, tileWidth, tileHeight);
-
-		if ((subencoding & FOREGROUND_SPECIFIED_MASK) != 0) {
-			colors[FG_COLOR_INDEX] = renderer.readPixelColor(transport);
+		if (foregroundSpecified) {
+			colors[FG_COLOR_INDEX] = renderer.getPixelColor(tileData, offset);
+			offset += bytesPerPixel;
 		}
+		int count = fill(0, colors[BG_COLOR_INDEX], tileX, tileY, tileWidth, tileHeight);
 
-		if ((subencoding & ANY_SUBRECTS_MASK) == 0)
-			return;
-
-		int numberOfSubrectangles = transport.readUInt8();
-        boolean colorSpecified = (subencoding & SUBRECTS_COLOURED_MASK) != 0;
-		for (int i = 0; i < numberOfSubrectangles; ++i) {
-            int color = colorSpecified ? renderer.readPixelColor(transport) : colors[FG_COLOR_INDEX];
-            colors[FG_COLOR_INDEX] = color;
-            byte dimensions = transport.readByte(); // bits 7-4 for x, bits 3-0 for y
-            int subtileX = dimensions >> 4 & 0x0f;
-			int subtileY = dimensions & 0x0f;
-			dimensions = transport.readByte(); // bits 7-4 for w, bits 3-0 for h
-            int subtileWidth = 1 + (dimensions >> 4 & 0x0f);
-			int subtileHeight = 1 + (dimensions & 0x0f);
-            renderer.fillRect(color,
-					tileX + subtileX, tileY + subtileY,
-					subtileWidth, subtileHeight);
+		if (anySubrects) {
+			int numberOfSubrectangles = tileData[offset] & 0xff;
+			boolean colorSpecified = (subencoding & SUBRECTS_COLOURED_MASK) != 0;
+			transport.readBytes(tileData, 0,
+					numberOfSubrectangles * (colorSpecified ? bytesPerPixel + 2 : 2));
+			offset = 0;
+			for (int i = 0; i < numberOfSubrectangles; ++i) {
+				if (colorSpecified) {
+					colors[FG_COLOR_INDEX] = renderer.getPixelColor(tileData, offset);
+					offset += bytesPerPixel;
+				}
+				byte dimensions = tileData[offset++]; // bits 7-4 for x, bits 3-0 for y
+				int subtileX = dimensions >> 4 & 0x0f;
+				int subtileY = dimensions & 0x0f;
+				dimensions = tileData[offset++]; // bits 7-4 for w, bits 3-0 for h
+				count = fill(count, colors[FG_COLOR_INDEX], tileX + subtileX, tileY + subtileY,
+						1 + (dimensions >> 4 & 0x0f), 1 + (dimensions & 0x0f));
+			}
 		}
+		renderer.fillRects(fills, count);
 	}
 
+	private int fill(int index, int color, int x, int y, int width, int height) {
+		int i = index * 5;
+		fills[i] = color;
+		fills[i + 1] = x;
+		fills[i + 2] = y;
+		fills[i + 3] = width;
+		fills[i + 4] = height;
+		return index + 1;
+	}
 
 }
@@ -0,0 +1,143 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.encoding.decoder;
+
+import com.glavsoft.exceptions.TransportException;
+import com.glavsoft.transport.ByteArrayTransport;
+import com.glavsoft.transport.InflaterTransport;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates Tight zlib streams at {@link DecoderWorkers} while receiver reads next rectangles.
+ * Data blocks of the same stream are inflated one by one in order they were submitted,
+ * blocks of different streams are inflated in parallel.
+ */
+class InflaterPipeline {
+	private final Stream[] streams;
+
+	InflaterPipeline(int streamsCount) {
+		streams = new Stream[streamsCount];
+		for (int i = 0; i < streamsCount; ++i) {
+			streams[i] = new Stream();
+		}
+	}
+
+	/**
+	 * Submit compressed data block for inflation after all the blocks of the stream submitted before
+	 *
+	 * @param streamId zlib stream number
+	 * @param inflater inflater of the stream
+	 * @param compressed array of compressed data block, must not be changed until inflated
+	 * @param compressedLength compressed data block length
+	 * @param data array to inflate data into
+	 * @param length expected (uncompressed) data length
+	 * @return future of inflated data array
+	 */
+	Future<byte[]> inflate(int streamId, final Inflater inflater, final byte[] compressed, final int compressedLength,
+			final byte[] data, final int length) {
+		final Stream stream = streams[streamId];
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws TransportException {
+				InflaterTransport inflaterTransport = stream.inflaterTransport;
+				inflaterTransport.begin(stream.source.wrap(compressed, 0, compressedLength), inflater, compressedLength);
+				try {
+					inflaterTransport.readBytes(data, 0, length);
+				} finally {
+					inflaterTransport.end();
+				}
+				return data;
+			}
+		});
+		stream.execute(task);
+		return task;
+	}
+
+	/**
+	 * Reset inflater after all the blocks of the stream submitted before are inflated
+	 */
+	void reset(int streamId, final Inflater inflater) {
+		streams[streamId].execute(new Runnable() {
+			@Override
+			public void run() {
+				inflater.reset();
+			}
+		});
+	}
+
+	/**
+	 * Wait until all the tasks of all the streams submitted before are done, so their inflaters are not used anymore
+	 */
+	void await() {
+		for (Stream stream : streams) {
+			FutureTask<Void> barrier = new FutureTask<Void>(new Runnable() {
+				@Override
+				public void run() { /*empty*/ }
+			}, null);
+			stream.execute(barrier);
+			DecoderWorkers.await(barrier);
+		}
+	}
+
+	/**
+	 * Executes stream tasks one by one at decoder workers
+	 */
+	private static class Stream implements Executor, Runnable {
+		private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+		private boolean running;
+		final InflaterTransport inflaterTransport = new InflaterTransport();
+		final ByteArrayTransport source = new ByteArrayTransport();
+
+		@Override
+		public synchronized void execute(Runnable task) {
+			tasks.add(task);
+			if ( ! running) {
+				running = true;
+				DecoderWorkers.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Runnable task;
+				synchronized (this) {
+					task = tasks.poll();
+					if (null == task) {
+						running = false;
+						return;
+					}
+				}
+				task.run();
+			}
+		}
+	}
+}
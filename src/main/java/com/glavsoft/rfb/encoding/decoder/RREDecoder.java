@@ -27,7 +27,34 @@ import com.glavsoft.drawing.Renderer;
 import com.glavsoft.exceptions.TransportException;
 import com.glavsoft.transport.Transport;
 
+/**
+ * RRE decoder. Subrectangles are read, parsed and filled by batches.
+ * Also decodes CoRRE with one byte subrectangle coordinates, see {@link CoRREDecoder}.
+ */
 public class RREDecoder extends Decoder {
+	/**
+	 * Max number of subrectangles read and filled at once
+	 */
+	private static final int SUBRECTS_BATCH = 1024;
+	private final int coordinateSize;
+	private final byte[] subrectsData;
+	/**
+	 * Subrects to fill at once, see {@link Renderer#fillRects}
+	 */
+	private final int[] fills = new int[SUBRECTS_BATCH * 5];
+
+	public RREDecoder() {
+		this(2);
+	}
+
+	/**
+	 * @param coordinateSize size of subrectangle x, y, width and height values in bytes:
+	 *                       2 for RRE, 1 for CoRRE
+	 */
+	protected RREDecoder(int coordinateSize) {
+		this.coordinateSize = coordinateSize;
+		subrectsData = new byte[SUBRECTS_BATCH * (4 + 4 * coordinateSize)];
+	}
 
 	@Override
 	public void decode(Transport transport, Renderer renderer,
@@ -35,15 +62,31 @@ public class RREDecoder extends Decoder {
 		int numOfSubrectangles = transport.readInt32();
 		int color = renderer.readPixelColor(transport);
 		renderer.fillRect(color, rect);
-		for (int i = 0; i < numOfSubrectangles; ++i) {
-			color = renderer.readPixelColor(transport);
-			int x = transport.readUInt16();
-			int y = transport.readUInt16();
-			int width = transport.readUInt16();
-			int height = transport.readUInt16();
-			renderer.fillRect(color, rect.x + x, rect.y + y, width, height);
+		final int bytesPerPixel = renderer.getBytesPerPixel();
+		final int subrectLength = bytesPerPixel + 4 * coordinateSize;
+		while (numOfSubrectangles > 0) {
+			int batch = Math.min(numOfSubrectangles, SUBRECTS_BATCH);
+			transport.readBytes(subrectsData, 0, batch * subrectLength);
+			for (int i = 0, offset = 0, f = 0; i < batch; ++i, f += 5) {
+				fills[f] = renderer.getPixelColor(subrectsData, offset);
+				offset += bytesPerPixel;
+				if (2 == coordinateSize) {
+					fills[f + 1] = rect.x + ((subrectsData[offset] & 0xff) << 8 | subrectsData[offset + 1] & 0xff);
+					fills[f + 2] = rect.y + ((subrectsData[offset + 2] & 0xff) << 8 | subrectsData[offset + 3] & 0xff);
+					fills[f + 3] = (subrectsData[offset + 4] & 0xff) << 8 | subrectsData[offset + 5] & 0xff;
+					fills[f + 4] = (subrectsData[offset + 6] & 0xff) << 8 | subrectsData[offset + 7] & 0xff;
+					offset += 8;
+				} else {
+					fills[f + 1] = rect.x + (subrectsData[offset] & 0xff);
+					fills[f + 2] = rect.y + (subrectsData[offset + 1] & 0xff);
+					fills[f + 3] = subrectsData[offset + 2] & 0xff;
+					fills[f + 4] = subrectsData[offset + 3] & 0xff;
+					offset += 4;
+				}
+			}
+			renderer.fillRects(fills, batch);
+			numOfSubrectangles -= batch;
 		}
-
 	}
 
 }
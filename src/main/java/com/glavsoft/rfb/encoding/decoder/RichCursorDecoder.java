@@ -31,6 +31,8 @@ import com.glavsoft.transport.Transport;
  * Decoder for RichCursor pseudo encoding
  */
 public class RichCursorDecoder extends Decoder {
+	private byte[] bitmask = new byte[0];
+	private int[] cursorPixels = new int[0];
 
 	@Override
 	public void decode(Transport transport, Renderer renderer,
@@ -42,23 +44,22 @@ public class RichCursorDecoder extends Decoder {
 		byte[] buffer = ByteBuffer.getInstance().getBuffer(length);
 		transport.readBytes(buffer, 0, length);
 
-		StringBuilder sb = new StringBuilder(" ");
-		for (int i=0; i<length; ++i) {
-			sb.append(Integer.toHexString(buffer[i]&0xff)).append(" ");
-		}
 		int scanLine = (rect.width + 7) / 8;
-		byte[] bitmask = new byte[scanLine * rect.height];
-		transport.readBytes(bitmask, 0, bitmask.length);
+		int maskLength = scanLine * rect.height;
+		if (bitmask.length < maskLength) {
+			bitmask = new byte[maskLength];
+		}
+		transport.readBytes(bitmask, 0, maskLength);
 
-		sb = new StringBuilder(" ");
-        for (byte aBitmask : bitmask) {
-            sb.append(Integer.toHexString(aBitmask & 0xff)).append(" ");
-        }
-		int[] cursorPixels = new int[rect.width * rect.height];
+		int pixelsCount = rect.width * rect.height;
+		if (cursorPixels.length < pixelsCount) {
+			cursorPixels = new int[pixelsCount];
+		}
+		int offset = 0;
 		for (int y = 0; y < rect.height; ++y) {
-			for (int x = 0; x < rect.width; ++x) {
-				int offset = y * rect.width + x;
-				cursorPixels[offset] = isBitSet(bitmask[y * scanLine + x / 8], x % 8) ?
+			int maskOffset = y * scanLine;
+			for (int x = 0; x < rect.width; ++x, ++offset) {
+				cursorPixels[offset] = (bitmask[maskOffset + (x >> 3)] & 0x80 >> (x & 7)) != 0 ?
 					0xFF000000 | renderer.getPixelColor(buffer, offset * bytesPerPixel) :
 					0; // transparent
 			}
@@ -66,8 +67,4 @@ public class RichCursorDecoder extends Decoder {
 		renderer.createCursor(cursorPixels, rect);
 	}
 
-	private boolean isBitSet(byte aByte, int index) {
-		return (aByte & 1 << 7 - index) > 0;
-	}
-
 }
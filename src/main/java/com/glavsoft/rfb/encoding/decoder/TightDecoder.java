@@ -23,20 +23,31 @@
 //
 package com.glavsoft.rfb.encoding.decoder;
 
-import com.glavsoft.drawing.ColorDecoder;
 import com.glavsoft.drawing.Renderer;
 import com.glavsoft.exceptions.TransportException;
+import com.glavsoft.transport.BufferPool;
+import com.glavsoft.transport.InflaterTransport;
 import com.glavsoft.transport.Transport;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
-import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 /**
  * Tight protocol extention decoder
+ *
+ * In pipelined mode zlib streams are inflated (see {@link InflaterPipeline}) and jpeg images are decoded
+ * at worker threads while receiver reads next rectangles, and rectangles are drawn on {@link #commit()}
+ * in order they were received, or as soon as {@link #MAX_QUEUED_BYTES} of their data is queued.
+ * Rectangles data arrays are taken from {@link BufferPool} and returned there when drawn.
  */
 public class TightDecoder extends Decoder {
 	private static Logger logger = Logger.getLogger("com.glavsoft.rfb.encoding.decoder");
+	public static final String PIPELINED_PROPERTY = "com.glavsoft.rfb.encoding.tight.pipelined";
 
     private static final int FILL_TYPE = 0x08;
     private static final int JPEG_TYPE = 0x09;
@@ -50,12 +61,33 @@ public class TightDecoder extends Decoder {
     private static final int MIN_SIZE_TO_COMPRESS = 12;
 
     static final int DECODERS_NUM = 4;
+    /**
+     * Max length of rectangles data (compressed and uncompressed) queued in pipelined mode before they are drawn
+     */
+    static final int MAX_QUEUED_BYTES = 16 * 1024 * 1024;
 	Inflater[] decoders;
 
     private int decoderId;
     private int[] palette;
+    /**
+     * Previous row intensities for gradient filter, reused from rect to rect
+     */
+    private int[] gradientRow;
+    private final InflaterTransport inflaterTransport = new InflaterTransport();
+    private final FramebufferUpdateRectangle band = new FramebufferUpdateRectangle();
+    private final InflaterPipeline pipeline;
+    private final Queue<Pending> pending;
+    private final Queue<Pending> spare;
+    private int queuedBytes;
 
     public TightDecoder() {
+		this(Boolean.getBoolean(PIPELINED_PROPERTY));
+	}
+
+    public TightDecoder(boolean pipelined) {
+		pipeline = pipelined ? new InflaterPipeline(DECODERS_NUM) : null;
+		pending = pipelined ? new ArrayDeque<Pending>() : null;
+		spare = pipelined ? new ArrayDeque<Pending>() : null;
 		reset();
 	}
 
@@ -83,7 +115,13 @@ public class TightDecoder extends Decoder {
 		switch (compType) {
 		case FILL_TYPE:
 			int color = renderer.readTightPixelColor(transport);
-			renderer.fillRect(color, rect);
+			if (pipeline != null) {
+				Pending fill = obtainPending(FILL_TYPE, renderer, rect);
+				fill.color = color;
+				queue(fill, 0);
+			} else {
+				renderer.fillRect(color, rect);
+			}
 			break;
 		case JPEG_TYPE:
             assert 3 == bytesPerPixel : "Tight doesn't support JPEG subencoding while depth not equal to 24bpp is used";
@@ -91,7 +129,11 @@ public class TightDecoder extends Decoder {
 			break;
 		default:
 			assert compType <= JPEG_TYPE : "Compression control byte is incorrect!";
-			processBasicType(compControl, transport, renderer, rect);
+			if (pipeline != null) {
+				queueBasicType(compControl, transport, renderer, rect);
+			} else {
+				processBasicType(compControl, transport, renderer, rect);
+			}
 		}
 	}
 
@@ -105,21 +147,40 @@ public class TightDecoder extends Decoder {
 		}
 		int bytesPerCPixel = renderer.getBytesPerPixelTight();
 		int lengthCurrentbpp = bytesPerCPixel * rect.width * rect.height;
+		int maxY = rect.y + rect.height;
 		byte [] buffer;
+		Transport data;
 		switch (filterId) {
-		case BASIC_FILTER:
-			buffer = readTightData(lengthCurrentbpp, transport);
-			renderer.drawTightBytes(buffer, 0, rect.x, rect.y, rect.width, rect.height);
+		case BASIC_FILTER: {
+			data = openTightData(lengthCurrentbpp, transport);
+			int rowLength = bytesPerCPixel * rect.width;
+			int bandHeight = bandHeight(rowLength);
+			for (int y = rect.y; y < maxY; y += bandHeight) {
+				int rows = Math.min(bandHeight, maxY - y);
+				buffer = ByteBuffer.getInstance().getBuffer(rows * rowLength);
+				data.readBytes(buffer, 0, rows * rowLength);
+				renderer.drawTightBytes(buffer, 0, rect.x, y, rect.width, rows);
+			}
+			closeTightData(data);
 			break;
-		case PALETTE_FILTER:
+		}
+		case PALETTE_FILTER: {
 			int paletteSize = transport.readUInt8() + 1;
             completePalette(paletteSize, transport, renderer);
-			int dataLength = paletteSize == 2 ?
-				rect.height * ((rect.width + 7) / 8) :
-				rect.width * rect.height;
-			buffer = readTightData(dataLength, transport);
-			renderer.drawBytesWithPalette(buffer, rect, palette, paletteSize);
+			int rowLength = paletteSize == 2 ? (rect.width + 7) / 8 : rect.width;
+			data = openTightData(rowLength * rect.height, transport);
+			int bandHeight = bandHeight(rowLength);
+			for (int y = rect.y; y < maxY; y += bandHeight) {
+				int rows = Math.min(bandHeight, maxY - y);
+				buffer = ByteBuffer.getInstance().getBuffer(rows * rowLength);
+				data.readBytes(buffer, 0, rows * rowLength);
+				band.x = rect.x; band.y = y;
+				band.width = rect.width; band.height = rows;
+				renderer.drawBytesWithPalette(buffer, band, palette, paletteSize);
+			}
+			closeTightData(data);
 			break;
+		}
 		case GRADIENT_FILTER:
 /*
  * The "gradient" filter pre-processes pixel data with a simple algorithm
@@ -136,42 +197,166 @@ public class TightDecoder extends Decoder {
  * Here V[i,j] is the intensity of a color component for a pixel at
  * coordinates (i,j). MAX is the maximum value of intensity for a color
  * component.*/
-			buffer = readTightData(bytesPerCPixel * rect.width * rect.height, transport);
-			byte [][] opRows = new byte[2][rect.width * 3 + 3];
-			int opRowIndex = 0;
-			byte [] components = new byte[3];
-			int pixelOffset = 0;
-			ColorDecoder colorDecoder = renderer.getColorDecoder();
-			for (int i = 0; i < rect.height; ++i) {
-				// exchange thisRow and prevRow:
-				byte [] thisRow = opRows[opRowIndex];
-				byte [] prevRow = opRows[opRowIndex = (opRowIndex + 1) % 2];
-				for (int j = 3; j < rect.width * 3 + 3; j += 3) {
-					colorDecoder.fillRawComponents(components, buffer, pixelOffset);
-					pixelOffset += bytesPerCPixel;
-					int
-					d = (0xff & prevRow[j + 0]) + // "upper" pixel (from prev row)
-						(0xff & thisRow[j + 0 - 3]) - // prev pixel
-						(0xff & prevRow[j + 0 - 3]); // "diagonal" prev pixel
-					thisRow[j + 0] = (byte) (components[0] + (d < 0 ? 0 : d > colorDecoder.redMax ? colorDecoder.redMax: d) & colorDecoder.redMax);
-					d = (0xff & prevRow[j + 1]) +
-						(0xff & thisRow[j + 1 - 3]) -
-						(0xff & prevRow[j + 1 - 3]);
-					thisRow[j + 1] = (byte) (components[1] + (d < 0 ? 0 : d > colorDecoder.greenMax ? colorDecoder.greenMax: d) & colorDecoder.greenMax);
-					d = (0xff & prevRow[j + 2]) +
-						(0xff & thisRow[j + 2 - 3]) -
-						(0xff & prevRow[j + 2 - 3]);
-					thisRow[j + 2] = (byte) (components[2] + (d < 0 ? 0 : d > colorDecoder.blueMax ? colorDecoder.blueMax: d) & colorDecoder.blueMax);
-				}
-				renderer.drawUncaliberedRGBLine(thisRow, rect.x, rect.y + i, rect.width);
+			data = openTightData(lengthCurrentbpp, transport);
+			int rowLength = bytesPerCPixel * rect.width;
+			int bandHeight = bandHeight(rowLength);
+			if (null == gradientRow || gradientRow.length < rect.width) {
+				gradientRow = new int[rect.width];
+			} else {
+				Arrays.fill(gradientRow, 0, rect.width, 0);
 			}
-
+			for (int y = rect.y; y < maxY; y += bandHeight) {
+				int rows = Math.min(bandHeight, maxY - y);
+				buffer = ByteBuffer.getInstance().getBuffer(rows * rowLength);
+				data.readBytes(buffer, 0, rows * rowLength);
+				renderer.drawTightGradientBytes(buffer, 0, rect.x, y, rect.width, rows, gradientRow);
+			}
+			closeTightData(data);
 			break;
 		default:
 			break;
 		}
 	}
 
+	/**
+	 * Read basic type rectangle data and queue it for drawing at {@link #commit()},
+	 * compressed data is inflated at stream worker meanwhile
+	 */
+	private void queueBasicType(int compControl, Transport transport,
+			Renderer renderer, FramebufferUpdateRectangle rect) throws TransportException {
+		decoderId = (compControl & STREAM_ID_MASK) >> 4;
+
+		int filterId = 0;
+		if ((compControl & FILTER_ID_MASK) > 0) { // filter byte presence
+			filterId = transport.readUInt8();
+		}
+		if (filterId > GRADIENT_FILTER) return;
+		Pending basic = obtainPending(filterId, renderer, rect);
+		int expectedLength = renderer.getBytesPerPixelTight() * rect.width * rect.height;
+		if (PALETTE_FILTER == filterId) {
+			basic.paletteSize = transport.readUInt8() + 1;
+			completePalette(basic.paletteSize, transport, renderer);
+			if (null == basic.palette) {
+				basic.palette = new int[256];
+			}
+			System.arraycopy(palette, 0, basic.palette, 0, basic.paletteSize);
+			expectedLength = (basic.paletteSize == 2 ? (rect.width + 7) / 8 : rect.width) * rect.height;
+		}
+		final BufferPool bufferPool = BufferPool.getInstance();
+		basic.data = bufferPool.acquire(expectedLength);
+		if (expectedLength < MIN_SIZE_TO_COMPRESS) {
+			transport.readBytes(basic.data, 0, expectedLength);
+			queue(basic, expectedLength);
+		} else {
+			int rawDataLength = readCompactSize(transport);
+			if (null == decoders[decoderId]) {
+				decoders[decoderId] = new Inflater();
+			}
+			basic.compressed = bufferPool.acquire(rawDataLength);
+			transport.readBytes(basic.compressed, 0, rawDataLength);
+			basic.inflated = pipeline.inflate(decoderId, decoders[decoderId],
+					basic.compressed, rawDataLength, basic.data, expectedLength);
+			queue(basic, rawDataLength + expectedLength);
+		}
+	}
+
+	/**
+	 * @return spare pending rectangle or new one
+	 */
+	private Pending obtainPending(int type, Renderer renderer, FramebufferUpdateRectangle rect) {
+		Pending p = spare.poll();
+		if (null == p) {
+			p = new Pending();
+		}
+		p.type = type;
+		p.renderer = renderer;
+		p.rect.x = rect.x; p.rect.y = rect.y;
+		p.rect.width = rect.width; p.rect.height = rect.height;
+		return p;
+	}
+
+	/**
+	 * Queue rectangle for drawing, draw queued rectangles when too much data is queued already
+	 *
+	 * @param length length of rectangle data arrays in use
+	 */
+	private void queue(Pending p, int length) throws TransportException {
+		pending.add(p);
+		queuedBytes += length;
+		if (queuedBytes > MAX_QUEUED_BYTES) {
+			commit();
+		}
+	}
+
+	/**
+	 * Return rectangle data arrays into pool and keep the pending rectangle for reuse
+	 */
+	private void recycle(Pending p) {
+		final BufferPool bufferPool = BufferPool.getInstance();
+		bufferPool.release(p.data);
+		bufferPool.release(p.compressed);
+		p.data = null;
+		p.compressed = null;
+		p.inflated = null;
+		p.image = null;
+		p.renderer = null;
+		spare.add(p);
+	}
+
+	@Override
+	public boolean isPipelined() {
+		return pipeline != null;
+	}
+
+	@Override
+	public void commit() throws TransportException {
+		if (null == pending) return;
+		Pending p;
+		while ((p = pending.peek()) != null) {
+			if (p.inflated != null) {
+				DecoderWorkers.get(p.inflated);
+			}
+			byte[] data = p.data;
+			FramebufferUpdateRectangle rect = p.rect;
+			switch (p.type) {
+			case FILL_TYPE:
+				p.renderer.fillRect(p.color, rect);
+				break;
+			case JPEG_TYPE:
+				int[] image = DecoderWorkers.get(p.image);
+				if (image != null) {
+					p.renderer.drawColoredBitmap(image, rect.x, rect.y, rect.width, rect.height);
+				} else {
+					p.renderer.drawJpegImage(data, 0, p.length, rect);
+				}
+				break;
+			case BASIC_FILTER:
+				p.renderer.drawTightBytes(data, 0, rect.x, rect.y, rect.width, rect.height);
+				break;
+			case PALETTE_FILTER:
+				p.renderer.drawBytesWithPalette(data, rect, p.palette, p.paletteSize);
+				break;
+			case GRADIENT_FILTER:
+				if (null == gradientRow || gradientRow.length < rect.width) {
+					gradientRow = new int[rect.width];
+				} else {
+					Arrays.fill(gradientRow, 0, rect.width, 0);
+				}
+				p.renderer.drawTightGradientBytes(data, 0, rect.x, rect.y, rect.width, rect.height, gradientRow);
+				break;
+			default:
+				break;
+			}
+			pending.poll();
+			recycle(p);
+		}
+		queuedBytes = 0;
+	}
+
+	private static int bandHeight(int rowLength) {
+		return Math.max(1, ZlibDecoder.BAND_SIZE / Math.max(1, rowLength));
+	}
+
 	/**
 	 * Complete palette from transport
 	 */
@@ -189,58 +374,47 @@ public class TightDecoder extends Decoder {
 	}
 
 	/**
-	 * Reads compressed (expected length >= MIN_SIZE_TO_COMPRESS) or
-	 * uncompressed data. When compressed decompresses it.
+	 * Opens compressed (expected length >= MIN_SIZE_TO_COMPRESS) or
+	 * uncompressed data for reading. Compressed data is inflated progressively while read.
+	 * Call {@link #closeTightData} when all the data is read.
 	 *
-	 * @param expectedLength expected data length in bytes
+	 * @param expectedLength expected (uncompressed) data length in bytes
 	 * @param transport data source
-	 * @return result data
+	 * @return transport to read uncompressed data from
 	 * @throws TransportException
 	 */
-	private byte[] readTightData(int expectedLength, Transport transport) throws TransportException {
+	private Transport openTightData(int expectedLength, Transport transport) throws TransportException {
 		if (expectedLength < MIN_SIZE_TO_COMPRESS) {
-			byte [] buffer = ByteBuffer.getInstance().getBuffer(expectedLength);
-			transport.readBytes(buffer, 0, expectedLength);
-			return buffer;
-		} else
-			return readCompressedData(expectedLength, transport);
-	}
-
-	/**
-	 * Reads compressed data length, then read compressed data into rawBuffer
-     * and decompress data with expected length == length
-     *
-     * Note: returned data contains not only decompressed data but raw data at array tail
-     * which need to be ignored. Use only first expectedLength bytes.
-     *
-	 * @param expectedLength expected data length
-	 * @param transport data source
-	 * @return decompressed data (length == expectedLength) / + followed raw data (ignore, please)
-	 * @throws TransportException
-	 */
-	private byte[] readCompressedData(int expectedLength, Transport transport) throws TransportException {
+			return transport;
+		}
 		int rawDataLength = readCompactSize(transport);
-
-		byte [] buffer = ByteBuffer.getInstance().getBuffer(expectedLength + rawDataLength);
-		// read compressed (raw) data behind space allocated for decompressed data
-		transport.readBytes(buffer, expectedLength, rawDataLength);
 		if (null == decoders[decoderId]) {
 			decoders[decoderId] = new Inflater();
 		}
-		Inflater decoder = decoders[decoderId];
-		decoder.setInput(buffer, expectedLength, rawDataLength);
-		try {
-			decoder.inflate(buffer, 0, expectedLength);
-		} catch (DataFormatException e) {
-			logger.throwing("TightDecoder", "readCompressedData", e);
-			throw new TransportException("cannot inflate tight compressed data", e);
+		return inflaterTransport.begin(transport, decoders[decoderId], rawDataLength);
+	}
+
+	/**
+	 * Consumes the rest of compressed data when data was compressed
+	 */
+	private void closeTightData(Transport data) throws TransportException {
+		if (data == inflaterTransport) {
+			inflaterTransport.end();
 		}
-		return buffer;
 	}
 
 	private void processJpegType(Transport transport, Renderer renderer,
 			FramebufferUpdateRectangle rect) throws TransportException {
 		int jpegBufferLength = readCompactSize(transport);
+		if (pipeline != null) {
+			Pending jpeg = obtainPending(JPEG_TYPE, renderer, rect);
+			jpeg.data = BufferPool.getInstance().acquire(jpegBufferLength);
+			jpeg.length = jpegBufferLength;
+			transport.readBytes(jpeg.data, 0, jpegBufferLength);
+			jpeg.image = DecoderWorkers.submit(jpeg);
+			queue(jpeg, jpegBufferLength);
+			return;
+		}
 		byte [] bytes = ByteBuffer.getInstance().getBuffer(jpegBufferLength);
 		transport.readBytes(bytes, 0, jpegBufferLength);
 		renderer.drawJpegImage(bytes, 0, jpegBufferLength, rect);
@@ -276,7 +450,11 @@ public class TightDecoder extends Decoder {
 	private void resetDecoders(int compControl) {
 		for (int i=0; i < DECODERS_NUM; ++i) {
 			if ((compControl & 1) != 0 && decoders[i] != null) {
-				decoders[i].reset();
+				if (pipeline != null) {
+					pipeline.reset(i, decoders[i]);
+				} else {
+					decoders[i].reset();
+				}
 			}
 			compControl >>= 1;
 		}
@@ -285,7 +463,52 @@ public class TightDecoder extends Decoder {
 
 	@Override
 	public void reset() {
+		if (pending != null) {
+			// worker tasks use pending rectangles data arrays and inflaters until they are done
+			Pending p;
+			while ((p = pending.poll()) != null) {
+				if (p.inflated != null) {
+					DecoderWorkers.await(p.inflated);
+				}
+				if (p.image != null) {
+					DecoderWorkers.await(p.image);
+				}
+				recycle(p);
+			}
+			queuedBytes = 0;
+			pipeline.await();
+		}
+		if (decoders != null) {
+			for (Inflater inflater : decoders) {
+				if (inflater != null) {
+					inflater.end();
+				}
+			}
+		}
 		decoders = new Inflater[DECODERS_NUM];
 	}
 
+	/**
+	 * Rectangle data waiting to be drawn at pipelined mode, reused for next rectangles when drawn.
+	 * Decodes jpeg image when called.
+	 */
+	private static class Pending implements Callable<int[]> {
+		int type; // FILL_TYPE, JPEG_TYPE or filter id
+		Renderer renderer;
+		final FramebufferUpdateRectangle rect = new FramebufferUpdateRectangle();
+		int color;
+		int[] palette;
+		int paletteSize;
+		byte[] data; // pooled, inflated data or jpeg image
+		int length; // jpeg image length
+		byte[] compressed; // pooled
+		Future<byte[]> inflated;
+		Future<int[]> image;
+
+		@Override
+		public int[] call() {
+			return renderer.decodeJpegImage(data, 0, length, rect.width, rect.height);
+		}
+	}
+
 }
@@ -0,0 +1,74 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.encoding.decoder;
+
+import com.glavsoft.drawing.Renderer;
+import com.glavsoft.exceptions.TransportException;
+import com.glavsoft.transport.Transport;
+
+/**
+ * Decoder for XCursor pseudo encoding: two colour cursor with foreground/background colours
+ * followed by bitmap and mask of the same (width + 7) / 8 * height size
+ */
+public class XCursorDecoder extends Decoder {
+	private byte[] bitmask = new byte[0];
+	private int[] cursorPixels = new int[0];
+
+	@Override
+	public void decode(Transport transport, Renderer renderer,
+			FramebufferUpdateRectangle rect) throws TransportException {
+		int pixelsCount = rect.width * rect.height;
+		if (0 == pixelsCount)
+			return;
+		byte[] colors = ByteBuffer.getInstance().getBuffer(6);
+		transport.readBytes(colors, 0, 6);
+		int foreground = 0xFF000000 | (colors[0] & 0xff) << 16 | (colors[1] & 0xff) << 8 | colors[2] & 0xff;
+		int background = 0xFF000000 | (colors[3] & 0xff) << 16 | (colors[4] & 0xff) << 8 | colors[5] & 0xff;
+
+		int scanLine = (rect.width + 7) / 8;
+		int maskLength = scanLine * rect.height;
+		if (bitmask.length < maskLength * 2) {
+			bitmask = new byte[maskLength * 2];
+		}
+		// bitmap goes first, then mask
+		transport.readBytes(bitmask, 0, maskLength * 2);
+
+		if (cursorPixels.length < pixelsCount) {
+			cursorPixels = new int[pixelsCount];
+		}
+		int offset = 0;
+		for (int y = 0; y < rect.height; ++y) {
+			int bitmapOffset = y * scanLine;
+			int maskOffset = maskLength + bitmapOffset;
+			for (int x = 0; x < rect.width; ++x, ++offset) {
+				int bit = 0x80 >> (x & 7);
+				cursorPixels[offset] = (bitmask[maskOffset + (x >> 3)] & bit) != 0 ?
+					((bitmask[bitmapOffset + (x >> 3)] & bit) != 0 ? foreground : background) :
+					0; // transparent
+			}
+		}
+		renderer.createCursor(cursorPixels, rect);
+	}
+
+}
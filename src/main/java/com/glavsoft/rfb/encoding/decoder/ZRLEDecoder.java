@@ -23,142 +23,389 @@
 //
 package com.glavsoft.rfb.encoding.decoder;
 
+import com.glavsoft.drawing.PaletteExpander;
+import com.glavsoft.drawing.PixelConverter;
 import com.glavsoft.drawing.Renderer;
 import com.glavsoft.exceptions.TransportException;
+import com.glavsoft.transport.InflaterTransport;
 import com.glavsoft.transport.Transport;
 
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ZRLE decoder.
+ *
+ * Tiles are decoded right at inflater window into framebuffer, which is locked for each tile decoding only,
+ * not while data is inflated. Rectangles of {@link #PARALLEL_THRESHOLD_PROPERTY} pixels and more are decoded
+ * in two passes: first tiles data is copied into session's {@link ByteBuffer} indexing tile offsets
+ * (tile length is found with quick scan of subencoding, palette and run lengths), then tiles are decoded
+ * in parallel at {@link DecoderWorkers}, while decoding thread holds framebuffer lock.
+ */
 public class ZRLEDecoder extends ZlibDecoder {
 	private static final int MAX_TILE_SIZE = 64;
-    private int[] decodedBitmap;
+	public static final String PARALLEL_THRESHOLD_PROPERTY = "com.glavsoft.rfb.encoding.zrle.parallelThreshold";
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 256 * 256;
+	/**
+	 * Max number of tiles decoded by one fork-join task
+	 */
+	private static final int TILES_PER_TASK = 4;
+	private static final ThreadLocal<int[]> tilePalettes = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[128];
+		}
+	};
+	private static final ThreadLocal<PaletteExpander> tileExpanders = new ThreadLocal<PaletteExpander>() {
+		@Override
+		protected PaletteExpander initialValue() {
+			return new PaletteExpander();
+		}
+	};
     private int[] palette;
+    private final PaletteExpander paletteExpander = new PaletteExpander();
+    private final int parallelThreshold;
+    private byte[] tilesData;
+    private int[] tileOffsets;
+
+	public ZRLEDecoder() {
+		this(Runtime.getRuntime().availableProcessors() > 1 ?
+				Integer.getInteger(PARALLEL_THRESHOLD_PROPERTY, DEFAULT_PARALLEL_THRESHOLD) : Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param parallelThreshold min rectangle size (in pixels) to decode tiles in parallel,
+	 *                          Integer.MAX_VALUE to decode all the rectangles sequentially
+	 */
+	public ZRLEDecoder(int parallelThreshold) {
+		this.parallelThreshold = parallelThreshold;
+	}
 
     @Override
 	public void decode(Transport transport, Renderer renderer,
 			FramebufferUpdateRectangle rect) throws TransportException {
 		int zippedLength = (int) transport.readUInt32();
 		if (0 == zippedLength) return;
-		int length = rect.width * rect.height * renderer.getBytesPerCPixel()
-                + (rect.width / MAX_TILE_SIZE + 1) * (rect.height / MAX_TILE_SIZE + 1);
-		byte[] bytes = unzip(transport, zippedLength, length);
-		int offset = zippedLength;
+		final int bytesPerCPixel = renderer.getBytesPerCPixel();
+		// the longest tile: subencoding, max palette, and RLE data with one length byte per pixel
+		final int maxTileDataLength = 1 + 127 * bytesPerCPixel + MAX_TILE_SIZE * MAX_TILE_SIZE * (bytesPerCPixel + 1);
+		InflaterTransport unzippedReader = beginInflate(transport, zippedLength);
+		final PixelConverter converter = renderer.getColorDecoder().compactConverter;
+		if ((long) rect.width * rect.height >= parallelThreshold) {
+			decodeParallel(unzippedReader, renderer, converter, rect, bytesPerCPixel, maxTileDataLength);
+			return;
+		}
+		if (null == palette) {
+			palette = new int[128];
+		}
 		int maxX = rect.x + rect.width;
 		int maxY = rect.y + rect.height;
-        if (null == palette) {
-            palette = new int [128];
-        }
-        if (null == decodedBitmap) {
-            decodedBitmap = new int[MAX_TILE_SIZE * MAX_TILE_SIZE];
-        }
 		for (int tileY = rect.y; tileY < maxY; tileY += MAX_TILE_SIZE) {
 			int tileHeight = Math.min(maxY - tileY, MAX_TILE_SIZE);
+			for (int tileX = rect.x; tileX < maxX; tileX += MAX_TILE_SIZE) {
+				int tileWidth = Math.min(maxX - tileX, MAX_TILE_SIZE);
+				// inflate just enough data for the next tile and decode it right at inflater window
+				unzippedReader.fillUpTo(maxTileDataLength);
+				int offset;
+				renderer.lockFramebuffer();
+				try {
+					final int stride = renderer.getWidth();
+					offset = decodeTile(unzippedReader.array(), unzippedReader.position(), converter,
+							palette, paletteExpander, renderer.getFramebuffer(), tileY * stride + tileX, stride,
+							tileWidth, tileHeight);
+				} finally {
+					renderer.unlockFramebuffer();
+				}
+				unzippedReader.position(offset);
+			}
+		}
+		endInflate();
+	}
 
+	/**
+	 * Index tiles of large rectangle into session's buffer, then decode them in parallel
+	 */
+	private void decodeParallel(InflaterTransport unzippedReader, Renderer renderer, PixelConverter converter,
+			FramebufferUpdateRectangle rect, int bytesPerCPixel, int maxTileDataLength) throws TransportException {
+		try {
+			int tilesCount = indexTiles(unzippedReader, ByteBuffer.getInstance(), rect, bytesPerCPixel,
+					maxTileDataLength);
+			endInflate();
+			int tilesX = (rect.width + MAX_TILE_SIZE - 1) / MAX_TILE_SIZE;
+			// framebuffer is not locked while data is read from transport, but for decoding only
+			renderer.lockFramebuffer();
+			try {
+				DecoderWorkers.invoke(new TilesTask(converter, renderer.getFramebuffer(), renderer.getWidth(), rect,
+						tilesX, 0, tilesCount));
+			} finally {
+				renderer.unlockFramebuffer();
+			}
+		} finally {
+			// buffer array belongs to the session's pool, do not hold it between rectangles
+			tilesData = null;
+		}
+	}
+
+	/**
+	 * Copy tiles data from inflater window to buffer indexing tile offsets
+	 *
+	 * @return number of tiles
+	 */
+	private int indexTiles(InflaterTransport unzippedReader, ByteBuffer buffer, FramebufferUpdateRectangle rect,
+			int bytesPerCPixel, int maxTileDataLength) throws TransportException {
+		int tilesX = (rect.width + MAX_TILE_SIZE - 1) / MAX_TILE_SIZE;
+		int tilesCount = tilesX * ((rect.height + MAX_TILE_SIZE - 1) / MAX_TILE_SIZE);
+		if (null == tileOffsets || tileOffsets.length < tilesCount) {
+			tileOffsets = new int[tilesCount];
+		}
+		tilesData = buffer.getBuffer(maxTileDataLength);
+		int maxX = rect.x + rect.width;
+		int maxY = rect.y + rect.height;
+		int dataLength = 0;
+		int tile = 0;
+		for (int tileY = rect.y; tileY < maxY; tileY += MAX_TILE_SIZE) {
+			int tileHeight = Math.min(maxY - tileY, MAX_TILE_SIZE);
 			for (int tileX = rect.x; tileX < maxX; tileX += MAX_TILE_SIZE) {
 				int tileWidth = Math.min(maxX - tileX, MAX_TILE_SIZE);
-				int subencoding = bytes[offset++] & 0x0ff;
-				// 128 -plain RLE, 130-255 - Palette RLE
-				boolean isRle = (subencoding & 128) != 0;
-				// 2 to 16 for raw packed palette data, 130 to 255 for Palette RLE (subencoding - 128)
-				int paletteSize = subencoding & 127;
-				offset += readPalette(bytes, offset, renderer, paletteSize);
-				if (1 == subencoding) { // A solid tile consisting of a single colour
-					renderer.fillRect(palette[0], tileX, tileY, tileWidth, tileHeight);
-					continue;
+				// inflate just enough data for the next tile and scan it right at inflater window
+				unzippedReader.fillUpTo(maxTileDataLength);
+				byte[] bytes = unzippedReader.array();
+				int offset = unzippedReader.position();
+				int length = tileDataLength(bytes, offset, bytesPerCPixel, tileWidth, tileHeight);
+				if (dataLength + length > tilesData.length) {
+					tilesData = buffer.growBuffer(Math.max(tilesData.length * 2, dataLength + length), dataLength);
 				}
-				if (isRle) {
-					if (0 == paletteSize) { // subencoding == 128 (or paletteSize == 0) - Plain RLE
-						offset += decodePlainRle(bytes, offset, renderer, tileX, tileY, tileWidth, tileHeight);
-					} else {
-						offset += decodePaletteRle(bytes, offset, renderer, tileX, tileY, tileWidth, tileHeight);
-					}
-				} else {
-					if (0 == paletteSize) { // subencoding == 0 (or paletteSize == 0) - raw CPIXEL data
-						offset += decodeRaw(bytes, offset, renderer, tileX, tileY, tileWidth, tileHeight);
-					} else {
-						offset += decodePacked(bytes, offset, renderer, paletteSize, tileX, tileY, tileWidth, tileHeight);
-					}
+				System.arraycopy(bytes, offset, tilesData, dataLength, length);
+				unzippedReader.position(offset + length);
+				tileOffsets[tile++] = dataLength;
+				dataLength += length;
+			}
+		}
+		return tilesCount;
+	}
+
+	/**
+	 * Decode indexed tiles [begin, end) of rectangle right into locked framebuffer
+	 */
+	private void decodeTiles(PixelConverter converter, int[] palette, PaletteExpander expander,
+			int[] framebuffer, int stride, FramebufferUpdateRectangle rect, int tilesX, int begin, int end) {
+		for (int tile = begin; tile < end; ++tile) {
+			int tileX = rect.x + tile % tilesX * MAX_TILE_SIZE;
+			int tileY = rect.y + tile / tilesX * MAX_TILE_SIZE;
+			decodeTile(tilesData, tileOffsets[tile], converter, palette, expander,
+					framebuffer, tileY * stride + tileX, stride,
+					Math.min(rect.x + rect.width - tileX, MAX_TILE_SIZE),
+					Math.min(rect.y + rect.height - tileY, MAX_TILE_SIZE));
+		}
+	}
+
+	/**
+	 * Decodes range of tiles indexed, splitting it into halves until range is small enough.
+	 * Tiles do not overlap, so tasks write into framebuffer locked by decoding thread without synchronization,
+	 * decoding thread sees their writes after the task is done.
+	 */
+	private class TilesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final PixelConverter converter;
+		private final int[] framebuffer;
+		private final int stride;
+		private final FramebufferUpdateRectangle rect;
+		private final int tilesX;
+		private final int begin;
+		private final int end;
+
+		TilesTask(PixelConverter converter, int[] framebuffer, int stride, FramebufferUpdateRectangle rect,
+				int tilesX, int begin, int end) {
+			this.converter = converter;
+			this.framebuffer = framebuffer;
+			this.stride = stride;
+			this.rect = rect;
+			this.tilesX = tilesX;
+			this.begin = begin;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - begin > TILES_PER_TASK) {
+				int middle = (begin + end) >>> 1;
+				invokeAll(new TilesTask(converter, framebuffer, stride, rect, tilesX, begin, middle),
+						new TilesTask(converter, framebuffer, stride, rect, tilesX, middle, end));
+				return;
+			}
+			decodeTiles(converter, tilePalettes.get(), tileExpanders.get(), framebuffer, stride, rect, tilesX,
+					begin, end);
+		}
+	}
+
+	/**
+	 * Decode tile right into framebuffer
+	 *
+	 * @param tileOffset offset of tile top left pixel in framebuffer
+	 * @param stride framebuffer width
+	 * @return offset of the next tile data
+	 */
+	private static int decodeTile(byte[] bytes, int offset, PixelConverter converter, int[] palette,
+			PaletteExpander expander, int[] pixels, int tileOffset, int stride, int tileWidth, int tileHeight) {
+		int subencoding = bytes[offset++] & 0x0ff;
+		// 128 -plain RLE, 130-255 - Palette RLE
+		boolean isRle = (subencoding & 128) != 0;
+		// 2 to 16 for raw packed palette data, 130 to 255 for Palette RLE (subencoding - 128)
+		int paletteSize = subencoding & 127;
+		offset += readPalette(bytes, offset, converter, palette, paletteSize);
+		if (1 == subencoding) { // A solid tile consisting of a single colour
+			for (int i = 0, row = tileOffset; i < tileHeight; ++i, row += stride) {
+				Arrays.fill(pixels, row, row + tileWidth, palette[0]);
+			}
+		} else if (isRle) {
+			if (0 == paletteSize) { // subencoding == 128 (or paletteSize == 0) - Plain RLE
+				offset += decodePlainRle(bytes, offset, converter, pixels, tileOffset, stride, tileWidth, tileHeight);
+			} else {
+				offset += decodePaletteRle(bytes, offset, palette, pixels, tileOffset, stride, tileWidth, tileHeight);
+			}
+		} else {
+			if (0 == paletteSize) { // subencoding == 0 (or paletteSize == 0) - raw CPIXEL data
+				offset += decodeRaw(bytes, offset, converter, pixels, tileOffset, stride, tileWidth, tileHeight);
+			} else {
+				offset += decodePacked(bytes, offset, palette, expander, paletteSize,
+						pixels, tileOffset, stride, tileWidth, tileHeight);
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * Find tile data length without decoding
+	 */
+	private static int tileDataLength(byte[] bytes, int offset, int bytesPerCPixel, int tileWidth, int tileHeight) {
+		int subencoding = bytes[offset] & 0x0ff;
+		int paletteSize = subencoding & 127;
+		int index = offset + 1 + paletteSize * bytesPerCPixel;
+		int pixels = tileWidth * tileHeight;
+		if (1 == subencoding) {
+			return index - offset;
+		} else if (128 == subencoding) { // plain RLE
+			for (int decoded = 0; decoded < pixels; ) {
+				index += bytesPerCPixel;
+				int rlength = 1;
+				do {
+					rlength += bytes[index] & 0x0ff;
+				} while ((bytes[index++] & 0x0ff) == 255);
+				decoded += rlength;
+			}
+		} else if (subencoding > 128) { // palette RLE
+			for (int decoded = 0; decoded < pixels; ) {
+				int rlength = 1;
+				if ((bytes[index++] & 128) != 0) {
+					do {
+						rlength += bytes[index] & 0x0ff;
+					} while ((bytes[index++] & 0x0ff) == 255);
 				}
+				decoded += rlength;
 			}
+		} else if (0 == subencoding) { // raw
+			index += pixels * bytesPerCPixel;
+		} else { // packed palette
+			index += PaletteExpander.rowBytes(tileWidth, PaletteExpander.bitsPerIndex(paletteSize)) * tileHeight;
 		}
+		return index - offset;
 	}
 
-	private int decodePlainRle(byte[] bytes, int offset, Renderer renderer,
-			int tileX, int tileY, int tileWidth, int tileHeight) {
-		int bytesPerCPixel = renderer.getBytesPerCPixel();
-		int decodedOffset = 0;
-		int decodedEnd = tileWidth * tileHeight;
+	private static int decodePlainRle(byte[] bytes, int offset, PixelConverter converter,
+			int[] pixels, int tileOffset, int stride, int tileWidth, int tileHeight) {
+		int bytesPerCPixel = converter.bytesPerPixel;
+		int remain = tileWidth * tileHeight;
+		int row = tileOffset;
+		int x = 0;
 		int index = offset;
-		while (decodedOffset < decodedEnd) {
-			int color = renderer.getCompactPixelColor(bytes, index);
+		while (remain > 0) {
+			int color = converter.convert(bytes, index);
 			index += bytesPerCPixel;
 			int rlength = 1;
 			do {
 				rlength += bytes[index] & 0x0ff;
 			} while ((bytes[index++] & 0x0ff) == 255);
-			assert rlength <= decodedEnd - decodedOffset;
-			renderer.fillColorBitmapWithColor(decodedBitmap, decodedOffset, rlength, color);
-			decodedOffset += rlength;
+			assert rlength <= remain;
+			rlength = Math.min(rlength, remain);
+			remain -= rlength;
+			// run goes on across tile rows
+			while (rlength > 0) {
+				int length = Math.min(rlength, tileWidth - x);
+				Arrays.fill(pixels, row + x, row + x + length, color);
+				rlength -= length;
+				x += length;
+				if (x == tileWidth) {
+					x = 0;
+					row += stride;
+				}
+			}
 		}
-		renderer.drawColoredBitmap(decodedBitmap, tileX, tileY, tileWidth, tileHeight);
 		return index - offset;
 	}
 
-	private int decodePaletteRle(byte[] bytes, int offset, Renderer renderer,
-                                 int tileX, int tileY, int tileWidth, int tileHeight) {
-		int decodedOffset = 0;
-		int decodedEnd = tileWidth * tileHeight;
+	private static int decodePaletteRle(byte[] bytes, int offset, int[] palette,
+			int[] pixels, int tileOffset, int stride, int tileWidth, int tileHeight) {
+		int remain = tileWidth * tileHeight;
+		int row = tileOffset;
+		int x = 0;
 		int index = offset;
-		while (decodedOffset < decodedEnd) {
+		while (remain > 0) {
 			int colorIndex = bytes[index++];
 			int color = palette[colorIndex & 127];
+			if ((colorIndex & 128) == 0) { // single pixel
+				pixels[row + x] = color;
+				--remain;
+				if (++x == tileWidth) {
+					x = 0;
+					row += stride;
+				}
+				continue;
+			}
 			int rlength = 1;
-			if ((colorIndex & 128) != 0) {
-				do {
-					rlength += bytes[index] & 0x0ff;
-				} while (bytes[index++] == (byte) 255);
+			do {
+				rlength += bytes[index] & 0x0ff;
+			} while (bytes[index++] == (byte) 255);
+			assert rlength <= remain;
+			rlength = Math.min(rlength, remain);
+			remain -= rlength;
+			// run goes on across tile rows
+			while (rlength > 0) {
+				int length = Math.min(rlength, tileWidth - x);
+				Arrays.fill(pixels, row + x, row + x + length, color);
+				rlength -= length;
+				x += length;
+				if (x == tileWidth) {
+					x = 0;
+					row += stride;
+				}
 			}
-			assert rlength <= decodedEnd - decodedOffset;
-			renderer.fillColorBitmapWithColor(decodedBitmap, decodedOffset, rlength, color);
-			decodedOffset += rlength;
 		}
-		renderer.drawColoredBitmap(decodedBitmap, tileX, tileY, tileWidth, tileHeight);
 		return index - offset;
 	}
 
-	private int decodePacked(byte[] bytes, int offset, Renderer renderer,
-                             int paletteSize, int tileX, int tileY, int tileWidth, int tileHeight) {
-		int bitsPerPalletedPixel = paletteSize > 16 ? 8 : paletteSize > 4 ? 4 : paletteSize > 2 ? 2 : 1;
+	private static int decodePacked(byte[] bytes, int offset, int[] palette, PaletteExpander expander,
+			int paletteSize, int[] pixels, int tileOffset, int stride, int tileWidth, int tileHeight) {
+		expander.setPalette(palette, paletteSize, PaletteExpander.bitsPerIndex(paletteSize));
 		int packedOffset = offset;
-		int decodedOffset = 0;
-		for (int i = 0; i < tileHeight; ++i) {
-			int decodedRowEnd = decodedOffset + tileWidth;
-			int byteProcessed = 0;
-			int bitsRemain = 0;
-
-			while (decodedOffset < decodedRowEnd) {
-				if (bitsRemain == 0) {
-					byteProcessed = bytes[packedOffset++];
-					bitsRemain = 8;
-				}
-				bitsRemain -= bitsPerPalletedPixel;
-				int index = byteProcessed >> bitsRemain & (1 << bitsPerPalletedPixel) - 1 & 127;
-				int color = palette[index];
-				renderer.fillColorBitmapWithColor(decodedBitmap, decodedOffset, 1, color);
-				++decodedOffset;
-			}
+		for (int i = 0, row = tileOffset; i < tileHeight; ++i, row += stride) {
+			packedOffset += expander.expandRow(bytes, packedOffset, pixels, row, tileWidth);
 		}
-		renderer.drawColoredBitmap(decodedBitmap, tileX, tileY, tileWidth, tileHeight);
 		return packedOffset - offset;
 	}
 
-	private int decodeRaw(byte[] bytes, int offset, Renderer renderer,
-			int tileX, int tileY, int tileWidth, int tileHeight) throws TransportException {
-		return renderer.drawCompactBytes(bytes, offset, tileX, tileY, tileWidth, tileHeight);
+	private static int decodeRaw(byte[] bytes, int offset, PixelConverter converter,
+			int[] pixels, int tileOffset, int stride, int tileWidth, int tileHeight) {
+		int index = offset;
+		for (int i = 0, row = tileOffset; i < tileHeight; ++i, row += stride) {
+			index += converter.convertRow(bytes, index, pixels, row, tileWidth);
+		}
+		return index - offset;
 	}
 
-	private int readPalette(byte[] bytes, int offset, Renderer renderer, int paletteSize) {
-        final int bytesPerCPixel = renderer.getBytesPerCPixel();
+	private static int readPalette(byte[] bytes, int offset, PixelConverter converter, int[] palette, int paletteSize) {
+		final int bytesPerCPixel = converter.bytesPerPixel;
 		for (int i=0; i<paletteSize; ++i) {
-            palette[i] = renderer.getCompactPixelColor(bytes, offset + i* bytesPerCPixel);
+			palette[i] = converter.convert(bytes, offset + i* bytesPerCPixel);
 		}
 		return paletteSize * bytesPerCPixel;
 	}
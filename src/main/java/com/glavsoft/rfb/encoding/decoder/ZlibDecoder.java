@@ -25,42 +25,52 @@ package com.glavsoft.rfb.encoding.decoder;
 
 import com.glavsoft.drawing.Renderer;
 import com.glavsoft.exceptions.TransportException;
+import com.glavsoft.transport.InflaterTransport;
 import com.glavsoft.transport.Transport;
 
-import java.io.ByteArrayInputStream;
-import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 public class ZlibDecoder extends Decoder {
+	/**
+	 * Approximate size of data portion (rows band) inflated and drawn at once
+	 */
+	static final int BAND_SIZE = 16 * 1024;
 	private Inflater decoder;
+	private final InflaterTransport inflaterTransport = new InflaterTransport();
 
 	@Override
 	public void decode(Transport transport, Renderer renderer,
 			FramebufferUpdateRectangle rect) throws TransportException {
 		int zippedLength = (int) transport.readUInt32();
 		if (0 == zippedLength) return;
-		int length = rect.width * rect.height * renderer.getBytesPerPixel();
-		byte[] bytes = unzip(transport, zippedLength, length);
-		Transport unzippedReader =
-			new Transport(
-					new ByteArrayInputStream(bytes, zippedLength, length));
-		RawDecoder.getInstance().decode(unzippedReader, renderer, rect);
+		InflaterTransport unzippedReader = beginInflate(transport, zippedLength);
+		int rowLength = rect.width * renderer.getBytesPerPixel();
+		int bandHeight = Math.max(1, BAND_SIZE / Math.max(1, rowLength));
+		int maxY = rect.y + rect.height;
+		for (int y = rect.y; y < maxY; y += bandHeight) {
+			int rows = Math.min(bandHeight, maxY - y);
+			RawDecoder.getInstance().decode(unzippedReader, renderer, rect.x, y, rect.width, rows);
+		}
+		endInflate();
 	}
 
-	protected byte[] unzip(Transport transport, int zippedLength, int length)
-			throws TransportException {
-		byte [] bytes = ByteBuffer.getInstance().getBuffer(zippedLength + length);
-		transport.readBytes(bytes, 0, zippedLength);
+	/**
+	 * Start progressive inflation of compressed data block of @code{zippedLength} bytes
+	 * from @code{transport}. Decompressed data is read from transport returned.
+	 * Call {@link #endInflate()} when done.
+	 */
+	protected InflaterTransport beginInflate(Transport transport, int zippedLength) {
 		if (null == decoder) {
 			decoder = new Inflater();
 		}
-		decoder.setInput(bytes, 0, zippedLength);
-		try {
-			decoder.inflate(bytes, zippedLength, length);
-		} catch (DataFormatException e) {
-			throw new TransportException("cannot inflate Zlib data", e);
-		}
-		return bytes;
+		return inflaterTransport.begin(transport, decoder, zippedLength);
+	}
+
+	/**
+	 * Consume the rest of compressed data block
+	 */
+	protected void endInflate() throws TransportException {
+		inflaterTransport.end();
 	}
 
 	@Override
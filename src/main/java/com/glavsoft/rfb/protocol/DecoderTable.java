@@ -0,0 +1,100 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.protocol;
+
+import com.glavsoft.rfb.encoding.EncodingType;
+import com.glavsoft.rfb.encoding.decoder.Decoder;
+
+/**
+ * Decoders by encoding id for per rectangle dispatch.
+ * Ids of {@link EncodingType} range index flat array by slot directly, other ids (of decoders plugged in with
+ * {@link com.glavsoft.rfb.encoding.decoder.DecoderProvider}) go to small open addressing table.
+ */
+class DecoderTable {
+	private final Decoder[] bySlot = new Decoder[EncodingType.SLOTS];
+	private int[] ids = new int[8];
+	private Decoder[] others = new Decoder[8];
+	private int othersCount;
+
+	Decoder get(int id) {
+		final int slot = EncodingType.slot(id);
+		if (slot >= 0) {
+			return bySlot[slot];
+		}
+		final int mask = ids.length - 1;
+		for (int i = hash(id) & mask; others[i] != null; i = i + 1 & mask) {
+			if (ids[i] == id) return others[i];
+		}
+		return null;
+	}
+
+	void put(int id, Decoder decoder) {
+		final int slot = EncodingType.slot(id);
+		if (slot >= 0) {
+			bySlot[slot] = decoder;
+			return;
+		}
+		if ((othersCount + 1) * 2 > ids.length) {
+			rehash(ids.length * 2);
+		}
+		if (insert(ids, others, id, decoder)) {
+			++othersCount;
+		}
+	}
+
+	private void rehash(int capacity) {
+		final int[] newIds = new int[capacity];
+		final Decoder[] newOthers = new Decoder[capacity];
+		for (int i = 0; i < ids.length; ++i) {
+			if (others[i] != null) {
+				insert(newIds, newOthers, ids[i], others[i]);
+			}
+		}
+		ids = newIds;
+		others = newOthers;
+	}
+
+	/**
+	 * @return true when new id is added, false when decoder of the id is replaced
+	 */
+	private static boolean insert(int[] ids, Decoder[] others, int id, Decoder decoder) {
+		final int mask = ids.length - 1;
+		int i = hash(id) & mask;
+		for (; others[i] != null; i = i + 1 & mask) {
+			if (ids[i] == id) {
+				others[i] = decoder;
+				return false;
+			}
+		}
+		ids[i] = id;
+		others[i] = decoder;
+		return true;
+	}
+
+	private static int hash(int id) {
+		final int h = id * 0x9E3779B9;
+		return h ^ h >>> 16;
+	}
+
+}
@@ -0,0 +1,614 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.protocol;
+
+import com.glavsoft.drawing.Renderer;
+import com.glavsoft.exceptions.CommonException;
+import com.glavsoft.exceptions.ProtocolException;
+import com.glavsoft.exceptions.TransportException;
+import com.glavsoft.rfb.ClipboardController;
+import com.glavsoft.rfb.IRepaintController;
+import com.glavsoft.rfb.IRfbSessionListener;
+import com.glavsoft.rfb.client.ClientToServerMessage;
+import com.glavsoft.rfb.client.FramebufferUpdateRequestMessage;
+import com.glavsoft.rfb.encoding.EncodingType;
+import com.glavsoft.rfb.encoding.decoder.Decoder;
+import com.glavsoft.rfb.encoding.decoder.FramebufferUpdateRectangle;
+import com.glavsoft.transport.BufferPool;
+import com.glavsoft.transport.ChannelTransport;
+import com.glavsoft.transport.FlushMeter;
+import com.glavsoft.transport.Transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Rfb session run by {@link SessionEngine}.
+ *
+ * Input bytes are read at selector thread into growable buffer (shrunk back when drained) and framed into
+ * complete messages, which are queued. Queued messages are decoded at engine's worker (see {@link #run()})
+ * with the same decoders and renderer {@link ReceiverTask} uses, through transport reading the queue.
+ * Messages are kept in byte arrays of {@link BufferPool}, returned into pool when read.
+ * Client messages put into protocol's message queue wake up selector thread, which writes them out
+ * without blocking.
+ */
+public class EngineSession implements Runnable {
+	private static final byte FRAMEBUFFER_UPDATE = 0;
+	private static final byte SET_COLOR_MAP_ENTRIES = 1;
+	private static final byte BELL = 2;
+	private static final byte SERVER_CUT_TEXT = 3;
+	private static final int INITIAL_INPUT_BUFFER_SIZE = 64 * 1024;
+	private static final int DECODING_BUFFER_SIZE = 32 * 1024;
+	private static final int MAX_BATCH_SIZE = 64 * 1024;
+	private static final int INITIAL_BATCH_BUFFER_SIZE = 1024;
+	/**
+	 * Max reads from socket in a row, so other sessions of selector get their turn
+	 */
+	private static final int MAX_READS_PER_SELECT = 4;
+
+	private static final Logger logger = Logger.getLogger("com.glavsoft.rfb.protocol.EngineSession");
+	private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	private final SessionEngine engine;
+	private final SessionEngine.SelectorLoop loop;
+	private final SocketChannel channel;
+	private final Protocol protocol;
+	private final MessageQueue messageQueue;
+	private final IRepaintController repaintController;
+	private final ClipboardController clipboardController;
+	private final IRfbSessionListener sessionListener;
+	private final MessageFramer framer;
+	private SelectionKey key;
+
+	// selector thread
+	private ByteBuffer input;
+	private int framedPosition;
+	private final BatchBuffer batchBuffer = new BatchBuffer(INITIAL_BATCH_BUFFER_SIZE);
+	private final Transport batchWriter = new Transport(batchBuffer);
+	private ByteBuffer output = ByteBuffer.allocate(0);
+	private final AtomicBoolean outputRequested = new AtomicBoolean();
+
+	// selector to worker hand off
+	private final Queue<ByteBuffer> messages = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger messagesCount = new AtomicInteger();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicBoolean readSuspended = new AtomicBoolean();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+
+	// worker
+	private final MessagesChannel messagesChannel = new MessagesChannel();
+	private final ChannelTransport transport;
+	private Renderer renderer;
+	private FramebufferUpdateRequestMessage fullscreenFbUpdateIncrementalRequest;
+	private Decoder pipelinedDecoder;
+	private final List<FramebufferUpdateRectangle> pipelinedRects = new ArrayList<FramebufferUpdateRectangle>();
+
+	private volatile boolean closed;
+	private final AtomicLong decodingCpuTime = new AtomicLong();
+	private final AtomicLong ioTime = new AtomicLong();
+	private volatile long bytesReceived;
+	private volatile long updatesCount;
+
+	EngineSession(SessionEngine engine, SessionEngine.SelectorLoop loop, SocketChannel channel, Protocol protocol,
+			IRepaintController repaintController, ClipboardController clipboardController,
+			IRfbSessionListener sessionListener, ByteBuffer received) {
+		this.engine = engine;
+		this.loop = loop;
+		this.channel = channel;
+		this.protocol = protocol;
+		this.repaintController = repaintController;
+		this.clipboardController = clipboardController;
+		this.sessionListener = sessionListener;
+		messageQueue = protocol.getMessageQueue();
+		framer = new MessageFramer(protocol.getPixelFormat());
+		input = ByteBuffer.allocate(Math.max(INITIAL_INPUT_BUFFER_SIZE, received.remaining() * 2));
+		input.put(received);
+		transport = new ChannelTransport(messagesChannel, null, DECODING_BUFFER_SIZE);
+		renderer = repaintController.createRenderer(transport, protocol.getFbWidth(), protocol.getFbHeight(),
+				protocol.getPixelFormat());
+		fullscreenFbUpdateIncrementalRequest =
+				new FramebufferUpdateRequestMessage(0, 0, protocol.getFbWidth(), protocol.getFbHeight(), true);
+	}
+
+	/**
+	 * Register session at selector, then process data received while handshake and send messages queued
+	 */
+	void register() {
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					key = loop.register(channel, EngineSession.this);
+					messageQueue.setPutListener(new Runnable() {
+						@Override
+						public void run() {
+							requestOutput();
+						}
+					});
+					frameInput();
+					writeOutput();
+				} catch (IOException e) {
+					close("Cannot register session: " + e.getMessage());
+				} catch (ProtocolException e) {
+					logger.severe(e.getMessage());
+					close(e.getMessage() + "\nConnection closed.");
+				}
+			}
+		});
+	}
+
+	public Protocol getProtocol() {
+		return protocol;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return cpu time spent decoding messages plus time spent reading and writing socket, ns
+	 */
+	public long getCpuTime() {
+		return decodingCpuTime.get() + ioTime.get();
+	}
+
+	/**
+	 * @return bytes held by session's buffers: input, messages queued to decode, output, decoding buffer
+	 * and decoders' buffer
+	 */
+	public long getBuffersSize() {
+		final ByteBuffer in = input;
+		return (null == in ? 0 : in.capacity()) + queuedBytes.get() + batchBuffer.capacity() + DECODING_BUFFER_SIZE +
+				protocol.getBufferMeter().getCurrent();
+	}
+
+	/**
+	 * @return approximate bytes held by renderer's framebuffer
+	 */
+	public long getFramebufferSize() {
+		final Renderer r = renderer;
+		return null == r ? 0 : 4L * r.getWidth() * r.getHeight();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public long getUpdatesCount() {
+		return updatesCount;
+	}
+
+	/**
+	 * Selector thread: read available bytes and queue complete messages for decoding
+	 */
+	void readInput() {
+		if (closed) return;
+		final long start = System.nanoTime();
+		try {
+			for (int i = 0; i < MAX_READS_PER_SELECT; ++i) {
+				if ( ! input.hasRemaining()) {
+					frameInput();
+				}
+				if ( ! input.hasRemaining()) { // incomplete message fills the buffer
+					final int maxMessageSize = engine.getMaxMessageSize();
+					if (input.capacity() >= maxMessageSize) {
+						throw new ProtocolException("Server message is longer than " + maxMessageSize + " bytes (" +
+								SessionEngine.MAX_MESSAGE_SIZE_PROPERTY + ")");
+					}
+					final ByteBuffer grown = ByteBuffer.allocate((int) Math.min(2L * input.capacity(), maxMessageSize));
+					input.flip();
+					grown.put(input);
+					input = grown;
+				}
+				final int read = channel.read(input);
+				if (read < 0) {
+					close("Connection closed.");
+					return;
+				}
+				if (0 == read) break;
+				bytesReceived += read;
+			}
+			frameInput();
+		} catch (IOException e) {
+			close("Connection closed: " + e.getMessage());
+		} catch (ProtocolException e) {
+			logger.severe(e.getMessage());
+			close(e.getMessage() + "\nConnection closed.");
+		} catch (CancelledKeyException e) {
+			// session is closed by other thread
+		} finally {
+			ioTime.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Frame bytes received and pass complete messages to worker.
+	 * Input buffer is in write mode, bytes from its start to framed position were framed before.
+	 */
+	private void frameInput() throws ProtocolException {
+		final int received = input.position();
+		input.flip();
+		input.position(framedPosition);
+		final int count = framer.frame(input);
+		framedPosition = input.position();
+		if (0 == count) {
+			input.position(received);
+			input.limit(input.capacity());
+			return;
+		}
+		final int end = framer.getMessageEnd();
+		final byte[] bytes = BufferPool.getInstance().acquire(end);
+		input.position(0);
+		input.get(bytes, 0, end);
+		input.compact();
+		if (input.capacity() > INITIAL_INPUT_BUFFER_SIZE && input.position() <= INITIAL_INPUT_BUFFER_SIZE / 2) {
+			// drained after long message
+			final ByteBuffer shrunk = ByteBuffer.allocate(INITIAL_INPUT_BUFFER_SIZE);
+			input.flip();
+			shrunk.put(input);
+			input = shrunk;
+		}
+		framedPosition -= end;
+		framer.shift(end);
+		if (queuedBytes.addAndGet(end) > engine.getMaxQueuedBytes()) {
+			// set before messages are passed to worker, so worker resumes reading when done with them
+			readSuspended.set(true);
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		messages.add(ByteBuffer.wrap(bytes, 0, end));
+		messagesCount.addAndGet(count);
+		if (scheduled.compareAndSet(false, true)) {
+			engine.decode(this);
+		}
+	}
+
+	private void requestOutput() {
+		if (outputRequested.compareAndSet(false, true)) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					writeOutput();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Selector thread: write the rest of previous batch and the messages queued, without blocking.
+	 * Waits for channel to be writable when socket buffer is full.
+	 */
+	void writeOutput() {
+		if (closed) return;
+		outputRequested.set(false);
+		final long start = System.nanoTime();
+		try {
+			while (true) {
+				if ( ! output.hasRemaining()) {
+					batchBuffer.reset();
+					int messagesInBatch = 0;
+					ClientToServerMessage message;
+					while (batchBuffer.size() < MAX_BATCH_SIZE && (message = messageQueue.poll()) != null) {
+						message.send(batchWriter);
+						++messagesInBatch;
+					}
+					if (0 == messagesInBatch) break;
+					output = batchBuffer.asByteBuffer();
+					final FlushMeter flushMeter = protocol.getFlushMeter();
+					if (flushMeter != null) {
+						flushMeter.count(messagesInBatch, output.remaining());
+					}
+				}
+				channel.write(output);
+				if (output.hasRemaining()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e) {
+			close("Connection closed: " + e.getMessage());
+		} catch (TransportException e) {
+			close("Connection closed: " + e.getMessage());
+		} catch (CancelledKeyException e) {
+			// session is closed by other thread
+		} finally {
+			ioTime.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Worker: decode messages queued. Runs at one worker at a time.
+	 */
+	@Override
+	public void run() {
+		protocol.getDecoderBuffer().bind();
+		try {
+			while (true) {
+				if (closed) {
+					// keep session scheduled, so it is never run again
+					releaseDecodingResources();
+					return;
+				}
+				final int count = messagesCount.getAndSet(0);
+				if (0 == count) {
+					scheduled.set(false);
+					if ((messagesCount.get() > 0 || closed) && scheduled.compareAndSet(false, true)) continue;
+					return;
+				}
+				final long start = cpuTime();
+				for (int i = 0; i < count && ! closed; ++i) {
+					receiveMessage();
+				}
+				decodingCpuTime.addAndGet(cpuTime() - start);
+				if (queuedBytes.get() < engine.getMaxQueuedBytes() / 2 && readSuspended.compareAndSet(true, false)) {
+					loop.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (key.isValid()) {
+								key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+							}
+						}
+					});
+				}
+			}
+		} catch (ProtocolException e) {
+			logger.severe(e.getMessage());
+			close(e.getMessage() + "\nConnection closed.");
+			releaseDecodingResources();
+		} catch (CommonException e) {
+			logger.severe(e.getMessage());
+			close("Connection closed..");
+			releaseDecodingResources();
+		} catch (Throwable te) {
+			StringWriter sw = new StringWriter();
+			PrintWriter pw = new PrintWriter(sw);
+			te.printStackTrace(pw);
+			close(te.getMessage() + "\n" + sw.toString());
+			releaseDecodingResources();
+		} finally {
+			protocol.getDecoderBuffer().unbind();
+		}
+	}
+
+	/**
+	 * Release transport and decoder buffer of the session, called by the last thread decoding the session
+	 */
+	private void releaseDecodingResources() {
+		transport.release();
+		protocol.getDecoderBuffer().release();
+		releaseMessages();
+	}
+
+	/**
+	 * Return arrays of messages not decoded into pool
+	 */
+	private void releaseMessages() {
+		messagesChannel.releaseCurrent();
+		ByteBuffer message;
+		while ((message = messages.poll()) != null) {
+			BufferPool.getInstance().release(message.array());
+		}
+	}
+
+	private static long cpuTime() {
+		return threadMXBean.isCurrentThreadCpuTimeSupported() ?
+				threadMXBean.getCurrentThreadCpuTime() :
+				System.nanoTime();
+	}
+
+	private void receiveMessage() throws CommonException {
+		final byte messageId = transport.readByte();
+		switch (messageId) {
+			case FRAMEBUFFER_UPDATE:
+				framebufferUpdateMessage();
+				break;
+			case SET_COLOR_MAP_ENTRIES:
+				logger.severe("Server message SetColorMapEntries is not implemented. Skip.");
+				transport.skip(3); // padding, first color index
+				transport.skip(transport.readUInt16() * 6);
+				break;
+			case BELL:
+				logger.fine("Server message: Bell");
+				break;
+			case SERVER_CUT_TEXT:
+				logger.fine("Server message: CutText (3)");
+				serverCutText();
+				break;
+			default:
+				throw new ProtocolException("Unsupported server message. Id = " + messageId);
+		}
+	}
+
+	private void serverCutText() throws TransportException {
+		transport.skip(3); // padding
+		long length = transport.readUInt32();
+		if (null == clipboardController || length > Integer.MAX_VALUE) {
+			while (length > 0) {
+				final int portion = (int) Math.min(length, Integer.MAX_VALUE);
+				transport.skip(portion);
+				length -= portion;
+			}
+		} else if (length > 0) {
+			clipboardController.updateSystemClipboard(transport.readBytes((int) length));
+		}
+	}
+
+	private void framebufferUpdateMessage() throws CommonException {
+		++updatesCount;
+		transport.skip(1); // padding
+		int numberOfRectangles = transport.readUInt16();
+		while (numberOfRectangles-- > 0) {
+			final FramebufferUpdateRectangle rect = new FramebufferUpdateRectangle();
+			rect.fill(transport);
+			final Decoder decoder = protocol.getDecoder(rect.getEncodingId());
+			if (null == decoder) {
+				throw new CommonException("Unprocessed encoding: " + rect.toString());
+			}
+			if (decoder != pipelinedDecoder) {
+				commitPipelined();
+			}
+			decoder.decode(transport, renderer, rect);
+			if (decoder.isPipelined()) {
+				pipelinedDecoder = decoder;
+				pipelinedRects.add(rect);
+			} else if (EncodingType.RICH_CURSOR == rect.getEncodingType() ||
+					EncodingType.X_CURSOR == rect.getEncodingType() ||
+					EncodingType.CURSOR_POS == rect.getEncodingType()) {
+				repaintController.repaintCursor();
+			} else if (rect.getEncodingType() == EncodingType.DESKTOP_SIZE) {
+				fullscreenFbUpdateIncrementalRequest =
+						new FramebufferUpdateRequestMessage(0, 0, rect.width, rect.height, true);
+				renderer = repaintController.createRenderer(transport, rect.width, rect.height,
+						protocol.getPixelFormat());
+				protocol.sendMessage(new FramebufferUpdateRequestMessage(0, 0, rect.width, rect.height, false));
+				return;
+			} else {
+				repaintController.repaintBitmap(rect);
+			}
+		}
+		commitPipelined();
+		protocol.sendMessage(fullscreenFbUpdateIncrementalRequest);
+	}
+
+	/**
+	 * Draw rectangles decoded by pipelined decoder and repaint them
+	 */
+	private void commitPipelined() throws TransportException {
+		if (null == pipelinedDecoder) return;
+		pipelinedDecoder.commit();
+		pipelinedDecoder = null;
+		for (FramebufferUpdateRectangle rect : pipelinedRects) {
+			repaintController.repaintBitmap(rect);
+		}
+		pipelinedRects.clear();
+	}
+
+	/**
+	 * Close session socket and stop decoding. Session listener is notified once.
+	 * May be called from any thread.
+	 */
+	public void close(String reason) {
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+		}
+		messageQueue.setPutListener(null);
+		try {
+			channel.close(); // cancels selection key
+		} catch (IOException e) {
+			// nop
+		}
+		if (scheduled.compareAndSet(false, true)) {
+			// no worker decodes the session, so release decoding resources here
+			releaseDecodingResources();
+		}
+		engine.removeSession(this);
+		logger.fine("Session closed: " + reason + " " + toString());
+		if (sessionListener != null) {
+			sessionListener.rfbSessionStopped(reason);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "EngineSession: " + protocol.getRemoteDesktopName() +
+				", received " + bytesReceived + " bytes, " + updatesCount + " updates, cpu " +
+				getCpuTime() / 1000000 + " ms (decoding " + decodingCpuTime.get() / 1000000 + " ms), buffers " +
+				getBuffersSize() / 1024 + " KiB, framebuffer " + getFramebufferSize() / 1024 + " KiB";
+	}
+
+	/**
+	 * Channel reading messages queued. Bytes of the messages counted in {@link #messagesCount}
+	 * are always queued before they are counted, so channel never waits for data.
+	 */
+	private class MessagesChannel implements ReadableByteChannel {
+		private ByteBuffer current;
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (null == current || ! current.hasRemaining()) {
+				releaseCurrent();
+				current = messages.poll();
+				if (null == current) return -1;
+			}
+			final int portion = Math.min(dst.remaining(), current.remaining());
+			dst.put(current.array(), current.position(), portion);
+			current.position(current.position() + portion);
+			queuedBytes.addAndGet(-portion);
+			return portion;
+		}
+
+		void releaseCurrent() {
+			if (current != null) {
+				BufferPool.getInstance().release(current.array());
+				current = null;
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return ! closed;
+		}
+
+		@Override
+		public void close() {
+			// nop
+		}
+	}
+
+	/**
+	 * Byte array output stream with access to underlying array, so its content may be written
+	 * into channel without copying
+	 */
+	private static class BatchBuffer extends ByteArrayOutputStream {
+		BatchBuffer(int size) {
+			super(size);
+		}
+
+		ByteBuffer asByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+
+		int capacity() {
+			return buf.length;
+		}
+	}
+
+}
@@ -0,0 +1,376 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.protocol;
+
+import com.glavsoft.drawing.ColorDecoder;
+import com.glavsoft.exceptions.ProtocolException;
+import com.glavsoft.rfb.encoding.EncodingType;
+import com.glavsoft.rfb.encoding.PixelFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds out server to client messages boundaries while bytes arrive, without decoding messages.
+ * So the message may be passed to decoders only when it is received completely and decoder never waits for data.
+ * Framing state is kept between calls: pixel data is skipped at once by its length and never rescanned,
+ * only small structures (Hextile tile, Tight rectangle header) are reparsed when they are split between reads.
+ * Messages are framed the same way as {@link ReceiverTask} reads them.
+ */
+class MessageFramer {
+	private static final byte FRAMEBUFFER_UPDATE = 0;
+	private static final byte SET_COLOR_MAP_ENTRIES = 1;
+	private static final byte BELL = 2;
+	private static final byte SERVER_CUT_TEXT = 3;
+
+	private static final int MESSAGE_TYPE = 0;
+	private static final int MESSAGE_END = 1;
+	private static final int UPDATE_HEADER = 2;
+	private static final int NEXT_RECT = 3;
+	private static final int RRE_HEADER = 4;
+	private static final int LENGTH_PREFIXED = 5;
+	private static final int HEXTILE_TILE = 6;
+	private static final int TIGHT_HEADER = 7;
+	private static final int COLOR_MAP_HEADER = 8;
+	private static final int CUT_TEXT_HEADER = 9;
+
+	private static final int RECT_HEADER_LENGTH = 12;
+	private static final int HEXTILE_TILE_SIZE = 16;
+	private static final int HEXTILE_RAW_MASK = 1;
+	private static final int HEXTILE_BACKGROUND_SPECIFIED_MASK = 2;
+	private static final int HEXTILE_FOREGROUND_SPECIFIED_MASK = 4;
+	private static final int HEXTILE_ANY_SUBRECTS_MASK = 8;
+	private static final int HEXTILE_SUBRECTS_COLOURED_MASK = 16;
+	private static final int TIGHT_FILL_TYPE = 0x08;
+	private static final int TIGHT_JPEG_TYPE = 0x09;
+	private static final int TIGHT_FILTER_ID_MASK = 0x40;
+	private static final int TIGHT_BASIC_FILTER = 0x00;
+	private static final int TIGHT_PALETTE_FILTER = 0x01;
+	private static final int TIGHT_GRADIENT_FILTER = 0x02;
+	private static final int TIGHT_MIN_SIZE_TO_COMPRESS = 12;
+
+	private final int bytesPerPixel;
+	private final int bytesPerPixelTight;
+	private int state = MESSAGE_TYPE;
+	private long skip;
+	private int rectsLeft;
+	private int rectWidth;
+	private int rectHeight;
+	private int rreCoordinatesLength;
+	private int tileX;
+	private int tileY;
+	private int compactSize;
+	private int messageEnd;
+
+	MessageFramer(PixelFormat pixelFormat) {
+		final ColorDecoder colorDecoder = new ColorDecoder(pixelFormat);
+		bytesPerPixel = colorDecoder.bytesPerPixel;
+		bytesPerPixelTight = colorDecoder.bytesPerPixelTight;
+	}
+
+	/**
+	 * Scans data from its position up to its limit, advancing position.
+	 *
+	 * @param data received bytes
+	 * @return number of messages completed while scanning, end of the last one is at {@link #getMessageEnd()}
+	 * @throws ProtocolException when data do not look like server messages
+	 */
+	int frame(ByteBuffer data) throws ProtocolException {
+		int messages = 0;
+		while (true) {
+			if (skip > 0) {
+				int portion = (int) Math.min(skip, data.remaining());
+				data.position(data.position() + portion);
+				skip -= portion;
+				if (skip > 0) break;
+			}
+			if (MESSAGE_END == state) {
+				state = MESSAGE_TYPE;
+				messageEnd = data.position();
+				++messages;
+			} else if ( ! step(data)) {
+				break;
+			}
+		}
+		return messages;
+	}
+
+	/**
+	 * @return position at data where the last message completed ends
+	 */
+	int getMessageEnd() {
+		return messageEnd;
+	}
+
+	/**
+	 * Moves positions kept when bytes before them are removed from data buffer
+	 */
+	void shift(int removed) {
+		messageEnd -= removed;
+	}
+
+	/**
+	 * Parse next structure when it is available completely
+	 * @return false when more data needed
+	 */
+	private boolean step(ByteBuffer data) throws ProtocolException {
+		final int start = data.position();
+		final int available = data.remaining();
+		switch (state) {
+		case MESSAGE_TYPE:
+			if (available < 1) return false;
+			final byte messageId = data.get();
+			switch (messageId) {
+			case FRAMEBUFFER_UPDATE:
+				state = UPDATE_HEADER;
+				break;
+			case SET_COLOR_MAP_ENTRIES:
+				state = COLOR_MAP_HEADER;
+				break;
+			case BELL:
+				state = MESSAGE_END;
+				break;
+			case SERVER_CUT_TEXT:
+				state = CUT_TEXT_HEADER;
+				break;
+			default:
+				throw new ProtocolException("Unsupported server message. Id = " + messageId);
+			}
+			return true;
+		case UPDATE_HEADER:
+			if (available < 3) return false;
+			data.get(); // padding
+			rectsLeft = data.getShort() & 0xffff;
+			state = NEXT_RECT;
+			return true;
+		case NEXT_RECT:
+			if (0 == rectsLeft) {
+				state = MESSAGE_END;
+				return true;
+			}
+			if (available < RECT_HEADER_LENGTH) return false;
+			--rectsLeft;
+			data.position(start + 4); // x, y
+			rectWidth = data.getShort() & 0xffff;
+			rectHeight = data.getShort() & 0xffff;
+			rectData(data.getInt());
+			return true;
+		case RRE_HEADER:
+			if (available < 4) return false;
+			skip = bytesPerPixel + (data.getInt() & 0xffffffffL) * (bytesPerPixel + rreCoordinatesLength);
+			state = NEXT_RECT;
+			return true;
+		case LENGTH_PREFIXED:
+			if (available < 4) return false;
+			skip = data.getInt() & 0xffffffffL;
+			state = NEXT_RECT;
+			return true;
+		case HEXTILE_TILE:
+			return hextileTile(data);
+		case TIGHT_HEADER:
+			return tightHeader(data);
+		case COLOR_MAP_HEADER:
+			if (available < 5) return false;
+			data.position(start + 3); // padding, first color index
+			skip = (data.getShort() & 0xffff) * 6L;
+			state = MESSAGE_END;
+			return true;
+		case CUT_TEXT_HEADER:
+			if (available < 7) return false;
+			data.position(start + 3); // padding
+			skip = data.getInt() & 0xffffffffL;
+			state = MESSAGE_END;
+			return true;
+		default:
+			throw new IllegalStateException("Unknown framer state: " + state);
+		}
+	}
+
+	private void rectData(int encoding) throws ProtocolException {
+		final EncodingType encodingType;
+		try {
+			encodingType = EncodingType.byId(encoding);
+		} catch (IllegalArgumentException e) {
+			throw new ProtocolException(e.getMessage());
+		}
+		final long pixels = (long) rectWidth * rectHeight;
+		state = NEXT_RECT;
+		switch (encodingType) {
+		case RAW_ENCODING:
+			skip = pixels * bytesPerPixel;
+			break;
+		case COPY_RECT:
+			skip = 4;
+			break;
+		case RRE:
+			rreCoordinatesLength = 8;
+			state = RRE_HEADER;
+			break;
+		case CO_RRE:
+			rreCoordinatesLength = 4;
+			state = RRE_HEADER;
+			break;
+		case HEXTILE:
+			tileX = tileY = 0;
+			if (pixels > 0) {
+				state = HEXTILE_TILE;
+			}
+			break;
+		case ZLIB:
+		case ZRLE:
+			state = LENGTH_PREFIXED;
+			break;
+		case TIGHT:
+			state = TIGHT_HEADER;
+			break;
+		case RICH_CURSOR:
+			skip = pixels * bytesPerPixel + (rectWidth + 7) / 8 * rectHeight;
+			break;
+		case X_CURSOR:
+			// fore- and background colours, bitmap and mask
+			skip = pixels > 0 ? 6 + 2 * ((rectWidth + 7) / 8 * rectHeight) : 0;
+			break;
+		case CURSOR_POS:
+			break;
+		case DESKTOP_SIZE:
+			// the rest of update is not read after desktop size change, see ReceiverTask
+			state = MESSAGE_END;
+			break;
+		default:
+			throw new ProtocolException("Unprocessed encoding: " + encodingType);
+		}
+	}
+
+	private boolean hextileTile(ByteBuffer data) {
+		final int start = data.position();
+		final int available = data.remaining();
+		if (available < 1) return false;
+		final int tileWidth = Math.min(HEXTILE_TILE_SIZE, rectWidth - tileX);
+		final int tileHeight = Math.min(HEXTILE_TILE_SIZE, rectHeight - tileY);
+		final int subencoding = data.get(start) & 0xff;
+		if ((subencoding & HEXTILE_RAW_MASK) != 0) {
+			data.position(start + 1);
+			skip = tileWidth * tileHeight * bytesPerPixel;
+		} else {
+			int length = 1;
+			if ((subencoding & HEXTILE_BACKGROUND_SPECIFIED_MASK) != 0) length += bytesPerPixel;
+			if ((subencoding & HEXTILE_FOREGROUND_SPECIFIED_MASK) != 0) length += bytesPerPixel;
+			if ((subencoding & HEXTILE_ANY_SUBRECTS_MASK) != 0) {
+				if (available < length + 1) return false;
+				final int numberOfSubrectangles = data.get(start + length) & 0xff;
+				length += 1 + numberOfSubrectangles *
+						((subencoding & HEXTILE_SUBRECTS_COLOURED_MASK) != 0 ? bytesPerPixel + 2 : 2);
+			}
+			if (available < length) return false;
+			data.position(start + length);
+		}
+		tileX += HEXTILE_TILE_SIZE;
+		if (tileX >= rectWidth) {
+			tileX = 0;
+			tileY += HEXTILE_TILE_SIZE;
+			if (tileY >= rectHeight) {
+				state = NEXT_RECT;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses Tight rectangle up to its (compressed) pixel data, including palette when present
+	 */
+	private boolean tightHeader(ByteBuffer data) throws ProtocolException {
+		final int end = data.limit();
+		int p = data.position();
+		if (p >= end) return false;
+		final int compControl = data.get(p++) & 0xff;
+		final int compType = compControl >> 4 & 0x0f;
+		long length;
+		if (TIGHT_FILL_TYPE == compType) {
+			length = bytesPerPixelTight;
+		} else if (TIGHT_JPEG_TYPE == compType) {
+			final int sizeLength = readCompactSize(data, p);
+			if (0 == sizeLength) return false;
+			p += sizeLength;
+			length = compactSize;
+		} else if (compType > TIGHT_JPEG_TYPE) {
+			throw new ProtocolException("Tight compression control byte is incorrect: " + compControl);
+		} else {
+			int filterId = TIGHT_BASIC_FILTER;
+			if ((compControl & TIGHT_FILTER_ID_MASK) != 0) {
+				if (p >= end) return false;
+				filterId = data.get(p++) & 0xff;
+			}
+			switch (filterId) {
+			case TIGHT_BASIC_FILTER:
+			case TIGHT_GRADIENT_FILTER:
+				length = (long) bytesPerPixelTight * rectWidth * rectHeight;
+				break;
+			case TIGHT_PALETTE_FILTER:
+				if (p >= end) return false;
+				final int paletteSize = (data.get(p++) & 0xff) + 1;
+				p += paletteSize * bytesPerPixelTight;
+				if (p > end) return false;
+				length = (long) (2 == paletteSize ? (rectWidth + 7) / 8 : rectWidth) * rectHeight;
+				break;
+			default:
+				throw new ProtocolException("Unknown Tight filter: " + filterId);
+			}
+			if (length >= TIGHT_MIN_SIZE_TO_COMPRESS) {
+				final int sizeLength = readCompactSize(data, p);
+				if (0 == sizeLength) return false;
+				p += sizeLength;
+				length = compactSize;
+			}
+		}
+		data.position(p);
+		skip = length;
+		state = NEXT_RECT;
+		return true;
+	}
+
+	/**
+	 * Reads Tight compact size (1 to 3 bytes) into {@link #compactSize}
+	 * @return number of bytes read, 0 when there is not enough data
+	 */
+	private int readCompactSize(ByteBuffer data, int p) {
+		final int available = data.limit() - p;
+		if (available < 1) return 0;
+		int b = data.get(p) & 0xff;
+		int size = b & 0x7f;
+		if ((b & 0x80) == 0) {
+			compactSize = size;
+			return 1;
+		}
+		if (available < 2) return 0;
+		b = data.get(p + 1) & 0xff;
+		size += (b & 0x7f) << 7;
+		if ((b & 0x80) == 0) {
+			compactSize = size;
+			return 2;
+		}
+		if (available < 3) return 0;
+		compactSize = size + ((data.get(p + 2) & 0xff) << 14);
+		return 3;
+	}
+
+}
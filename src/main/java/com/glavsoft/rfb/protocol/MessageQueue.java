@@ -35,6 +35,7 @@ import java.util.logging.Logger;
  */
 public class MessageQueue {
 	private final BlockingQueue<ClientToServerMessage> queue;
+	private volatile Runnable putListener;
 
 	public MessageQueue() {
 		queue = new LinkedBlockingQueue<ClientToServerMessage>();
@@ -44,8 +45,20 @@ public class MessageQueue {
 		if ( ! queue.offer(message)) {
             Logger.getLogger(getClass().getName()).severe("Cannot put message into message queue. Skip: " + message);
         }
+		final Runnable listener = putListener;
+		if (listener != null) {
+			listener.run();
+		}
 	}
 
+    /**
+     * Set listener to be run after each message put, ex. to wake up non blocking sender
+     * @param listener listener or null to remove it
+     */
+    void setPutListener(Runnable listener) {
+        putListener = listener;
+    }
+
     /**
      * Retrieves and removes the head of this queue, waiting if necessary until an element becomes available.
      * Retrieves and removes the head of this queue, waiting up to the certain wait time if necessary for
@@ -57,4 +70,12 @@ public class MessageQueue {
 		return queue.poll(1, TimeUnit.SECONDS);
 	}
 
+    /**
+     * Retrieves and removes the head of this queue without waiting.
+     * @return the head of this queue, or null if this queue is empty
+     */
+    public ClientToServerMessage poll() {
+        return queue.poll();
+    }
+
 }
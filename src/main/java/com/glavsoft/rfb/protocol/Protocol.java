@@ -33,6 +33,9 @@ import com.glavsoft.rfb.encoding.decoder.*;
 import com.glavsoft.rfb.protocol.handlers.Handshaker;
 import com.glavsoft.rfb.protocol.tunnel.TunnelType;
 import com.glavsoft.transport.BaudrateMeter;
+import com.glavsoft.transport.BufferMeter;
+import com.glavsoft.transport.BufferPool;
+import com.glavsoft.transport.FlushMeter;
 import com.glavsoft.transport.Transport;
 
 import java.util.*;
@@ -52,10 +55,21 @@ public class Protocol implements IChangeSettingsListener {
     private PixelFormat serverPixelFormat;
 
     private final Map<EncodingType, Decoder> decoders = new LinkedHashMap<EncodingType, Decoder>();
+    /**
+     * Decoders of encodings EncodingType does not know, plugged in with DecoderProvider
+     */
+    private final Map<Integer, Decoder> providedDecoders = new LinkedHashMap<Integer, Decoder>();
+    private final Set<Integer> providedPseudoEncodings = new HashSet<Integer>();
+    private final DecoderTable decoderTable = new DecoderTable();
     private final Set<ClientMessageType> clientMessageTypes = new HashSet<ClientMessageType>();
     private boolean inCleanUp = false;
     private boolean isMac;
     private BaudrateMeter baudrateMeter;
+    private final FlushMeter flushMeter = new FlushMeter();
+    /**
+     * Decoders' shared buffer owned by the session, released by the thread decoding the session when it stops
+     */
+    private final ByteBuffer decoderBuffer = new ByteBuffer(BufferPool.getInstance());
     private IRequestString connectionIdRetriever;
 
     public Protocol(Transport transport, IRequestString passwordRetriever, ProtocolSettings settings) {
@@ -64,7 +78,7 @@ public class Protocol implements IChangeSettingsListener {
         this.passwordRetriever = passwordRetriever;
         logger = Logger.getLogger(getClass().getName());
         context.settings = settings;
-        decoders.put(EncodingType.RAW_ENCODING, RawDecoder.getInstance());
+        putDecoder(EncodingType.RAW_ENCODING, RawDecoder.getInstance());
     }
 
 	public void handshake() throws UnsupportedProtocolVersionException, UnsupportedSecurityTypeException,
@@ -96,8 +110,7 @@ public class Protocol implements IChangeSettingsListener {
 //		if (settings.getColorDepth() == 0) {
 //			settings.setColorDepth(pixelFormat.depth); // the same the server sent when not initialized yet
 //		}
-        correctServerPixelFormat();
-		context.setPixelFormat(createPixelFormat(context.settings));
+        initPixelFormat();
 		sendMessage(new SetPixelFormatMessage(context.pixelFormat));
 		logger.fine("sent: " + context.pixelFormat);
 
@@ -106,7 +119,9 @@ public class Protocol implements IChangeSettingsListener {
 		context.settings.addListener(repaintController);
 
 		sendRefreshMessage();
-        senderTask = new SenderTask(messageQueue, context.transport, Protocol.this);
+        // SetPixelFormat, SetEncodings and refresh request are queued before sender starts,
+        // so it sends them all at once
+        senderTask = new SenderTask(messageQueue, context.transport, Protocol.this, flushMeter);
         senderThread = new Thread(senderTask, "RfbSenderTask");
         senderThread.start();
 		resetDecoders();
@@ -118,6 +133,14 @@ public class Protocol implements IChangeSettingsListener {
 		receiverThread.start();
 	}
 
+    /**
+     * Choose pixel format to request from server based on server's one and settings
+     */
+    void initPixelFormat() {
+        correctServerPixelFormat();
+        context.setPixelFormat(createPixelFormat(context.settings));
+    }
+
     private void correctServerPixelFormat() {
         // correct true color flag
         if (0 == serverPixelFormat.trueColourFlag) {
@@ -148,6 +171,10 @@ public class Protocol implements IChangeSettingsListener {
 		messageQueue.put(message);
 	}
 
+    MessageQueue getMessageQueue() {
+        return messageQueue;
+    }
+
     public void sendSupportedEncodingsMessage(ProtocolSettings settings) {
         final LinkedHashSet<EncodingType> encodings = new LinkedHashSet<EncodingType>();
         final EncodingType preferredEncoding = settings.getPreferredEncoding();
@@ -179,9 +206,10 @@ public class Protocol implements IChangeSettingsListener {
                     }
                     break;
                 case RICH_CURSOR:
+                case X_CURSOR:
                     if (settings.getMouseCursorTrack() == LocalPointer.HIDE ||
                             settings.getMouseCursorTrack() == LocalPointer.ON) {
-                        encodings.add(EncodingType.RICH_CURSOR);
+                        encodings.add(e);
                     }
                     break;
                 case CURSOR_POS:
@@ -194,7 +222,7 @@ public class Protocol implements IChangeSettingsListener {
                     encodings.add(e);
             }
         }
-		SetEncodingsMessage encodingsMessage = new SetEncodingsMessage(encodings);
+		SetEncodingsMessage encodingsMessage = new SetEncodingsMessage(encodings, providedDecoders.keySet());
 		sendMessage(encodingsMessage);
 		logger.fine("sent: " + encodingsMessage.toString());
 	}
@@ -278,12 +306,27 @@ public class Protocol implements IChangeSettingsListener {
 			}
 			receiverTask = null;
 		}
+        // when session is closed from receiver thread, receiver releases transport at its end
+        if (null == receiverThread || ! receiverThread.isAlive()) {
+            releaseTransport();
+        }
         synchronized (this) {
             inCleanUp = false;
         }
-        ByteBuffer.removeInstance();
+        logger.fine(flushMeter.toString());
+        logger.fine("Decoder buffer " + decoderBuffer.getMeter().toString());
 	}
 
+    /**
+     * Release transport (its pooled buffers) when sender thread is stopped,
+     * called by receiver task at its end and by session clean up when receiver is stopped
+     */
+    void releaseTransport() {
+        if ((null == senderThread || ! senderThread.isAlive()) && context.transport != null) {
+            context.transport.release();
+        }
+    }
+
     public void setServerPixelFormat(PixelFormat serverPixelFormat) {
         this.serverPixelFormat = serverPixelFormat;
     }
@@ -348,16 +391,51 @@ public class Protocol implements IChangeSettingsListener {
     }
 
     public void registerRfbEncodings() {
-        decoders.put(EncodingType.TIGHT, new TightDecoder());
-        decoders.put(EncodingType.HEXTILE, new HextileDecoder());
-        decoders.put(EncodingType.ZRLE, new ZRLEDecoder());
-        decoders.put(EncodingType.ZLIB, new ZlibDecoder());
-        decoders.put(EncodingType.RRE, new RREDecoder());
-        decoders.put(EncodingType.COPY_RECT, new CopyRectDecoder());
+        putDecoder(EncodingType.TIGHT, new TightDecoder());
+        putDecoder(EncodingType.HEXTILE, new HextileDecoder());
+        putDecoder(EncodingType.ZRLE, new ZRLEDecoder());
+        putDecoder(EncodingType.ZLIB, new ZlibDecoder());
+        putDecoder(EncodingType.CO_RRE, new CoRREDecoder());
+        putDecoder(EncodingType.RRE, new RREDecoder());
+        putDecoder(EncodingType.COPY_RECT, new CopyRectDecoder());
 
-        decoders.put(EncodingType.RICH_CURSOR, new RichCursorDecoder());
-        decoders.put(EncodingType.DESKTOP_SIZE, new DesctopSizeDecoder());
-        decoders.put(EncodingType.CURSOR_POS, new CursorPosDecoder());
+        putDecoder(EncodingType.RICH_CURSOR, new RichCursorDecoder());
+        putDecoder(EncodingType.X_CURSOR, new XCursorDecoder());
+        putDecoder(EncodingType.DESKTOP_SIZE, new DesctopSizeDecoder());
+        putDecoder(EncodingType.CURSOR_POS, new CursorPosDecoder());
+        registerDecoderProviders();
+    }
+
+    /**
+     * Register decoders of {@link DecoderProvider} services found at class path,
+     * for encodings EncodingType does not know or instead of built in decoders
+     */
+    public void registerDecoderProviders() {
+        try {
+            for (DecoderProvider provider : ServiceLoader.load(DecoderProvider.class)) {
+                final int id = provider.getEncodingId();
+                final Decoder decoder = provider.createDecoder();
+                if (null == decoder) continue;
+                final EncodingType encodingType = EncodingType.find(id);
+                if (encodingType != null) {
+                    putDecoder(encodingType, decoder);
+                } else {
+                    providedDecoders.put(id, decoder);
+                    if (provider.isPseudoEncoding()) {
+                        providedPseudoEncodings.add(id);
+                    }
+                    decoderTable.put(id, decoder);
+                }
+                logger.finer("Register provided decoder: " + provider.getName() + " (" + id + ")");
+            }
+        } catch (ServiceConfigurationError e) {
+            logger.warning("Cannot load decoder provider: " + e.getMessage());
+        }
+    }
+
+    private void putDecoder(EncodingType encodingType, Decoder decoder) {
+        decoders.put(encodingType, decoder);
+        decoderTable.put(encodingType.getId(), decoder);
     }
 
     public void resetDecoders() {
@@ -366,10 +444,29 @@ public class Protocol implements IChangeSettingsListener {
                 decoder.reset();
             }
         }
+        for (Decoder decoder : providedDecoders.values()) {
+            decoder.reset();
+        }
     }
 
     public Decoder getDecoderByType(EncodingType type) {
-        return decoders.get(type);
+        return type != null ? decoderTable.get(type.getId()) : null;
+    }
+
+    /**
+     * Decoder for rectangle dispatch, by flat table lookup
+     *
+     * @return decoder registered for the encoding id, null when there is no one
+     */
+    public Decoder getDecoder(int encodingId) {
+        return decoderTable.get(encodingId);
+    }
+
+    /**
+     * @return true for pseudo encoding of decoder plugged in with {@link DecoderProvider}
+     */
+    public boolean isProvidedPseudoEncoding(int encodingId) {
+        return providedPseudoEncodings.contains(encodingId);
     }
 
     public void registerEncoding(RfbCapabilityInfo capInfo) {
@@ -378,7 +475,7 @@ public class Protocol implements IChangeSettingsListener {
             if ( ! decoders.containsKey(encodingType)) {
                 final Decoder decoder = encodingType.klass.newInstance();
                 if (decoder != null) {
-                    decoders.put(encodingType, decoder);
+                    putDecoder(encodingType, decoder);
                     logger.finer("Register encoding: " + encodingType);
                 }
             }
@@ -427,6 +524,24 @@ public class Protocol implements IChangeSettingsListener {
         this.baudrateMeter = baudrateMeter;
     }
 
+    /**
+     * @return meter of client-to-server messages and bytes sent per one transport flush
+     */
+    public FlushMeter getFlushMeter() {
+        return flushMeter;
+    }
+
+    public ByteBuffer getDecoderBuffer() {
+        return decoderBuffer;
+    }
+
+    /**
+     * @return meter of bytes held by session's decoder buffer
+     */
+    public BufferMeter getBufferMeter() {
+        return decoderBuffer.getMeter();
+    }
+
     public int kBPS() {
     return baudrateMeter == null ? -1 : baudrateMeter.kBPS();
   }
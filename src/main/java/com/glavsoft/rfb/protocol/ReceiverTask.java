@@ -33,6 +33,7 @@ import com.glavsoft.rfb.client.FramebufferUpdateRequestMessage;
 import com.glavsoft.rfb.client.SetPixelFormatMessage;
 import com.glavsoft.rfb.encoding.EncodingType;
 import com.glavsoft.rfb.encoding.PixelFormat;
+import com.glavsoft.rfb.encoding.decoder.ByteBuffer;
 import com.glavsoft.rfb.encoding.decoder.Decoder;
 import com.glavsoft.rfb.encoding.decoder.FramebufferUpdateRectangle;
 import com.glavsoft.transport.BaudrateMeter;
@@ -40,6 +41,8 @@ import com.glavsoft.transport.Transport;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 public class ReceiverTask implements Runnable {
@@ -59,6 +62,11 @@ public class ReceiverTask implements Runnable {
     private BaudrateMeter baudrateMeter;
     private PixelFormat pixelFormat;
     private volatile boolean needSendPixelFormat;
+    /**
+     * Pipelined decoder which rectangles are decoded but not drawn yet, and the rectangles
+     */
+    private Decoder pipelinedDecoder;
+    private final List<FramebufferUpdateRectangle> pipelinedRects = new ArrayList<FramebufferUpdateRectangle>();
 
 	public ReceiverTask(Transport transport,
                         IRepaintController repaintController, ClipboardController clipboardController,
@@ -76,6 +84,8 @@ public class ReceiverTask implements Runnable {
 
 	@Override
 	public void run() {
+		final ByteBuffer decoderBuffer = protocol.getDecoderBuffer();
+		decoderBuffer.bind();
 		try {
 			while ( ! Thread.currentThread().isInterrupted()) {
 				byte messageId = transport.readByte();
@@ -115,6 +125,10 @@ public class ReceiverTask implements Runnable {
 			PrintWriter pw = new PrintWriter(sw);
 			te.printStackTrace(pw);
 			protocol.cleanUpSession(te.getMessage() + "\n" + sw.toString());
+		} finally {
+			decoderBuffer.unbind();
+			decoderBuffer.release();
+			protocol.releaseTransport();
 		}
 		Logger.getLogger(getClass().getName()).finer("Receiver task stopped");
 	}
@@ -150,16 +164,23 @@ public class ReceiverTask implements Runnable {
 			FramebufferUpdateRectangle rect = new FramebufferUpdateRectangle();
 			rect.fill(transport);
 
-			Decoder decoder = protocol.getDecoderByType(rect.getEncodingType());
+			Decoder decoder = protocol.getDecoder(rect.getEncodingId());
 //			logger.finer(rect.toString() + (0 == numberOfRectangles ? "\n---" : ""));
 			if (decoder != null) {
+                if (decoder != pipelinedDecoder) {
+                    commitPipelined();
+                }
                 try {
                     if (baudrateMeter != null) baudrateMeter.startMeasuringCycle();
                     decoder.decode(transport, renderer, rect);
                 } finally {
                     if (baudrateMeter != null) baudrateMeter.stopMeasuringCycle();
                 }
-                if (EncodingType.RICH_CURSOR == rect.getEncodingType() ||
+                if (decoder.isPipelined()) {
+                    pipelinedDecoder = decoder;
+                    pipelinedRects.add(rect);
+                } else if (EncodingType.RICH_CURSOR == rect.getEncodingType() ||
+                    EncodingType.X_CURSOR == rect.getEncodingType() ||
                     EncodingType.CURSOR_POS == rect.getEncodingType()) {
                     repaintController.repaintCursor();
                 } else if (rect.getEncodingType() == EncodingType.DESKTOP_SIZE) {
@@ -171,13 +192,14 @@ public class ReceiverTask implements Runnable {
                             protocol.getPixelFormat());
                     protocol.sendMessage(new FramebufferUpdateRequestMessage(0, 0, rect.width, rect.height, false));
                     return;
-                } else {
+                } else if ( ! protocol.isProvidedPseudoEncoding(rect.getEncodingId())) {
                     repaintController.repaintBitmap(rect);
                 }
 			} else {
 				throw new CommonException("Unprocessed encoding: " + rect.toString());
             }
 		}
+        commitPipelined();
         if (needSendPixelFormat) {
             synchronized (this) {
                 if (needSendPixelFormat) {
@@ -194,6 +216,19 @@ public class ReceiverTask implements Runnable {
         }
 	}
 
+	/**
+	 * Draw rectangles decoded by pipelined decoder and repaint them
+	 */
+	private void commitPipelined() throws TransportException {
+		if (null == pipelinedDecoder) return;
+		pipelinedDecoder.commit();
+		pipelinedDecoder = null;
+		for (FramebufferUpdateRectangle rect : pipelinedRects) {
+			repaintController.repaintBitmap(rect);
+		}
+		pipelinedRects.clear();
+	}
+
 	public synchronized void queueUpdatePixelFormat(PixelFormat pf) {
 		pixelFormat = pf;
 		needSendPixelFormat = true;
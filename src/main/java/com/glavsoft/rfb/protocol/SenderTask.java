@@ -25,31 +25,49 @@ package com.glavsoft.rfb.protocol;
 
 import com.glavsoft.exceptions.TransportException;
 import com.glavsoft.rfb.client.ClientToServerMessage;
+import com.glavsoft.transport.FlushMeter;
 import com.glavsoft.transport.Transport;
 
+import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.logging.Logger;
 
 public class SenderTask implements Runnable {
+	/**
+	 * Stop draining the queue into current batch when it grows above this size
+	 */
+	private static final int MAX_BATCH_SIZE = 64 * 1024;
+	private static final int INITIAL_BATCH_BUFFER_SIZE = 1024;
 
 	private final MessageQueue queue;
 	private final Transport transport;
 	private final Protocol protocol;
+	private final BatchBuffer batchBuffer;
+	private final Transport batchWriter;
+	private final FlushMeter flushMeter;
 
 	/**
 	 * Create sender task
 	 * Task runs as thread, receive messages from queue and sends them to transport.
-	 * When no messages appears in queue longer than timeout period, sends FramebufferUpdate
-	 * request
+	 * All the messages available in queue at the moment are encoded into one reusable buffer
+	 * and sent out with single write and flush.
      * @param messageQueue queue to poll messages
      * @param transport transport to send messages out
      * @param protocol session lifecircle support
+     * @param flushMeter meter to count messages and bytes per flush, may be null
      */
-	public SenderTask(MessageQueue messageQueue, Transport transport, Protocol protocol) {
+	public SenderTask(MessageQueue messageQueue, Transport transport, Protocol protocol, FlushMeter flushMeter) {
 		this.queue = messageQueue;
 		this.transport = transport;
 		this.protocol = protocol;
+		this.flushMeter = flushMeter;
+		batchBuffer = new BatchBuffer(INITIAL_BATCH_BUFFER_SIZE);
+		batchWriter = new Transport(batchBuffer);
+	}
+
+	public SenderTask(MessageQueue messageQueue, Transport transport, Protocol protocol) {
+		this(messageQueue, transport, protocol, null);
 	}
 
 	@Override
@@ -59,7 +77,13 @@ public class SenderTask implements Runnable {
 			while ( ! Thread.currentThread().isInterrupted()) {
 				message = queue.get();
 				if (message != null) {
-					message.send(transport);
+					int messagesCount = 0;
+					do {
+						// messages flush writer after they're written, that's no-op for batch buffer
+						message.send(batchWriter);
+						++messagesCount;
+					} while (batchBuffer.size() < MAX_BATCH_SIZE && (message = queue.poll()) != null);
+					sendBatch(messagesCount);
 				}
 			}
 		} catch (InterruptedException e) {
@@ -76,4 +100,31 @@ public class SenderTask implements Runnable {
 		Logger.getLogger(getClass().getName()).finer("Sender task stopped");
 	}
 
+	private void sendBatch(int messagesCount) throws TransportException {
+		final int size = batchBuffer.size();
+		try {
+			batchBuffer.writeTo(transport);
+			transport.flush();
+		} finally {
+			batchBuffer.reset();
+		}
+		if (flushMeter != null) {
+			flushMeter.count(messagesCount, size);
+		}
+	}
+
+	/**
+	 * Byte array output stream with access to underlying array, so its content may be written
+	 * into transport without copying
+	 */
+	private static class BatchBuffer extends ByteArrayOutputStream {
+		BatchBuffer(int size) {
+			super(size);
+		}
+
+		void writeTo(Transport transport) throws TransportException {
+			transport.write(buf, 0, count);
+		}
+	}
+
 }
@@ -0,0 +1,298 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.rfb.protocol;
+
+import com.glavsoft.exceptions.CommonException;
+import com.glavsoft.rfb.ClipboardController;
+import com.glavsoft.rfb.IRepaintController;
+import com.glavsoft.rfb.IRequestString;
+import com.glavsoft.rfb.IRfbSessionListener;
+import com.glavsoft.rfb.client.SetPixelFormatMessage;
+import com.glavsoft.transport.ChannelTransport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many rfb sessions on a few threads, as opposed to {@link Protocol#startNormalHandling} which
+ * starts sender and receiver threads per session.
+ *
+ * Each session socket is served by one of selector threads, which reads incoming bytes as they arrive,
+ * finds out complete server messages with {@link MessageFramer} and writes out client messages queued.
+ * Complete messages are decoded with session's decoders and renderer at shared worker pool,
+ * one task per session at a time, so the messages of session are decoded in order.
+ * Session socket reading is suspended while too much undecoded data is queued for it
+ * ({@link #MAX_QUEUED_BYTES_PROPERTY}). Session is closed when single server message is longer than
+ * {@link #MAX_MESSAGE_SIZE_PROPERTY}, as message is framed whole in session's input buffer.
+ *
+ * Handshake is made at the thread calling {@link #open}, with blocking io. Tunneled sessions
+ * and pixel format (color depth) changes while session is running are not supported.
+ */
+public class SessionEngine {
+	public static final String SELECTOR_THREADS_PROPERTY = "com.glavsoft.rfb.engine.selectorThreads";
+	public static final String WORKER_THREADS_PROPERTY = "com.glavsoft.rfb.engine.workerThreads";
+	public static final String MAX_QUEUED_BYTES_PROPERTY = "com.glavsoft.rfb.engine.maxQueuedBytes";
+	private static final int DEFAULT_MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+	public static final String MAX_MESSAGE_SIZE_PROPERTY = "com.glavsoft.rfb.engine.maxMessageSize";
+	/**
+	 * Fits raw full screen update of 3840x2160 at 32 bits per pixel
+	 */
+	private static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+	private static final int HANDSHAKE_BUFFER_SIZE = 8 * 1024;
+
+	private static final Logger logger = Logger.getLogger("com.glavsoft.rfb.protocol.SessionEngine");
+	private final SelectorLoop[] loops;
+	private final ExecutorService workers;
+	private final int workerThreads;
+	private final int maxQueuedBytes;
+	private final int maxMessageSize;
+	private final List<EngineSession> sessions = new CopyOnWriteArrayList<EngineSession>();
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private volatile boolean shutdown;
+
+	/**
+	 * Create engine with number of threads set by {@link #SELECTOR_THREADS_PROPERTY} (1 by default) and
+	 * {@link #WORKER_THREADS_PROPERTY} (number of processors by default) system properties
+	 */
+	public SessionEngine() throws IOException {
+		this(Integer.getInteger(SELECTOR_THREADS_PROPERTY, 1),
+				Integer.getInteger(WORKER_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+	}
+
+	public SessionEngine(int selectorThreads, int workerThreads) throws IOException {
+		this.workerThreads = Math.max(1, workerThreads);
+		maxQueuedBytes = Integer.getInteger(MAX_QUEUED_BYTES_PROPERTY, DEFAULT_MAX_QUEUED_BYTES);
+		maxMessageSize = Integer.getInteger(MAX_MESSAGE_SIZE_PROPERTY, DEFAULT_MAX_MESSAGE_SIZE);
+		workers = Executors.newFixedThreadPool(this.workerThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread thread = new Thread(r, "RfbEngineWorker-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		loops = new SelectorLoop[Math.max(1, selectorThreads)];
+		for (int i = 0; i < loops.length; ++i) {
+			loops[i] = new SelectorLoop(Selector.open());
+			final Thread thread = new Thread(loops[i], "RfbEngineSelector-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Make handshake with server connected by channel and start session handling by the engine.
+	 *
+	 * @param channel connected socket channel
+	 * @param passwordRetriever password source for authentication
+	 * @param settings session settings, tunnel type must be {@link com.glavsoft.rfb.protocol.tunnel.TunnelType#NOTUNNEL}
+	 * @param repaintController renderer factory and repaint target
+	 * @param clipboardController clipboard to put server's cut text to, may be null
+	 * @param sessionListener listener to get session stop events, may be null
+	 * @return session started
+	 * @throws CommonException when handshake failed
+	 * @throws IOException when socket channel cannot be set up
+	 */
+	public EngineSession open(SocketChannel channel, IRequestString passwordRetriever, ProtocolSettings settings,
+			IRepaintController repaintController, ClipboardController clipboardController,
+			IRfbSessionListener sessionListener) throws CommonException, IOException {
+		if (shutdown) throw new IllegalStateException("Engine is shut down");
+		channel.configureBlocking(true);
+		final ChannelTransport transport = new ChannelTransport(channel, Channels.newOutputStream(channel),
+				HANDSHAKE_BUFFER_SIZE);
+		final EngineSession session;
+		try {
+			final Protocol protocol = new Protocol(transport, passwordRetriever, settings);
+			protocol.handshake();
+			if (protocol.getTransport() != transport) {
+				throw new CommonException("Tunneled sessions are not supported by session engine");
+			}
+			protocol.initPixelFormat();
+			protocol.sendMessage(new SetPixelFormatMessage(protocol.getPixelFormat()));
+			protocol.sendSupportedEncodingsMessage(settings);
+			settings.addListener(protocol); // to support encodings changes
+			settings.addListener(repaintController);
+			protocol.sendRefreshMessage();
+			protocol.resetDecoders();
+			// server may send data just after handshake, pass it to session
+			final ByteBuffer received = transport.readBuffer(transport.available());
+			session = new EngineSession(this, loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length],
+					channel, protocol, repaintController, clipboardController, sessionListener, received);
+		} finally {
+			transport.release();
+		}
+		channel.configureBlocking(false);
+		sessions.add(session);
+		session.register();
+		return session;
+	}
+
+	public List<EngineSession> getSessions() {
+		return new ArrayList<EngineSession>(sessions);
+	}
+
+	/**
+	 * @return number of threads the engine runs sessions with
+	 */
+	public int getThreadCount() {
+		return loops.length + workerThreads;
+	}
+
+	/**
+	 * Close all the sessions and stop engine threads
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for (EngineSession session : sessions) {
+			session.close("Session engine shut down.");
+		}
+		for (SelectorLoop loop : loops) {
+			loop.stop();
+		}
+		workers.shutdown();
+		try {
+			workers.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	int getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	void decode(EngineSession session) {
+		workers.execute(session);
+	}
+
+	void removeSession(EngineSession session) {
+		sessions.remove(session);
+	}
+
+	@Override
+	public String toString() {
+		long cpuNanos = 0;
+		long memory = 0;
+		final List<EngineSession> current = getSessions();
+		for (EngineSession session : current) {
+			cpuNanos += session.getCpuTime();
+			memory += session.getBuffersSize() + session.getFramebufferSize();
+		}
+		final int count = current.size();
+		return "Session engine: " + count + " sessions, " + getThreadCount() + " threads (" +
+				loops.length + " selector, " + workerThreads + " worker)" +
+				(count > 0 ?
+						", per session: " + cpuNanos / count / 1000000 + " ms cpu, " +
+						memory / count / 1024 + " KiB memory" :
+						"");
+	}
+
+	/**
+	 * Selector thread. Session keys are registered and changed only at this thread,
+	 * other threads pass tasks to it with {@link #execute}.
+	 */
+	static class SelectorLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private volatile boolean stopped;
+
+		SelectorLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		SelectionKey register(SocketChannel channel, EngineSession session) throws IOException {
+			return channel.register(selector, SelectionKey.OP_READ, session);
+		}
+
+		void stop() {
+			stopped = true;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while ( ! stopped) {
+					selector.select();
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+					final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						final EngineSession session = (EngineSession) key.attachment();
+						if (key.isValid() && key.isReadable()) {
+							session.readInput();
+						}
+						if (key.isValid() && key.isWritable()) {
+							session.writeOutput();
+						}
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				// stopped
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Selector failed", e);
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// nop
+				}
+			}
+			logger.finer("Selector loop stopped");
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts bytes of buffers: held currently, peak of held and allocated in total
+ */
+public class BufferMeter {
+    private final AtomicLong current = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * New buffer is allocated (or acquired) and held
+     */
+    public void allocated(long bytes) {
+        allocated.addAndGet(bytes);
+        held(bytes);
+    }
+
+    public void held(long bytes) {
+        final long held = current.addAndGet(bytes);
+        long max;
+        while (held > (max = peak.get()) && ! peak.compareAndSet(max, held)) {
+            // retry
+        }
+    }
+
+    public void freed(long bytes) {
+        current.addAndGet(-bytes);
+    }
+
+    public long getCurrent() {
+        return current.get();
+    }
+
+    public long getPeak() {
+        return peak.get();
+    }
+
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BufferMeter: [current: %d KiB, peak: %d KiB, allocated: %d KiB]",
+                getCurrent() / 1024, getPeak() / 1024, getAllocated() / 1024);
+    }
+}
@@ -0,0 +1,215 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide pool of byte arrays and direct byte buffers of size classes: powers of two and one and a half
+ * of them, from {@link #MIN_LENGTH}. Buffers outgrown and buffers of closed sessions are reused instead of allocated,
+ * buffers idle in pool longer than {@link #IDLE_SECONDS} are dropped for GC, buffers longer than
+ * {@link #MAX_POOLED_LENGTH} are never pooled.
+ *
+ * Meter counts bytes of buffers pool allocated and still keeps or gave away.
+ */
+public class BufferPool {
+    public static final int MIN_LENGTH = 4 * 1024;
+    public static final int MAX_POOLED_LENGTH = 32 * 1024 * 1024;
+    public static final long IDLE_SECONDS = 30;
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_POOLED_PER_CLASS = 8;
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(IDLE_SECONDS);
+    private static final long TRIM_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final BufferPool instance = new BufferPool();
+
+    private final SizeClass[] arrays;
+    private final SizeClass[] directBuffers;
+    private final BufferMeter meter = new BufferMeter();
+    private final AtomicLong lastTrim = new AtomicLong(System.nanoTime());
+
+    BufferPool() {
+        final int classes = classIndex(MAX_POOLED_LENGTH) + 1;
+        arrays = new SizeClass[classes];
+        directBuffers = new SizeClass[classes];
+        for (int i = 0; i < classes; ++i) {
+            arrays[i] = new SizeClass();
+            directBuffers[i] = new SizeClass();
+        }
+    }
+
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return length of the smallest size class buffer of length given fits into,
+     * or the length itself when it is too long for pooling
+     */
+    public static int classLength(int length) {
+        return length > MAX_POOLED_LENGTH ? length : lengthOfClass(classIndex(length));
+    }
+
+    static int classIndex(int length) {
+        if (length <= MIN_LENGTH) return 0;
+        final int shift = 32 - Integer.numberOfLeadingZeros(length - 1); // length <= 1 << shift
+        final int index = (shift - MIN_SHIFT) * 2;
+        return length <= 3 << shift - 2 ? index - 1 : index;
+    }
+
+    static int lengthOfClass(int index) {
+        return index % 2 == 0 ?
+                1 << MIN_SHIFT + index / 2 :
+                3 << MIN_SHIFT + index / 2 - 1;
+    }
+
+    /**
+     * Get byte array of length at least requested (of size class length)
+     */
+    public byte[] acquire(int length) {
+        final int classLength = classLength(length);
+        if (classLength <= MAX_POOLED_LENGTH) {
+            final byte[] array = (byte[]) arrays[classIndex(classLength)].poll();
+            if (array != null) {
+                trimIfTime();
+                return array;
+            }
+        }
+        meter.allocated(classLength);
+        return new byte[classLength];
+    }
+
+    /**
+     * Return array into pool. Array must not be used by caller after that.
+     */
+    public void release(byte[] array) {
+        if (null == array || 0 == array.length) return;
+        if ( ! offer(arrays, array, array.length)) {
+            meter.freed(array.length);
+        }
+        trimIfTime();
+    }
+
+    /**
+     * Get cleared direct buffer with capacity at least requested (of size class length)
+     */
+    public ByteBuffer acquireDirect(int capacity) {
+        final int classLength = classLength(capacity);
+        if (classLength <= MAX_POOLED_LENGTH) {
+            final ByteBuffer buffer = (ByteBuffer) directBuffers[classIndex(classLength)].poll();
+            if (buffer != null) {
+                buffer.clear();
+                trimIfTime();
+                return buffer;
+            }
+        }
+        meter.allocated(classLength);
+        return ByteBuffer.allocateDirect(classLength);
+    }
+
+    /**
+     * Return direct buffer into pool. Buffer must not be used by caller after that.
+     */
+    public void release(ByteBuffer buffer) {
+        if (null == buffer || ! buffer.isDirect()) return;
+        if ( ! offer(directBuffers, buffer, buffer.capacity())) {
+            meter.freed(buffer.capacity());
+        }
+        trimIfTime();
+    }
+
+    private static boolean offer(SizeClass[] classes, Object buffer, int length) {
+        if (length > MAX_POOLED_LENGTH || length < MIN_LENGTH) return false;
+        final int index = classIndex(length);
+        return lengthOfClass(index) == length && classes[index].offer(buffer, System.nanoTime());
+    }
+
+    /**
+     * Drop buffers idle in pool for longer than {@link #IDLE_SECONDS}
+     */
+    public void trim() {
+        final long idleSince = System.nanoTime() - IDLE_NANOS;
+        for (int i = 0; i < arrays.length; ++i) {
+            final int length = lengthOfClass(i);
+            meter.freed((long) length * arrays[i].trim(idleSince));
+            meter.freed((long) length * directBuffers[i].trim(idleSince));
+        }
+    }
+
+    private void trimIfTime() {
+        final long now = System.nanoTime();
+        final long last = lastTrim.get();
+        if (now - last > TRIM_PERIOD_NANOS && lastTrim.compareAndSet(last, now)) {
+            trim();
+        }
+    }
+
+    public BufferMeter getMeter() {
+        return meter;
+    }
+
+    /**
+     * Buffers of one length, stacked in release order, so the most recently released is reused first
+     * and the idle ones are at the bottom
+     */
+    private static class SizeClass {
+        private final Object[] buffers = new Object[MAX_POOLED_PER_CLASS];
+        private final long[] releaseTimes = new long[MAX_POOLED_PER_CLASS];
+        private int count;
+
+        synchronized Object poll() {
+            if (0 == count) return null;
+            final Object buffer = buffers[--count];
+            buffers[count] = null;
+            return buffer;
+        }
+
+        synchronized boolean offer(Object buffer, long now) {
+            if (MAX_POOLED_PER_CLASS == count) return false;
+            buffers[count] = buffer;
+            releaseTimes[count++] = now;
+            return true;
+        }
+
+        /**
+         * @return number of buffers dropped
+         */
+        synchronized int trim(long idleSince) {
+            int idle = 0;
+            while (idle < count && releaseTimes[idle] - idleSince < 0) {
+                ++idle;
+            }
+            if (idle > 0) {
+                System.arraycopy(buffers, idle, buffers, 0, count - idle);
+                System.arraycopy(releaseTimes, idle, releaseTimes, 0, count - idle);
+                for (int i = count - idle; i < count; ++i) {
+                    buffers[i] = null;
+                }
+                count -= idle;
+            }
+            return idle;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import com.glavsoft.exceptions.TransportException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of data already in memory (ex. decompressed or copied payload) with Transport read API,
+ * reading right from array without any stream layers. Reusable: {@link #wrap} next array
+ * to read it, so no objects are allocated per data block read.
+ */
+public class ByteArrayTransport extends Transport {
+    private byte[] bytes;
+    private int position;
+    private int limit;
+
+    public ByteArrayTransport() {
+        super(null, null);
+    }
+
+    /**
+     * Start reading of @code{length} bytes of array from @code{offset}
+     *
+     * @return this
+     */
+    public ByteArrayTransport wrap(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        position = offset;
+        limit = offset + length;
+        return this;
+    }
+
+    public ByteArrayTransport wrap(byte[] bytes) {
+        return wrap(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return number of bytes not read yet
+     */
+    public int available() {
+        return limit - position;
+    }
+
+    private void require(int needed) throws TransportException {
+        if (limit - position < needed) {
+            throw new TransportException("Unexpected end of data");
+        }
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        bytes = null;
+        position = limit = 0;
+    }
+
+    @Override
+    public byte readByte() throws TransportException {
+        require(1);
+        return bytes[position++];
+    }
+
+    @Override
+    public int readUInt8() throws TransportException {
+        require(1);
+        return bytes[position++] & 0xff;
+    }
+
+    @Override
+    public short readInt16() throws TransportException {
+        require(2);
+        return (short) ((bytes[position++] & 0xff) << 8 | bytes[position++] & 0xff);
+    }
+
+    @Override
+    public int readUInt16() throws TransportException {
+        return readInt16() & 0x0ffff;
+    }
+
+    @Override
+    public int readInt32() throws TransportException {
+        require(4);
+        return (bytes[position++] & 0xff) << 24 | (bytes[position++] & 0xff) << 16 |
+                (bytes[position++] & 0xff) << 8 | bytes[position++] & 0xff;
+    }
+
+    @Override
+    public long readInt64() throws TransportException {
+        return (long) readInt32() << 32 | readInt32() & 0xffffffffL;
+    }
+
+    @Override
+    public byte[] readBytes(byte[] b, int offset, int length) throws TransportException {
+        require(length);
+        System.arraycopy(bytes, position, b, offset, length);
+        position += length;
+        return b;
+    }
+
+    @Override
+    public ByteBuffer readBuffer(int length) throws TransportException {
+        require(length);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, position, length).slice();
+        position += length;
+        return buffer;
+    }
+
+    @Override
+    public int[] readUInt16s(int[] dst, int offset, int count) throws TransportException {
+        require(count * 2);
+        while (count-- > 0) {
+            dst[offset++] = (bytes[position++] & 0xff) << 8 | bytes[position++] & 0xff;
+        }
+        return dst;
+    }
+
+    @Override
+    public int[] readInt32s(int[] dst, int offset, int count) throws TransportException {
+        require(count * 4);
+        while (count-- > 0) {
+            dst[offset++] = (bytes[position++] & 0xff) << 24 | (bytes[position++] & 0xff) << 16 |
+                    (bytes[position++] & 0xff) << 8 | bytes[position++] & 0xff;
+        }
+        return dst;
+    }
+
+    @Override
+    public void skip(int length) throws TransportException {
+        require(length);
+        position += length;
+    }
+}
@@ -0,0 +1,260 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import com.glavsoft.exceptions.ClosedConnectionException;
+import com.glavsoft.exceptions.TransportException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Transport which reads data from channel through large direct read-ahead buffer.
+ * Primitives and byte runs are decoded right from the buffer, so there is no stream layers,
+ * exception wrapping and baudrate counting per every read primitive.
+ * Writing is delegated to base class.
+ */
+public class ChannelTransport extends Transport {
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    /**
+     * System property for read-ahead ring size in bytes. When set to positive value, socket is read by dedicated
+     * reader thread into ring of that size, so network reads are pipelined with decoding
+     * (see {@link RingBufferChannel}). Not set or zero means reading on consumer thread.
+     */
+    public static final String RING_BUFFER_SIZE_PROPERTY = "com.glavsoft.transport.ringBufferSize";
+    private ReadableByteChannel channel;
+    /**
+     * Read-ahead buffer, always in 'read' mode: bytes between position and limit are not read yet
+     */
+    protected final ByteBuffer buffer;
+    private boolean released;
+
+    public ChannelTransport(Socket socket) throws IOException {
+        this(channelOf(socket), socket.getOutputStream(), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create transport for socket, with read-ahead reader thread when configured by
+     * {@link #RING_BUFFER_SIZE_PROPERTY} system property
+     */
+    public static ChannelTransport create(Socket socket) throws IOException {
+        final int ringBufferSize = Integer.getInteger(RING_BUFFER_SIZE_PROPERTY, 0);
+        if (ringBufferSize > 0) {
+            return new ChannelTransport(
+                    new RingBufferChannel(channelOf(socket), ringBufferSize).start(),
+                    socket.getOutputStream());
+        }
+        return new ChannelTransport(socket);
+    }
+
+    private static ReadableByteChannel channelOf(Socket socket) throws IOException {
+        return null != socket.getChannel() ?
+                socket.getChannel() :
+                Channels.newChannel(socket.getInputStream());
+    }
+
+    public ChannelTransport(ReadableByteChannel channel, OutputStream os) {
+        this(channel, os, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ChannelTransport(ReadableByteChannel channel, OutputStream os, int bufferSize) {
+        super(null, os);
+        this.channel = channel;
+        buffer = DirectBufferPool.acquire(bufferSize);
+        buffer.limit(0);
+    }
+
+    /**
+     * Make sure at least @code{needed} bytes are available at buffer.
+     * Precondition: needed &lt;= buffer.capacity()
+     */
+    protected final void require(int needed) throws TransportException {
+        if (buffer.remaining() < needed) {
+            fill(needed);
+        }
+    }
+
+    /**
+     * Move unread bytes to buffer start and read from channel until there are at least @code{needed} bytes
+     * available. Reads as much as channel is ready to give at once, so next reads will be served from buffer.
+     */
+    protected void fill(int needed) throws TransportException {
+        buffer.compact();
+        try {
+            while (buffer.position() < needed) {
+                int read = readFromChannel(buffer);
+                if (read < 0) throw new ClosedConnectionException(new EOFException());
+                if (baudrateMeter != null) baudrateMeter.count(read);
+                if (recorder != null) recorder.record(buffer, buffer.position() - read, read);
+            }
+        } catch (IOException e) {
+            throw new TransportException("Cannot read from channel", e);
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Read bytes from underlying channel into @code{dst}
+     * @return number of bytes read or -1 at end of stream
+     */
+    protected int readFromChannel(ByteBuffer dst) throws IOException, TransportException {
+        return channel.read(dst);
+    }
+
+    /**
+     * @return channel data read from, ex. {@link RingBufferChannel} to get read-ahead statistics from
+     */
+    public ReadableByteChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return number of bytes that may be read without blocking
+     */
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public byte readByte() throws TransportException {
+        require(1);
+        return buffer.get();
+    }
+
+    @Override
+    public int readUInt8() throws TransportException {
+        require(1);
+        return buffer.get() & 0x0ff;
+    }
+
+    @Override
+    public short readInt16() throws TransportException {
+        require(2);
+        return buffer.getShort();
+    }
+
+    @Override
+    public int readUInt16() throws TransportException {
+        require(2);
+        return buffer.getShort() & 0x0ffff;
+    }
+
+    @Override
+    public int readInt32() throws TransportException {
+        require(4);
+        return buffer.getInt();
+    }
+
+    @Override
+    public long readInt64() throws TransportException {
+        require(8);
+        return buffer.getLong();
+    }
+
+    @Override
+    public byte[] readBytes(byte[] b, int offset, int length) throws TransportException {
+        int rest = length;
+        while (rest > 0) {
+            if ( ! buffer.hasRemaining()) {
+                fill(1);
+            }
+            int portion = Math.min(rest, buffer.remaining());
+            buffer.get(b, offset, portion);
+            offset += portion;
+            rest -= portion;
+        }
+        return b;
+    }
+
+    /**
+     * When requested length fits into read-ahead buffer returns buffer slice without data copying.
+     * Slice content is valid only until next read operation.
+     */
+    @Override
+    public ByteBuffer readBuffer(int length) throws TransportException {
+        if (length > buffer.capacity()) {
+            return super.readBuffer(length);
+        }
+        require(length);
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    @Override
+    public int[] readUInt16s(int[] dst, int offset, int count) throws TransportException {
+        while (count > 0) {
+            require(2);
+            int portion = Math.min(count, buffer.remaining() / 2);
+            for (int i = 0; i < portion; ++i) {
+                dst[offset++] = buffer.getShort() & 0x0ffff;
+            }
+            count -= portion;
+        }
+        return dst;
+    }
+
+    @Override
+    public int[] readInt32s(int[] dst, int offset, int count) throws TransportException {
+        while (count > 0) {
+            require(4);
+            int portion = Math.min(count, buffer.remaining() / 4);
+            buffer.asIntBuffer().get(dst, offset, portion);
+            buffer.position(buffer.position() + portion * 4);
+            offset += portion;
+            count -= portion;
+        }
+        return dst;
+    }
+
+    @Override
+    public void skip(int length) throws TransportException {
+        int rest = length;
+        while (rest > 0) {
+            if ( ! buffer.hasRemaining()) {
+                fill(1);
+            }
+            int portion = Math.min(rest, buffer.remaining());
+            buffer.position(buffer.position() + portion);
+            rest -= portion;
+        }
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        channel = null;
+        if ( ! released) {
+            released = true;
+            DirectBufferPool.release(buffer);
+        }
+    }
+}
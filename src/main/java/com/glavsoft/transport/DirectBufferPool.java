@@ -0,0 +1,51 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Process wide pool of direct byte buffers.
+ * Direct buffers are expensive to allocate and are freed by GC only, so transports reuse them
+ * among sessions (ex. reconnects) instead of allocating new ones.
+ * Buffers are kept by size classes of {@link BufferPool}.
+ */
+public class DirectBufferPool {
+
+    private DirectBufferPool() { /*empty*/ }
+
+    /**
+     * Get cleared direct buffer with capacity at least requested
+     */
+    public static ByteBuffer acquire(int capacity) {
+        return BufferPool.getInstance().acquireDirect(capacity);
+    }
+
+    /**
+     * Return buffer into pool. Buffer must not be used by caller after that.
+     */
+    public static void release(ByteBuffer buffer) {
+        BufferPool.getInstance().release(buffer);
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads data recorded into FBS file (see {@link FbsRecorder}) as continuous stream of data received from server
+ */
+public class FbsInputStream extends InputStream {
+    private static final byte[] FBS_HEADER = "FBS 001.000\n".getBytes(Transport.ISO_8859_1);
+    private final DataInputStream in;
+    private int blockRemaining;
+    private int padding;
+    private boolean inBlock;
+    private boolean eof;
+    private long timestamp;
+
+    /**
+     * @throws IOException when stream does not start with FBS header
+     */
+    public FbsInputStream(InputStream in) throws IOException {
+        this.in = new DataInputStream(in);
+        final byte[] header = new byte[FBS_HEADER.length];
+        this.in.readFully(header);
+        if ( ! Arrays.equals(FBS_HEADER, header)) {
+            throw new IOException("Not a FBS 001.000 file");
+        }
+    }
+
+    /**
+     * @return true when data starts with FBS header
+     */
+    public static boolean isFbs(byte[] data) {
+        if (data.length < FBS_HEADER.length) return false;
+        for (int i = 0; i < FBS_HEADER.length; ++i) {
+            if (data[i] != FBS_HEADER[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return timestamp of the last completely read block in milliseconds from recording start
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    private boolean nextBlock() throws IOException {
+        while (0 == blockRemaining) {
+            if (eof) return false;
+            if (inBlock) {
+                in.skipBytes(padding);
+                timestamp = in.readInt() & 0xffffffffL;
+                inBlock = false;
+            }
+            final int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                eof = true;
+                return false;
+            }
+            if (length < 0) throw new IOException("Wrong FBS block length: " + length);
+            blockRemaining = length;
+            padding = -length & 3;
+            inBlock = true;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ( ! nextBlock()) return -1;
+        --blockRemaining;
+        return in.readUnsignedByte();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (0 == len) return 0;
+        if ( ! nextBlock()) return -1;
+        final int read = in.read(b, off, Math.min(len, blockRemaining));
+        if (read < 0) throw new EOFException("Truncated FBS block");
+        blockRemaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return Math.min(blockRemaining, in.available());
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
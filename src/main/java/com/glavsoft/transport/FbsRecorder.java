@@ -0,0 +1,299 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records data received from server into FBS file (rfbproxy/TightVNC session recording format):
+ * 'FBS 001.000\n' header followed by blocks of [uint32 length][data padded to 4 bytes][uint32 timestamp ms].
+ *
+ * File is written through memory mapped segments, so recording is just memory copying at receiver thread.
+ * Segments are mapped ahead by recorder's own thread and handed off through small bounded queue.
+ * When next segment is not ready in time, data is kept in bounded overflow buffer, and when it overflows too,
+ * recording is stopped, so receiver thread is never blocked by recorder.
+ */
+public class FbsRecorder {
+    /**
+     * System property for directory to record sessions into. Sessions are not recorded when not set.
+     */
+    public static final String RECORD_DIR_PROPERTY = "com.glavsoft.transport.recordDir";
+    public static final int DEFAULT_SEGMENT_SIZE = 32 * 1024 * 1024;
+    public static final int DEFAULT_OVERFLOW_SIZE = 4 * 1024 * 1024;
+    private static final byte[] FBS_HEADER = "FBS 001.000\n".getBytes(Transport.ISO_8859_1);
+    private static final int BLOCK_OVERHEAD = 4 + 3 + 4; // length, max padding, timestamp
+    private static final long MAPPER_POLL_MILLIS = 100;
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel fileChannel;
+    private final int segmentSize;
+    private final BlockingQueue<MappedByteBuffer> readySegments = new ArrayBlockingQueue<MappedByteBuffer>(2);
+    private final ByteBuffer overflow;
+    private final Thread mapperThread;
+    private final long startTime;
+    private MappedByteBuffer segment;
+    private long segmentOffset;
+    private long written;
+    private volatile boolean closed;
+    private volatile IOException mapperException;
+    private long blocksCount;
+    private long overflowsCount;
+
+    public FbsRecorder(File file) throws IOException {
+        this(file, DEFAULT_SEGMENT_SIZE, DEFAULT_OVERFLOW_SIZE);
+    }
+
+    public FbsRecorder(File file, int segmentSize, int overflowSize) throws IOException {
+        this.file = file;
+        this.segmentSize = segmentSize;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        fileChannel = randomAccessFile.getChannel();
+        overflow = ByteBuffer.allocate(overflowSize);
+        segment = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        mapperThread = new Thread(new Mapper(), "FbsRecorderMapper");
+        mapperThread.setDaemon(true);
+        mapperThread.start();
+        segment.put(FBS_HEADER);
+        written = FBS_HEADER.length;
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Create recorder for new file at directory set by {@link #RECORD_DIR_PROPERTY} system property
+     * @param name session name used as file name prefix, ex. host name
+     * @return recorder or null when recording is not configured or file cannot be created
+     */
+    public static FbsRecorder create(String name) {
+        final String dir = System.getProperty(RECORD_DIR_PROPERTY);
+        if (null == dir) return null;
+        final String fileName = (null == name ? "session" : name).replaceAll("[^\\w.-]", "_") + "-" +
+                new java.text.SimpleDateFormat("yyyyMMdd-HHmmss").format(new java.util.Date()) + ".fbs";
+        try {
+            return new FbsRecorder(new File(dir, fileName));
+        } catch (IOException e) {
+            Logger.getLogger(FbsRecorder.class.getName())
+                    .log(Level.WARNING, "Cannot create session record file " + fileName + ": " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Append data received to record as one block. Called from the receiver thread.
+     * @param src buffer with data, its position and limit are not changed
+     * @param offset absolute data offset at src
+     * @param length data length
+     */
+    public synchronized void record(ByteBuffer src, int offset, int length) {
+        if (closed || length <= 0) return;
+        final int timestamp = (int) (System.currentTimeMillis() - startTime);
+        final int padding = -length & 3;
+        if ( ! ensureCapacity(BLOCK_OVERHEAD + length)) return;
+        putInt(length);
+        final ByteBuffer data = src.duplicate();
+        data.limit(offset + length).position(offset);
+        put(data);
+        for (int i = 0; i < padding; ++i) {
+            putByte((byte) 0);
+        }
+        putInt(timestamp);
+        ++blocksCount;
+    }
+
+    public void record(byte[] b, int offset, int length) {
+        record(ByteBuffer.wrap(b), offset, length);
+    }
+
+    /**
+     * Make current segment and overflow buffer be able to accept @code{length} more bytes,
+     * switching to next segment when it is ready. Stops recording when there is no space.
+     */
+    private boolean ensureCapacity(int length) {
+        if (segment.remaining() + overflow.remaining() >= length) return true;
+        nextSegment();
+        if (segment.remaining() + overflow.remaining() >= length) return true;
+        logger.warning("Session recording stopped: file mapping cannot keep up with received data" +
+                (mapperException != null ? ", " + mapperException.getMessage() : ""));
+        close();
+        return false;
+    }
+
+    private void nextSegment() {
+        while (true) {
+            final MappedByteBuffer next = readySegments.poll();
+            if (null == next) return;
+            segmentOffset += segmentSize;
+            segment = next;
+            if (overflow.position() > 0) {
+                ++overflowsCount;
+                overflow.flip();
+                final int portion = Math.min(overflow.remaining(), segment.remaining());
+                final int limit = overflow.limit();
+                overflow.limit(overflow.position() + portion);
+                segment.put(overflow);
+                overflow.limit(limit);
+                overflow.compact();
+            }
+            if (segment.hasRemaining()) return;
+        }
+    }
+
+    private void put(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            if (0 == overflow.position() && segment.hasRemaining()) {
+                final int portion = Math.min(data.remaining(), segment.remaining());
+                final int limit = data.limit();
+                data.limit(data.position() + portion);
+                segment.put(data);
+                data.limit(limit);
+            } else {
+                if ( ! segment.hasRemaining()) nextSegment();
+                if (overflow.position() > 0 || ! segment.hasRemaining()) {
+                    overflow.put(data);
+                }
+            }
+        }
+        written = segmentOffset + segment.position() + overflow.position();
+    }
+
+    private void putByte(byte b) {
+        if (0 == overflow.position() && segment.hasRemaining()) {
+            segment.put(b);
+        } else {
+            if ( ! segment.hasRemaining()) nextSegment();
+            if (overflow.position() > 0 || ! segment.hasRemaining()) {
+                overflow.put(b);
+            } else {
+                segment.put(b);
+            }
+        }
+        written = segmentOffset + segment.position() + overflow.position();
+    }
+
+    private void putInt(int i) {
+        putByte((byte) (i >>> 24));
+        putByte((byte) (i >>> 16));
+        putByte((byte) (i >>> 8));
+        putByte((byte) i);
+    }
+
+    /**
+     * Finish recording: flush data mapped and truncate file to recorded length.
+     * May be called from any thread, record calls after close are ignored.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        // neither mapper nor file i/o is interrupted: interrupt of FileChannel.map or write closes the channel
+        final boolean interrupted = Thread.interrupted();
+        try {
+            mapperThread.join();
+        } catch (InterruptedException e) {
+            // nop
+        }
+        try {
+            long recorded = segmentOffset + segment.position();
+            segment.force();
+            // drop mapped buffers, mapped file cannot be truncated at some platforms (Windows)
+            segment = null;
+            readySegments.clear();
+            overflow.flip();
+            randomAccessFile.seek(recorded);
+            randomAccessFile.write(overflow.array(), overflow.arrayOffset() + overflow.position(), overflow.remaining());
+            recorded += overflow.remaining();
+            truncate(recorded);
+            randomAccessFile.close();
+            logger.info("Session recorded: " + file + ", " + recorded + " bytes, " + blocksCount + " blocks" +
+                    (overflowsCount > 0 ? ", " + overflowsCount + " segment hand-off delays" : ""));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot finish session record file " + file + ": " + e.getMessage(), e);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        try {
+            randomAccessFile.setLength(length);
+        } catch (IOException e) {
+            // buffers dropped are unmapped when collected
+            System.gc();
+            randomAccessFile.setLength(length);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of bytes recorded including ones not yet written into file mapping
+     */
+    public synchronized long getRecordedLength() {
+        return written;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Maps segments ahead of the one written now
+     */
+    private class Mapper implements Runnable {
+        @Override
+        public void run() {
+            long offset = segmentSize;
+            try {
+                while ( ! closed) {
+                    final MappedByteBuffer next = fileChannel.map(FileChannel.MapMode.READ_WRITE, offset, segmentSize);
+                    // mapper is stopped with closed flag, not interrupted, see close()
+                    while ( ! closed && ! readySegments.offer(next, MAPPER_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        // wait for segment hand-off
+                    }
+                    offset += segmentSize;
+                }
+            } catch (InterruptedException e) {
+                // nop
+            } catch (IOException e) {
+                if ( ! closed) {
+                    mapperException = e;
+                    logger.log(Level.WARNING, "Cannot map session record file " + file + ": " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+/**
+ * Counts client-to-server messages and bytes sent per one transport flush
+ */
+public class FlushMeter {
+    private volatile long flushes;
+    private volatile long messages;
+    private volatile long bytes;
+    private volatile int maxMessagesPerFlush;
+
+    /**
+     * Called by writer thread only
+     */
+    public void count(int messages, int bytes) {
+        ++flushes;
+        this.messages += messages;
+        this.bytes += bytes;
+        if (messages > maxMessagesPerFlush) maxMessagesPerFlush = messages;
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public int getMaxMessagesPerFlush() {
+        return maxMessagesPerFlush;
+    }
+
+    public double messagesPerFlush() {
+        final long f = flushes;
+        return 0 == f ? 0 : (double) messages / f;
+    }
+
+    public double bytesPerFlush() {
+        final long f = flushes;
+        return 0 == f ? 0 : (double) bytes / f;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FlushMeter: [flushes: %d, messages/flush: %.2f, bytes/flush: %.1f, max messages/flush: %d]",
+                flushes, messagesPerFlush(), bytesPerFlush(), maxMessagesPerFlush);
+    }
+}
@@ -0,0 +1,258 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import com.glavsoft.exceptions.TransportException;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reader of zlib compressed data block which inflates data progressively, as it is read.
+ * Compressed bytes are read from source transport by chunks and fed to inflater only when
+ * decompressed data is needed, so decoder may render rows or tiles as soon as they are inflated,
+ * and memory used is bounded with window and chunk sizes instead of whole block length.
+ *
+ * Usage: {@link #begin} with compressed block length, read decompressed data, then {@link #end}.
+ */
+public class InflaterTransport extends Transport {
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+    private static final int INPUT_CHUNK_SIZE = 16 * 1024;
+    private final byte[] window;
+    private int position;
+    private int limit;
+    private final byte[] input = new byte[INPUT_CHUNK_SIZE];
+    private Transport source;
+    private Inflater inflater;
+    private int compressedRemaining;
+
+    public InflaterTransport() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    public InflaterTransport(int windowSize) {
+        window = new byte[windowSize];
+    }
+
+    /**
+     * Start reading of compressed data block
+     *
+     * @param source transport compressed data is read from
+     * @param inflater inflater (zlib stream) to use
+     * @param compressedLength length of compressed data block
+     * @return this
+     */
+    public InflaterTransport begin(Transport source, Inflater inflater, int compressedLength) {
+        this.source = source;
+        this.inflater = inflater;
+        compressedRemaining = compressedLength;
+        position = limit = 0;
+        return this;
+    }
+
+    /**
+     * Finish reading of compressed data block: consume compressed data remaining (ex. sync flush marker)
+     * so source transport and inflater stay in sync with server side compressor.
+     * Decompressed data not read yet is discarded.
+     */
+    public void end() throws TransportException {
+        try {
+            while (true) {
+                if (inflater.needsInput()) {
+                    if (0 == compressedRemaining) break;
+                    feed();
+                }
+                if (0 == inflater.inflate(window, 0, window.length) && ! inflater.needsInput()) break;
+            }
+        } catch (DataFormatException e) {
+            throw new TransportException("Cannot inflate compressed data", e);
+        } finally {
+            position = limit = 0;
+            source = null;
+            inflater = null;
+        }
+    }
+
+    private void feed() throws TransportException {
+        int length = Math.min(input.length, compressedRemaining);
+        source.readBytes(input, 0, length);
+        compressedRemaining -= length;
+        inflater.setInput(input, 0, length);
+    }
+
+    /**
+     * Inflate as much data as fits into window free space
+     * @return false when no more data may be inflated from the block
+     */
+    private boolean inflateMore() throws TransportException {
+        try {
+            while (true) {
+                if (inflater.needsInput()) {
+                    if (0 == compressedRemaining) return false;
+                    feed();
+                }
+                int inflated = inflater.inflate(window, limit, window.length - limit);
+                if (inflated > 0) {
+                    limit += inflated;
+                    return true;
+                }
+                if (inflater.finished() || inflater.needsDictionary()) return false;
+            }
+        } catch (DataFormatException e) {
+            throw new TransportException("Cannot inflate compressed data", e);
+        }
+    }
+
+    private void compact() {
+        if (position > 0) {
+            System.arraycopy(window, position, window, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+    }
+
+    private void require(int needed) throws TransportException {
+        if (limit - position < needed) {
+            compact();
+            while (limit < needed) {
+                if ( ! inflateMore()) {
+                    throw new TransportException("Unexpected end of compressed data");
+                }
+            }
+        }
+    }
+
+    /**
+     * Try to make at least @code{length} bytes available at window, but not more than window size
+     * and data remaining at the block. Use {@link #array()} and {@link #position()} to access the data.
+     *
+     * @return number of bytes available
+     */
+    public int fillUpTo(int length) throws TransportException {
+        if (limit - position < length) {
+            compact();
+            length = Math.min(length, window.length);
+            while (limit < length && inflateMore()) { /* continue */ }
+        }
+        return limit - position;
+    }
+
+    /**
+     * @return decompressed data window array, valid data is from {@link #position()} up to
+     * {@link #position()} + {@link #available()}
+     */
+    public byte[] array() {
+        return window;
+    }
+
+    public int position() {
+        return position;
+    }
+
+    /**
+     * Set new position of data not read yet at the window array, ex. after direct parsing of array data
+     */
+    public void position(int position) {
+        assert position >= this.position && position <= limit;
+        this.position = position;
+    }
+
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public byte readByte() throws TransportException {
+        require(1);
+        return window[position++];
+    }
+
+    @Override
+    public int readUInt8() throws TransportException {
+        require(1);
+        return window[position++] & 0xff;
+    }
+
+    @Override
+    public short readInt16() throws TransportException {
+        require(2);
+        return (short) ((window[position++] & 0xff) << 8 | window[position++] & 0xff);
+    }
+
+    @Override
+    public int readUInt16() throws TransportException {
+        return readInt16() & 0x0ffff;
+    }
+
+    @Override
+    public int readInt32() throws TransportException {
+        require(4);
+        return (window[position++] & 0xff) << 24 | (window[position++] & 0xff) << 16 |
+                (window[position++] & 0xff) << 8 | window[position++] & 0xff;
+    }
+
+    @Override
+    public long readInt64() throws TransportException {
+        return (long) readInt32() << 32 | readInt32() & 0xffffffffL;
+    }
+
+    @Override
+    public byte[] readBytes(byte[] b, int offset, int length) throws TransportException {
+        while (length > 0) {
+            if (position == limit) {
+                require(1);
+            }
+            int portion = Math.min(length, limit - position);
+            System.arraycopy(window, position, b, offset, portion);
+            position += portion;
+            offset += portion;
+            length -= portion;
+        }
+        return b;
+    }
+
+    @Override
+    public ByteBuffer readBuffer(int length) throws TransportException {
+        if (length > window.length) {
+            return super.readBuffer(length);
+        }
+        require(length);
+        ByteBuffer buffer = ByteBuffer.wrap(window, position, length).slice();
+        position += length;
+        return buffer;
+    }
+
+    @Override
+    public void skip(int length) throws TransportException {
+        while (length > 0) {
+            if (position == limit) {
+                require(1);
+            }
+            int portion = Math.min(length, limit - position);
+            position += portion;
+            length -= portion;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Read-ahead stage between socket and decoder.
+ * Dedicated reader thread reads data from source channel into bounded ring buffer, while consumer
+ * (decoder thread) reads from this channel. So network reads go on while consumer is busy with decoding.
+ *
+ * Ring is single producer/single consumer lock-free: producer only advances head, consumer only
+ * advances tail, waiting party is parked and unparked by the opposite party.
+ */
+public class RingBufferChannel implements ReadableByteChannel, Runnable {
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final ReadableByteChannel source;
+    private final int capacity;
+    private final ByteBuffer producerView;
+    private final ByteBuffer consumerView;
+
+    /** total bytes written into ring, advanced by producer only */
+    private volatile long head;
+    /** total bytes read from ring, advanced by consumer only */
+    private volatile long tail;
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+    private volatile boolean eof;
+    private volatile IOException error;
+    private volatile boolean closed;
+
+    private volatile long producerStalls;
+    private volatile long consumerStalls;
+    private volatile int maxOccupancy;
+
+    /**
+     * @param source channel to read data from
+     * @param capacity ring buffer capacity in bytes
+     */
+    public RingBufferChannel(ReadableByteChannel source, int capacity) {
+        this.source = source;
+        this.capacity = capacity;
+        final ByteBuffer ring = ByteBuffer.allocateDirect(capacity);
+        producerView = ring.duplicate();
+        consumerView = ring.duplicate();
+    }
+
+    /**
+     * Start reader thread
+     */
+    public RingBufferChannel start() {
+        Thread reader = new Thread(this, "RfbReaderTask");
+        reader.setDaemon(true);
+        reader.start();
+        return this;
+    }
+
+    /**
+     * Reader thread body: fill ring from source until end of stream, error or close
+     */
+    @Override
+    public void run() {
+        try {
+            while ( ! closed) {
+                final long h = head;
+                int free = capacity - (int) (h - tail);
+                if (0 == free) {
+                    ++producerStalls;
+                    waitingProducer = Thread.currentThread();
+                    if (capacity == (int) (h - tail) && ! closed) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    waitingProducer = null;
+                    continue;
+                }
+                int index = (int) (h % capacity);
+                producerView.clear();
+                producerView.limit(Math.min(capacity, index + free));
+                producerView.position(index);
+                int read = source.read(producerView);
+                if (read < 0) {
+                    eof = true;
+                    break;
+                }
+                head = h + read;
+                final int occupancy = (int) (h + read - tail);
+                if (occupancy > maxOccupancy) maxOccupancy = occupancy;
+                unpark(waitingConsumer);
+            }
+        } catch (IOException e) {
+            if ( ! closed) error = e;
+        } finally {
+            eof = true;
+            unpark(waitingConsumer);
+            logger.fine("Reader task stopped. " + this);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int available;
+        while (0 == (available = (int) (head - tail))) {
+            if (closed) throw new ClosedChannelException();
+            if (eof && head == tail) {
+                if (error != null) throw error;
+                return -1;
+            }
+            if (Thread.interrupted()) {
+                close();
+                throw new ClosedByInterruptException();
+            }
+            ++consumerStalls;
+            waitingConsumer = Thread.currentThread();
+            if (head == tail && ! eof) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingConsumer = null;
+        }
+        final long t = tail;
+        int length = Math.min(available, dst.remaining());
+        int index = (int) (t % capacity);
+        int first = Math.min(length, capacity - index);
+        copy(index, first, dst);
+        if (first < length) {
+            copy(0, length - first, dst);
+        }
+        tail = t + length;
+        unpark(waitingProducer);
+        return length;
+    }
+
+    private void copy(int index, int length, ByteBuffer dst) {
+        consumerView.clear();
+        consumerView.limit(index + length);
+        consumerView.position(index);
+        dst.put(consumerView);
+    }
+
+    private static void unpark(Thread thread) {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return ! closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        unpark(waitingProducer);
+        unpark(waitingConsumer);
+        source.close();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of bytes read ahead and not consumed yet
+     */
+    public int getOccupancy() {
+        return (int) (head - tail);
+    }
+
+    public int getMaxOccupancy() {
+        return maxOccupancy;
+    }
+
+    /**
+     * @return number of times reader waited for free space (ring is full, so consumer is a bottleneck)
+     */
+    public long getProducerStalls() {
+        return producerStalls;
+    }
+
+    /**
+     * @return number of times consumer waited for data (ring is empty, so network is a bottleneck)
+     */
+    public long getConsumerStalls() {
+        return consumerStalls;
+    }
+
+    @Override
+    public String toString() {
+        return "RingBufferChannel: [capacity: " + capacity + ", occupancy: " + getOccupancy() +
+                ", max occupancy: " + maxOccupancy + ", producer stalls: " + producerStalls +
+                ", consumer stalls: " + consumerStalls + "]";
+    }
+}
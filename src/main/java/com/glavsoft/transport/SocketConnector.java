@@ -0,0 +1,303 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects socket to host trying all its addresses (happy eyeballs style, see RFC 8305).
+ * Addresses are ordered by alternating address families, next connection attempt is started when
+ * previous one fails or does not succeed in attempt delay, first connected socket wins and the others
+ * are closed. So dead address record or blackholed address does not stall connection while
+ * there are other addresses to try. The whole connection is limited by connect timeout.
+ *
+ * Defaults may be set by system properties: {@link #CONNECT_TIMEOUT_PROPERTY},
+ * {@link #ATTEMPT_DELAY_PROPERTY} (both in milliseconds), {@link #RECEIVE_BUFFER_SIZE_PROPERTY}
+ * and {@link #SEND_BUFFER_SIZE_PROPERTY} (in bytes, zero means system default).
+ * Buffer sizes are set before connecting, so they take part in TCP window negotiation.
+ */
+public class SocketConnector {
+    public static final String CONNECT_TIMEOUT_PROPERTY = "com.glavsoft.transport.connectTimeout";
+    public static final String ATTEMPT_DELAY_PROPERTY = "com.glavsoft.transport.connectAttemptDelay";
+    public static final String RECEIVE_BUFFER_SIZE_PROPERTY = "com.glavsoft.transport.receiveBufferSize";
+    public static final String SEND_BUFFER_SIZE_PROPERTY = "com.glavsoft.transport.sendBufferSize";
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 20000;
+    public static final int DEFAULT_ATTEMPT_DELAY_MILLIS = 250;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "SocketConnector");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private int connectTimeout = Integer.getInteger(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    private int attemptDelay = Integer.getInteger(ATTEMPT_DELAY_PROPERTY, DEFAULT_ATTEMPT_DELAY_MILLIS);
+    private int receiveBufferSize = Integer.getInteger(RECEIVE_BUFFER_SIZE_PROPERTY, 0);
+    private int sendBufferSize = Integer.getInteger(SEND_BUFFER_SIZE_PROPERTY, 0);
+    private long dnsNanos;
+    private long tcpNanos;
+    private long totalNanos;
+    private int attemptsCount;
+    private InetAddress connectedAddress;
+
+    /**
+     * @param connectTimeout whole connection timeout in milliseconds, zero means infinite
+     */
+    public SocketConnector setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+        return this;
+    }
+
+    /**
+     * @param attemptDelay delay in milliseconds before starting next connection attempt when previous one
+     *                     is still in progress
+     */
+    public SocketConnector setAttemptDelay(int attemptDelay) {
+        this.attemptDelay = attemptDelay;
+        return this;
+    }
+
+    public SocketConnector setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    public SocketConnector setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    /**
+     * Resolve host and connect socket to one of its addresses
+     */
+    public Socket connect(String host, int port) throws IOException {
+        final long start = System.nanoTime();
+        dnsNanos = tcpNanos = totalNanos = 0;
+        attemptsCount = 0;
+        connectedAddress = null;
+        final InetAddress[] addresses = InetAddress.getAllByName(host);
+        dnsNanos = System.nanoTime() - start;
+        try {
+            final Attempt winner = addresses.length > 1 ?
+                    race(orderByFamilies(addresses), port, start) :
+                    connect(new Attempt(addresses[0], port, remainingMillis(start)));
+            tcpNanos = winner.connectNanos;
+            connectedAddress = winner.address;
+            return winner.socket;
+        } finally {
+            totalNanos = System.nanoTime() - start;
+        }
+    }
+
+    private Attempt connect(Attempt attempt) throws IOException {
+        ++attemptsCount;
+        attempt.call();
+        return attempt;
+    }
+
+    /**
+     * Start staggered connection attempts for addresses until one of them succeeds
+     */
+    private Attempt race(List<InetAddress> addresses, int port, long start) throws IOException {
+        final CompletionService<Attempt> completionService = new ExecutorCompletionService<Attempt>(executor);
+        final List<Attempt> attempts = new ArrayList<Attempt>(addresses.size());
+        final List<Future<Attempt>> futures = new ArrayList<Future<Attempt>>(addresses.size());
+        Attempt winner = null;
+        IOException lastException = null;
+        int running = 0;
+        boolean startNext = true;
+        try {
+            while (null == winner) {
+                if (startNext && attempts.size() < addresses.size()) {
+                    final Attempt attempt = new Attempt(addresses.get(attempts.size()), port, remainingMillis(start));
+                    attempts.add(attempt);
+                    futures.add(completionService.submit(attempt));
+                    ++attemptsCount;
+                    ++running;
+                }
+                startNext = false;
+                final int remaining = remainingMillis(start);
+                if (0 == running || remaining < 0) break;
+                final boolean hasMoreAddresses = attempts.size() < addresses.size();
+                final Future<Attempt> done;
+                if (hasMoreAddresses) {
+                    done = completionService.poll(
+                            remaining > 0 ? Math.min(attemptDelay, remaining) : attemptDelay, TimeUnit.MILLISECONDS);
+                } else {
+                    done = remaining > 0 ?
+                            completionService.poll(remaining, TimeUnit.MILLISECONDS) :
+                            completionService.take();
+                }
+                if (null == done) { // attempt delay or connect timeout expired
+                    startNext = true;
+                    continue;
+                }
+                --running;
+                try {
+                    winner = done.get();
+                } catch (ExecutionException e) {
+                    lastException = e.getCause() instanceof IOException ?
+                            (IOException) e.getCause() :
+                            new IOException(e.getCause());
+                    startNext = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lastException = new InterruptedIOException("Connection interrupted");
+        } finally {
+            for (int i = 0; i < attempts.size(); ++i) {
+                if (attempts.get(i) != winner) {
+                    futures.get(i).cancel(false);
+                    attempts.get(i).abort();
+                }
+            }
+        }
+        if (winner != null) return winner;
+        if (remainingMillis(start) >= 0 && lastException != null) throw lastException;
+        throw new SocketTimeoutException("Connect timed out");
+    }
+
+    /**
+     * Alternate address families, keeping resolver order within family
+     */
+    private static List<InetAddress> orderByFamilies(InetAddress[] addresses) {
+        final LinkedList<InetAddress> first = new LinkedList<InetAddress>();
+        final LinkedList<InetAddress> second = new LinkedList<InetAddress>();
+        final boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+        for (InetAddress address : addresses) {
+            if (address instanceof Inet6Address == firstIsV6) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        final List<InetAddress> ordered = new ArrayList<InetAddress>(addresses.length);
+        while ( ! first.isEmpty() || ! second.isEmpty()) {
+            if ( ! first.isEmpty()) ordered.add(first.removeFirst());
+            if ( ! second.isEmpty()) ordered.add(second.removeFirst());
+        }
+        return ordered;
+    }
+
+    private int remainingMillis(long start) {
+        if (0 == connectTimeout) return 0;
+        final long remaining = connectTimeout - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return remaining > 0 ? (int) remaining : -1;
+    }
+
+    /**
+     * @return host name resolution time of last connect in milliseconds
+     */
+    public long getDnsTime() {
+        return TimeUnit.NANOSECONDS.toMillis(dnsNanos);
+    }
+
+    /**
+     * @return TCP connection time of successful connection attempt in milliseconds
+     */
+    public long getTcpTime() {
+        return TimeUnit.NANOSECONDS.toMillis(tcpNanos);
+    }
+
+    /**
+     * @return whole connect time in milliseconds
+     */
+    public long getTotalTime() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+    }
+
+    public int getAttemptsCount() {
+        return attemptsCount;
+    }
+
+    public InetAddress getConnectedAddress() {
+        return connectedAddress;
+    }
+
+    @Override
+    public String toString() {
+        return "connected to " + connectedAddress + " in " + getTotalTime() + " ms" +
+                " (dns: " + getDnsTime() + " ms, tcp: " + getTcpTime() + " ms, attempts: " + attemptsCount + ")";
+    }
+
+    private class Attempt implements Callable<Attempt> {
+        final InetAddress address;
+        final int port;
+        final int timeout;
+        final Socket socket = new Socket();
+        long connectNanos;
+
+        Attempt(InetAddress address, int port, int timeout) {
+            this.address = address;
+            this.port = port;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public Attempt call() throws IOException {
+            if (timeout < 0) throw new SocketTimeoutException("Connect timed out");
+            final long start = System.nanoTime();
+            try {
+                if (receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+                if (sendBufferSize > 0) socket.setSendBufferSize(sendBufferSize);
+                socket.connect(new InetSocketAddress(address, port), timeout);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+            connectNanos = System.nanoTime() - start;
+            return this;
+        }
+
+        void abort() {
+            try {
+                socket.close();
+            } catch (IOException ignore) {
+                // nop
+            }
+        }
+    }
+}
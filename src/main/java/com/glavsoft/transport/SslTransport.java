@@ -0,0 +1,408 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.transport;
+
+import com.glavsoft.exceptions.TransportException;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * SSL/TLS transport over another transport, built on {@link SSLEngine}.
+ *
+ * Whole TLS records are read from underlying transport and unwrapped right into the direct read-ahead
+ * buffer of {@link ChannelTransport}, so primitive reads are served from decrypted data without any
+ * per read engine calls. When underlying transport has more complete records buffered, they are unwrapped
+ * at the same time. Direct buffers for net and app data are taken from {@link DirectBufferPool}.
+ *
+ * Written data is collected until flush and then wrapped into as few records as possible.
+ *
+ * Handshake is made lazily on first read or flush. Handshake messages sent by peer later
+ * (ex. renegotiation or key update) are processed by reading thread, writing thread waits
+ * for handshake to complete when engine cannot wrap application data.
+ */
+public class SslTransport extends ChannelTransport {
+    private static final int TLS_RECORD_HEADER_LENGTH = 5;
+    private static final long RENEGOTIATION_WAIT_MILLIS = 10;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Transport transport;
+    private final SSLEngine engine;
+    private final int appBufferSize;
+    /**
+     * Incoming TLS record, in 'read' mode
+     */
+    private final ByteBuffer netIn;
+    /**
+     * Decrypted data not fit into read-ahead buffer, in 'read' mode
+     */
+    private final ByteBuffer appIn;
+    private final ByteBuffer appOut;
+    private final ByteBuffer netOut;
+    private final Object handshakeLock = new Object();
+    private final Object writeLock = new Object();
+    private volatile boolean handshakeDone;
+    private boolean inboundClosed;
+    private boolean released;
+
+    public SslTransport(Transport transport, SSLEngine engine) {
+        this(transport, engine, DEFAULT_BUFFER_SIZE);
+    }
+
+    public SslTransport(Transport transport, SSLEngine engine, int bufferSize) {
+        super((ReadableByteChannel) null, null, bufferSize);
+        this.transport = transport;
+        this.engine = engine;
+        final SSLSession session = engine.getSession();
+        appBufferSize = session.getApplicationBufferSize();
+        final int packetBufferSize = session.getPacketBufferSize();
+        netIn = DirectBufferPool.acquire(packetBufferSize);
+        netIn.limit(0);
+        appIn = DirectBufferPool.acquire(appBufferSize);
+        appIn.limit(0);
+        appOut = ByteBuffer.allocate(appBufferSize);
+        netOut = ByteBuffer.allocate(packetBufferSize);
+        init(null, new SslOutputStream());
+        if (transport.getRecorder() != null) { // record decrypted data from now on
+            setRecorder(transport.getRecorder());
+            transport.setRecorder(null);
+        }
+    }
+
+    /**
+     * @return underlying transport
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Make initial handshake when not made yet
+     */
+    public void handshake() throws TransportException {
+        if (handshakeDone) return;
+        synchronized (handshakeLock) {
+            if (handshakeDone) return;
+            try {
+                engine.beginHandshake();
+                HandshakeStatus status = engine.getHandshakeStatus();
+                while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+                    switch (status) {
+                        case NEED_TASK:
+                            runDelegatedTasks();
+                            status = engine.getHandshakeStatus();
+                            break;
+                        case NEED_WRAP:
+                            status = wrapAndSend(EMPTY);
+                            break;
+                        case NEED_UNWRAP:
+                            if ( ! netIn.hasRemaining()) {
+                                readRecord();
+                            }
+                            status = unwrapToAppIn();
+                            break;
+                        default: // NEED_UNWRAP_AGAIN of newer JREs: unwrap without reading
+                            status = unwrapToAppIn();
+                    }
+                }
+            } catch (SSLException e) {
+                throw new TransportException("SSL/TLS handshake failed", e);
+            } catch (IOException e) {
+                throw new TransportException("SSL/TLS handshake failed", e);
+            }
+            handshakeDone = true;
+        }
+    }
+
+    @Override
+    protected int readFromChannel(ByteBuffer dst) throws IOException, TransportException {
+        handshake();
+        int read = 0;
+        do {
+            if (appIn.hasRemaining()) {
+                read += transfer(appIn, dst);
+                continue;
+            }
+            if (inboundClosed) break;
+            if ( ! netIn.hasRemaining()) {
+                if (read > 0 && ! hasBufferedRecord()) break;
+                readRecord();
+            }
+            final SSLEngineResult result;
+            if (dst.remaining() >= appBufferSize) {
+                result = engine.unwrap(netIn, dst);
+                read += result.bytesProduced();
+            } else {
+                appIn.compact();
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    appIn.flip();
+                }
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                inboundClosed = true;
+            } else if (result.getStatus() != SSLEngineResult.Status.OK) {
+                throw new SSLException("Unexpected unwrap result: " + result);
+            }
+            processHandshakeStatus(result.getHandshakeStatus());
+        } while (dst.hasRemaining());
+        return 0 == read && inboundClosed ? -1 : read;
+    }
+
+    /**
+     * @return true when underlying transport has whole next TLS record already read ahead,
+     * so it can be unwrapped without blocking
+     */
+    private boolean hasBufferedRecord() throws TransportException {
+        if ( ! (transport instanceof ChannelTransport)) return false;
+        final ChannelTransport channelTransport = (ChannelTransport) transport;
+        final int available = channelTransport.available();
+        if (available < TLS_RECORD_HEADER_LENGTH) return false;
+        final ByteBuffer b = channelTransport.buffer;
+        final int pos = b.position();
+        final int length = (b.get(pos + 3) & 0xff) << 8 | b.get(pos + 4) & 0xff;
+        return available >= TLS_RECORD_HEADER_LENGTH + length;
+    }
+
+    /**
+     * Read one whole TLS record from underlying transport into netIn
+     */
+    private void readRecord() throws TransportException, SSLException {
+        final ByteBuffer header = transport.readBuffer(TLS_RECORD_HEADER_LENGTH);
+        final int length = (header.get(header.position() + 3) & 0xff) << 8 |
+                header.get(header.position() + 4) & 0xff;
+        netIn.clear();
+        if (TLS_RECORD_HEADER_LENGTH + length > netIn.capacity()) {
+            netIn.limit(0);
+            throw new SSLException("TLS record too large: " + length);
+        }
+        netIn.put(header);
+        netIn.put(transport.readBuffer(length));
+        netIn.flip();
+    }
+
+    private HandshakeStatus unwrapToAppIn() throws SSLException {
+        appIn.compact();
+        final SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            appIn.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            inboundClosed = true;
+            throw new SSLException("Connection closed during handshake");
+        }
+        if (result.getStatus() != SSLEngineResult.Status.OK) {
+            throw new SSLException("Unexpected unwrap result: " + result);
+        }
+        return result.getHandshakeStatus();
+    }
+
+    /**
+     * Handle handshake messages came from peer after initial handshake
+     */
+    private void processHandshakeStatus(HandshakeStatus status) throws IOException {
+        boolean changed = false;
+        while (true) {
+            if (status == HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                status = engine.getHandshakeStatus();
+            } else if (status == HandshakeStatus.NEED_WRAP) {
+                status = wrapAndSend(EMPTY);
+            } else {
+                break;
+            }
+            changed = true;
+        }
+        if (changed || status == HandshakeStatus.FINISHED) {
+            synchronized (writeLock) {
+                writeLock.notifyAll();
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Wrap all the src data and send it to underlying transport at once
+     * @return handshake status after last wrap
+     */
+    private HandshakeStatus wrapAndSend(ByteBuffer src) throws IOException {
+        synchronized (writeLock) {
+            HandshakeStatus status;
+            netOut.clear();
+            do {
+                final SSLEngineResult result = engine.wrap(src, netOut);
+                status = result.getHandshakeStatus();
+                switch (result.getStatus()) {
+                    case BUFFER_OVERFLOW:
+                        send();
+                        continue;
+                    case CLOSED:
+                        throw new SSLException("SSL/TLS engine closed");
+                    case OK:
+                        break;
+                    default:
+                        throw new SSLException("Unexpected wrap result: " + result);
+                }
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    status = engine.getHandshakeStatus();
+                } else if (0 == result.bytesConsumed() && 0 == result.bytesProduced() && src.hasRemaining()) {
+                    // peer's handshake data needed, it will be unwrapped by reading thread
+                    send();
+                    try {
+                        writeLock.wait(RENEGOTIATION_WAIT_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+            } while (src.hasRemaining() || status == HandshakeStatus.NEED_WRAP);
+            send();
+            return status;
+        }
+    }
+
+    /**
+     * Write wrapped data from netOut into underlying transport.
+     * Call with writeLock held.
+     */
+    private void send() throws IOException {
+        if (0 == netOut.position()) return;
+        try {
+            transport.write(netOut.array(), netOut.arrayOffset(), netOut.position());
+            transport.flush();
+        } catch (TransportException e) {
+            throw new IOException(e);
+        }
+        netOut.clear();
+    }
+
+    private static int transfer(ByteBuffer src, ByteBuffer dst) {
+        final int length = Math.min(src.remaining(), dst.remaining());
+        if (length == src.remaining()) {
+            dst.put(src);
+        } else {
+            final int limit = src.limit();
+            src.limit(src.position() + length);
+            dst.put(src);
+            src.limit(limit);
+        }
+        return length;
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        synchronized (writeLock) {
+            if ( ! released) {
+                released = true;
+                DirectBufferPool.release(netIn);
+                DirectBufferPool.release(appIn);
+                transport.release();
+            }
+        }
+    }
+
+    /**
+     * Collects written data and wraps it on flush
+     */
+    private class SslOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            ensureHandshake();
+            synchronized (writeLock) {
+                if ( ! appOut.hasRemaining()) {
+                    wrapAppOut();
+                }
+                appOut.put((byte) b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureHandshake();
+            synchronized (writeLock) {
+                while (len > 0) {
+                    if ( ! appOut.hasRemaining()) {
+                        wrapAppOut();
+                    }
+                    final int portion = Math.min(len, appOut.remaining());
+                    appOut.put(b, off, portion);
+                    off += portion;
+                    len -= portion;
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            ensureHandshake();
+            synchronized (writeLock) {
+                wrapAppOut();
+            }
+        }
+
+        /**
+         * Handshake must not be started under writeLock, as handshake itself writes under it
+         */
+        private void ensureHandshake() throws IOException {
+            if (handshakeDone) return;
+            try {
+                handshake();
+            } catch (TransportException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private void wrapAppOut() throws IOException {
+            appOut.flip();
+            try {
+                wrapAndSend(appOut);
+            } finally {
+                appOut.compact();
+            }
+        }
+    }
+}
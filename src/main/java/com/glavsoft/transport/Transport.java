@@ -28,6 +28,7 @@ import com.glavsoft.exceptions.TransportException;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 /**
@@ -40,7 +41,9 @@ public class Transport {
     DataOutputStream os;
     InputStream origIs;
     OutputStream origOs;
-    private BaudrateMeter baudrateMeter;
+    BaudrateMeter baudrateMeter;
+    FbsRecorder recorder;
+    private RecordingInputStream recordingIs;
 
     public Transport(Socket socket) throws IOException {
         this(socket.getInputStream(), socket.getOutputStream());
@@ -69,9 +72,13 @@ public class Transport {
         this(null, null);
     }
 
-    void release() {
+    /**
+     * Release resources held by transport. Call only when no threads use the transport anymore.
+     */
+    public void release() {
         origIs = is = null;
         origOs = os = null;
+        recordingIs = null;
     }
 
     public byte readByte() throws TransportException {
@@ -90,6 +97,23 @@ public class Transport {
         this.baudrateMeter = baudrateMeter;
     }
 
+    /**
+     * Record all the data read from now on into @code{recorder}, null stops recording
+     */
+    public void setRecorder(FbsRecorder recorder) {
+        this.recorder = recorder;
+        if (origIs != null) {
+            // data read ahead by recording stream replaced is read first
+            final InputStream source = null == recordingIs ? origIs : recordingIs.detach();
+            recordingIs = null == recorder ? null : new RecordingInputStream(source, recorder);
+            is = new DataInputStream(null == recorder ? source : recordingIs);
+        }
+    }
+
+    public FbsRecorder getRecorder() {
+        return recorder;
+    }
+
     public int readUInt8() throws TransportException {
         return readByte() & 0x0ff;
     }
@@ -205,6 +229,39 @@ public class Transport {
         }
     }
 
+    /**
+     * Read @code{length} bytes and return them as big-endian byte buffer positioned at the first byte read.
+     * Implementations with read-ahead buffer may return view of their internal buffer without copying,
+     * so returned buffer content is valid only until next read operation on this transport.
+     *
+     * @param length number of bytes to read
+     * @return buffer with remaining() == length
+     * @throws TransportException
+     */
+    public ByteBuffer readBuffer(int length) throws TransportException {
+        return ByteBuffer.wrap(readBytes(length));
+    }
+
+    /**
+     * Read @code{count} unsigned 16-bit values into @code{dst} array starting at @code{offset}
+     */
+    public int[] readUInt16s(int[] dst, int offset, int count) throws TransportException {
+        while (count-- > 0) {
+            dst[offset++] = readUInt16();
+        }
+        return dst;
+    }
+
+    /**
+     * Read @code{count} signed 32-bit values into @code{dst} array starting at @code{offset}
+     */
+    public int[] readInt32s(int[] dst, int offset, int count) throws TransportException {
+        while (count-- > 0) {
+            dst[offset++] = readInt32();
+        }
+        return dst;
+    }
+
     public void skip(int length) throws TransportException {
         try {
             int rest = length;
@@ -333,4 +390,81 @@ public class Transport {
     }
     return result;
   }
+
+    /**
+     * Reads ahead into its buffer with bulk reads and records each read as one block,
+     * so primitive reads do not make blocks of their own
+     */
+    private static class RecordingInputStream extends FilterInputStream {
+        private static final int BUFFER_SIZE = 8192;
+        private final FbsRecorder recorder;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+        private int limit;
+
+        RecordingInputStream(InputStream in, FbsRecorder recorder) {
+            super(in);
+            this.recorder = recorder;
+        }
+
+        private boolean fill() throws IOException {
+            final int read = in.read(buffer, 0, buffer.length);
+            if (read <= 0) return false;
+            recorder.record(buffer, 0, read);
+            position = 0;
+            limit = read;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && ! fill()) return -1;
+            return buffer[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (0 == len) return 0;
+            if (position == limit) {
+                if (len >= buffer.length) { // no need to copy through buffer
+                    final int read = in.read(b, off, len);
+                    if (read > 0) recorder.record(b, off, read);
+                    return read;
+                }
+                if ( ! fill()) return -1;
+            }
+            final int read = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || position == limit && ! fill()) return 0;
+            final int skipped = (int) Math.min(n, limit - position);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return limit - position + in.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Stop reading, data read ahead (recorded already) is returned by the stream returned first
+         */
+        InputStream detach() {
+            if (position == limit) return in;
+            final InputStream rest = new ByteArrayInputStream(buffer, position, limit - position);
+            position = limit;
+            return new SequenceInputStream(rest, in);
+        }
+    }
 }
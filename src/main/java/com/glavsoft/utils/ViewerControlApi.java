@@ -28,6 +28,8 @@ import com.glavsoft.rfb.client.ClientToServerMessage;
 import com.glavsoft.rfb.protocol.Protocol;
 import com.glavsoft.rfb.protocol.ProtocolSettings;
 import com.glavsoft.transport.BaudrateMeter;
+import com.glavsoft.transport.BufferMeter;
+import com.glavsoft.transport.FlushMeter;
 
 /**
  * @author dime at tightvnc.com
@@ -73,6 +75,14 @@ public class ViewerControlApi {
         return baudrateMeter.kBPS();
     }
 
+    public FlushMeter getFlushMeter() {
+        return protocol.getFlushMeter();
+    }
+
+    public BufferMeter getBufferMeter() {
+        return protocol.getBufferMeter();
+    }
+
     /**
      * Check whether remote server is supported for given client-to-server message
      *
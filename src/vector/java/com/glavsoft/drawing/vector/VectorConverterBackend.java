@@ -0,0 +1,209 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.drawing.vector;
+
+import com.glavsoft.drawing.PixelConverter;
+import com.glavsoft.drawing.PixelConverterBackend;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteOrder;
+
+/**
+ * Vector API (jdk.incubator.vector) pixel converters: rows are converted by vectors of the preferred
+ * (widest supported) shape, bytes of pixels are rearranged into int lanes of colors, two byte pixels components
+ * are scaled with multiplication and shift. Loaded by {@link com.glavsoft.drawing.ColorDecoder} by class name,
+ * construction fails when module is absent or platform has no 128 bit or wider vectors.
+ */
+public class VectorConverterBackend implements PixelConverterBackend {
+	static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+	public VectorConverterBackend() {
+		if (BYTES.vectorBitSize() < 128 || BYTES.vectorBitSize() != INTS.vectorBitSize()) {
+			throw new UnsupportedOperationException("No SIMD vectors: " + BYTES);
+		}
+	}
+
+	@Override
+	public PixelConverter bytesConverter(PixelConverter scalar, int red, int green, int blue) {
+		return new BytesConverter(scalar, red, green, blue);
+	}
+
+	@Override
+	public PixelConverter shortsConverter(PixelConverter scalar, int firstShift, int secondShift,
+			int redShift, int redMax, int greenShift, int greenMax, int blueShift, int blueMax) {
+		final Scale red = Scale.of(redMax);
+		final Scale green = Scale.of(greenMax);
+		final Scale blue = Scale.of(blueMax);
+		if (null == red || null == green || null == blue) return null;
+		return new ShortsConverter(scalar, firstShift, redShift, red, greenShift, green, blueShift, blue);
+	}
+
+	/**
+	 * Shuffle of pixel bytes into int lanes: lane of pixel gets bytes at indices given from its first byte
+	 * as its bytes from the most significant one (-1 for zero byte, which is masked out after)
+	 */
+	static VectorShuffle<Byte> laneShuffle(int bytesPerPixel, int... indices) {
+		final int[] shuffle = new int[BYTES.length()];
+		for (int lane = 0; lane < BYTES.length() / 4; ++lane) {
+			for (int j = 0; j < 4; ++j) {
+				final int index = indices[LITTLE_ENDIAN ? 3 - j : j];
+				shuffle[lane * 4 + j] = index < 0 ? 0 : lane * bytesPerPixel + index;
+			}
+		}
+		return VectorShuffle.fromArray(BYTES, shuffle, 0);
+	}
+
+	/**
+	 * Pixels with 8 bit components at whole bytes (32 and 24 bit pixels)
+	 */
+	static final class BytesConverter extends PixelConverter {
+		private final PixelConverter scalar;
+		private final VectorShuffle<Byte> shuffle;
+
+		BytesConverter(PixelConverter scalar, int red, int green, int blue) {
+			super(scalar.bytesPerPixel);
+			this.scalar = scalar;
+			shuffle = laneShuffle(bytesPerPixel, -1, red, green, blue);
+		}
+
+		@Override
+		public int convert(byte[] bytes, int offset) {
+			return scalar.convert(bytes, offset);
+		}
+
+		@Override
+		public int convertRow(byte[] bytes, int offset, int[] colors, int colorsOffset, int count) {
+			final int pixelsPerVector = INTS.length();
+			final int step = pixelsPerVector * bytesPerPixel;
+			// vector is loaded whole, though its tail is not used for 3 byte pixels
+			final int bytesBound = bytes.length - BYTES.length();
+			int i = offset;
+			int p = 0;
+			for (; p + pixelsPerVector <= count && i <= bytesBound; p += pixelsPerVector, i += step) {
+				ByteVector.fromArray(BYTES, bytes, i).rearrange(shuffle).reinterpretAsInts()
+						.and(0x00ffffff)
+						.intoArray(colors, colorsOffset + p);
+			}
+			scalar.convertRow(bytes, i, colors, colorsOffset + p, count - p);
+			return count * bytesPerPixel;
+		}
+	}
+
+	/**
+	 * Two byte pixels (16, 15 bit colour depth)
+	 */
+	static final class ShortsConverter extends PixelConverter {
+		/**
+		 * Shorter rows are converted faster through scalar converter lookup table
+		 */
+		private static final int MIN_VECTOR_ROW = 32;
+		private final PixelConverter scalar;
+		private final VectorShuffle<Byte> shuffle;
+		private final int redShift, greenShift, blueShift;
+		private final Scale red, green, blue;
+
+		ShortsConverter(PixelConverter scalar, int firstShift,
+				int redShift, Scale red, int greenShift, Scale green, int blueShift, Scale blue) {
+			super(2);
+			this.scalar = scalar;
+			shuffle = 0 == firstShift ?
+					laneShuffle(2, -1, -1, 1, 0) :
+					laneShuffle(2, -1, -1, 0, 1);
+			this.redShift = redShift; this.red = red;
+			this.greenShift = greenShift; this.green = green;
+			this.blueShift = blueShift; this.blue = blue;
+		}
+
+		@Override
+		public int convert(byte[] bytes, int offset) {
+			return scalar.convert(bytes, offset);
+		}
+
+		@Override
+		public int convertRow(byte[] bytes, int offset, int[] colors, int colorsOffset, int count) {
+			final int pixelsPerVector = INTS.length();
+			if (count < MIN_VECTOR_ROW) return scalar.convertRow(bytes, offset, colors, colorsOffset, count);
+			final int step = pixelsPerVector * 2;
+			final int bytesBound = bytes.length - BYTES.length();
+			int i = offset;
+			int p = 0;
+			for (; p + pixelsPerVector <= count && i <= bytesBound; p += pixelsPerVector, i += step) {
+				final IntVector raw = ByteVector.fromArray(BYTES, bytes, i).rearrange(shuffle).reinterpretAsInts()
+						.and(0xffff);
+				red.apply(raw, redShift, 16)
+						.or(green.apply(raw, greenShift, 8))
+						.or(blue.apply(raw, blueShift, 0))
+						.intoArray(colors, colorsOffset + p);
+			}
+			scalar.convertRow(bytes, i, colors, colorsOffset + p, count - p);
+			return count * 2;
+		}
+	}
+
+	/**
+	 * Scaling of component into 0..255 range, 255 * v / max, with multiplication and shift
+	 */
+	static final class Scale {
+		private final int max;
+		private final int multiplier;
+		private final int shift;
+
+		private Scale(int max, int multiplier, int shift) {
+			this.max = max;
+			this.multiplier = multiplier;
+			this.shift = shift;
+		}
+
+		/**
+		 * @return scale giving exactly the same values as division for all the component values,
+		 * null when there is no such one
+		 */
+		static Scale of(int max) {
+			if (max <= 0 || max > 0xffff) return null;
+			for (int shift = 8; shift <= 22; ++shift) {
+				final long multiplier = ((255L << shift) + max - 1) / max;
+				if (multiplier * max > Integer.MAX_VALUE) break;
+				boolean exact = true;
+				for (int v = 0; v <= max && exact; ++v) {
+					exact = (int) (v * multiplier >>> shift) == 255 * v / max;
+				}
+				if (exact) return new Scale(max, (int) multiplier, shift);
+			}
+			return null;
+		}
+
+		IntVector apply(IntVector raw, int componentShift, int colorShift) {
+			return raw.lanewise(VectorOperators.LSHR, componentShift).and(max)
+					.mul(multiplier)
+					.lanewise(VectorOperators.LSHR, shift)
+					.lanewise(VectorOperators.LSHL, colorShift);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.viewer.swing;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Jpeg images decoder which writes decoded pixels right into destination image raster region
+ * (ex. framebuffer), with no intermediate images and no waiting for AWT image producers.
+ * ImageIO readers are reused, one per thread, so decoding may be performed at any threads in parallel.
+ */
+public class JpegImageDecoder {
+	private static final ColorModel COLOR_MODEL = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+	private static final ThreadLocal<ImageReader> readers = new ThreadLocal<ImageReader>() {
+		@Override
+		protected ImageReader initialValue() {
+			Iterator<ImageReader> jpegReaders = ImageIO.getImageReadersByFormatName("jpeg");
+			return jpegReaders.hasNext() ? jpegReaders.next() : null;
+		}
+	};
+
+	private JpegImageDecoder() { /*empty*/ }
+
+	/**
+	 * Create image backed by int RGB pixels array, image pixels changes are the array changes
+	 */
+	public static BufferedImage createImage(int[] pixels, int width, int height) {
+		SampleModel sampleModel = COLOR_MODEL.createCompatibleSampleModel(width, height);
+		DataBuffer dataBuffer = new DataBufferInt(pixels, width * height);
+		WritableRaster raster = Raster.createWritableRaster(sampleModel, dataBuffer, null);
+		return new BufferedImage(COLOR_MODEL, raster, false, null);
+	}
+
+	/**
+	 * Decode jpeg image data into destination image region. Image parts out of region are not drawn.
+	 *
+	 * @param bytes jpeg image data array
+	 * @param offset start offset at data array
+	 * @param length jpeg image data length
+	 * @param destination image to decode into
+	 * @param x region left
+	 * @param y region top
+	 * @param width region width
+	 * @param height region height
+	 * @return false when image cannot be decoded
+	 */
+	public static boolean decode(byte[] bytes, int offset, int length, BufferedImage destination,
+			int x, int y, int width, int height) {
+		ImageReader reader = readers.get();
+		if (null == reader) return false;
+		try {
+			reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes, offset, length)),
+					true, true);
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(new Rectangle(0, 0, width, height));
+			param.setDestination(destination);
+			param.setDestinationOffset(new Point(x, y));
+			reader.read(0, param);
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (IllegalArgumentException e) {
+			// source region is out of image bounds
+			return false;
+		} finally {
+			reader.setInput(null);
+		}
+	}
+
+	/**
+	 * Decode jpeg image data into new pixels array of width x height size
+	 *
+	 * @return pixels or null when image cannot be decoded
+	 */
+	public static int[] decode(byte[] bytes, int offset, int length, int width, int height) {
+		int[] pixels = new int[width * height];
+		return decode(bytes, offset, length, createImage(pixels, width, height), 0, 0, width, height) ?
+				pixels : null;
+	}
+}
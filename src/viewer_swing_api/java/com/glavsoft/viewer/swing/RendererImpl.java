@@ -29,32 +29,20 @@ import com.glavsoft.rfb.encoding.decoder.FramebufferUpdateRectangle;
 import com.glavsoft.transport.Transport;
 
 import java.awt.*;
-import java.awt.image.*;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.awt.image.BufferedImage;
 
-public class RendererImpl extends Renderer implements ImageObserver {
-    CyclicBarrier barrier = new CyclicBarrier(2);
-    private final Image offscreenImage;
+public class RendererImpl extends Renderer {
+    private final BufferedImage offscreenImage;
 	public RendererImpl(Transport transport, int width, int height, PixelFormat pixelFormat) {
 		if (0 == width) width = 1;
 		if (0 == height) height = 1;
 		init(width, height, pixelFormat);
-		ColorModel colorModel = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
-		SampleModel sampleModel = colorModel.createCompatibleSampleModel(width,
-				height);
-
-		DataBuffer dataBuffer = new DataBufferInt(pixels, width * height);
-		WritableRaster raster = Raster.createWritableRaster(sampleModel,
-				dataBuffer, null);
-		offscreenImage = new BufferedImage(colorModel, raster, false, null);
+		offscreenImage = JpegImageDecoder.createImage(pixels, width, height);
 		cursor = new SoftCursorImpl(0, 0, 0, 0);
 	}
 
 	/**
-	 * Draw jpeg image data
+	 * Draw jpeg image data, image is decoded right into framebuffer
 	 *
 	 * @param bytes jpeg image data array
 	 * @param offset start offset at data array
@@ -64,36 +52,18 @@ public class RendererImpl extends Renderer implements ImageObserver {
 	@Override
 	public void drawJpegImage(byte[] bytes, int offset, int jpegBufferLength,
 			FramebufferUpdateRectangle rect) {
-		Image jpegImage = Toolkit.getDefaultToolkit().createImage(bytes,
-				offset, jpegBufferLength);
-		Toolkit.getDefaultToolkit().prepareImage(jpegImage, -1, -1, this);
+		lock.lock();
 		try {
-			barrier.await(3, TimeUnit.SECONDS);
-		} catch (InterruptedException e) {
-			// nop
-		} catch (BrokenBarrierException e) {
-			// nop
-		} catch (TimeoutException e) {
-			// nop
+			JpegImageDecoder.decode(bytes, offset, jpegBufferLength, offscreenImage,
+					rect.x, rect.y, rect.width, rect.height);
+		} finally {
+			lock.unlock();
 		}
-		Graphics graphics = offscreenImage.getGraphics();
-		graphics.drawImage(jpegImage, rect.x, rect.y, rect.width, rect.height, this);
 	}
 
 	@Override
-	public boolean imageUpdate(Image img, int infoflags, int x, int y,
-			int width, int height) {
-		boolean isReady = (infoflags & (ALLBITS | ABORT)) != 0;
-		if (isReady) {
-			try {
-				barrier.await();
-			} catch (InterruptedException e) {
-				// nop
-			} catch (BrokenBarrierException e) {
-				// nop
-			}
-		}
-		return ! isReady;
+	public int[] decodeJpegImage(byte[] bytes, int offset, int jpegBufferLength, int width, int height) {
+		return JpegImageDecoder.decode(bytes, offset, jpegBufferLength, width, height);
 	}
 
 	/* Swing specific interface */
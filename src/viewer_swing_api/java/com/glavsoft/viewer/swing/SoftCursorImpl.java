@@ -27,9 +27,24 @@ import com.glavsoft.drawing.SoftCursor;
 
 import java.awt.*;
 import java.awt.image.MemoryImageSource;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class SoftCursorImpl extends SoftCursor {
+	/**
+	 * Max number of built cursor images kept for reuse: servers resend the same few shapes
+	 * when pointer moves over text, links, window borders etc.
+	 */
+	public static final int IMAGE_CACHE_SIZE = 32;
 	private Image cursorImage;
+	private final Map<Shape, Image> imageCache = new LinkedHashMap<Shape, Image>(IMAGE_CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Shape, Image> eldest) {
+			return size() > IMAGE_CACHE_SIZE;
+		}
+	};
+	private final Shape probe = new Shape();
 
 	public SoftCursorImpl(int hotX, int hotY, int width, int height) {
 		super(hotX, hotY, width, height);
@@ -41,9 +56,55 @@ public class SoftCursorImpl extends SoftCursor {
 
 	@Override
 	protected void createNewCursorImage(int[] cursorPixels, int hotX, int hotY, int width,	int height) {
-		cursorImage = Toolkit.getDefaultToolkit().createImage(
-				new MemoryImageSource(width, height, cursorPixels, 0, width));
+		probe.set(cursorPixels, hotX, hotY, width, height);
+		cursorImage = imageCache.get(probe);
+		if (null == cursorImage) {
+			int[] pixels = Arrays.copyOf(cursorPixels, width * height);
+			cursorImage = Toolkit.getDefaultToolkit().createImage(
+					new MemoryImageSource(width, height, pixels, 0, width));
+			imageCache.put(new Shape().set(pixels, hotX, hotY, width, height), cursorImage);
+		}
+	}
+
+	/**
+	 * Cache key: cursor pixels (mask is kept in pixels alpha), hot point and dimensions
+	 */
+	private static class Shape {
+		private int[] pixels;
+		private int hotX, hotY, width, height;
+		private int hash;
+
+		Shape set(int[] pixels, int hotX, int hotY, int width, int height) {
+			this.pixels = pixels;
+			this.hotX = hotX;
+			this.hotY = hotY;
+			this.width = width;
+			this.height = height;
+			int h = ((hotX * 31 + hotY) * 31 + width) * 31 + height;
+			for (int i = 0, length = width * height; i < length; ++i) {
+				h = h * 31 + pixels[i];
+			}
+			hash = h;
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
 
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if ( ! (o instanceof Shape)) return false;
+			Shape other = (Shape) o;
+			if (hash != other.hash || hotX != other.hotX || hotY != other.hotY ||
+					width != other.width || height != other.height) return false;
+			for (int i = 0, length = width * height; i < length; ++i) {
+				if (pixels[i] != other.pixels[i]) return false;
+			}
+			return true;
+		}
 	}
 
 }
@@ -23,6 +23,7 @@
 //
 package com.glavsoft.viewer.swing;
 
+import com.glavsoft.transport.SocketConnector;
 import com.glavsoft.viewer.mvp.Presenter;
 import com.glavsoft.viewer.settings.ConnectionParams;
 import com.glavsoft.viewer.swing.ssh.SshConnectionManager;
@@ -66,8 +67,6 @@ public class SwingNetworkConnectionWorker extends SwingWorker<Socket, String> im
         String message = "<html>Trying to connect to " + s + "</html>";
         logger.info(message.replaceAll("<[^<>]+?>", ""));
         publish(message);
-        int port;
-        String host;
         if (hasSshSupport && connectionParams.useSsh()) {
             try {
                 sshConnectionManager = SshConnectionManager.createManager(parent);
@@ -78,25 +77,27 @@ public class SwingNetworkConnectionWorker extends SwingWorker<Socket, String> im
             message = "Creating SSH tunnel to " + connectionParams.sshHostName + ":" + connectionParams.getSshPortNumber();
             logger.info(message);
             publish(message);
-            port = sshConnectionManager.connect(connectionParams);
+            final Socket socket = sshConnectionManager.connect(connectionParams);
             if (sshConnectionManager.isConnected() ) {
-                host = "127.0.0.1";
-                message = "SSH tunnel established: " + host + ":" + port;
+                message = "SSH tunnel established to " + connectionParams.hostName + ":" + connectionParams.getPortNumber();
                 logger.info(message);
                 publish(message);
+                return socket;
             } else {
                 throw new ConnectionErrorException("Could not create SSH tunnel: " + sshConnectionManager.getErrorMessage());
             }
-        } else {
-            host = connectionParams.hostName;
-            port = connectionParams.getPortNumber();
         }
+        final String host = connectionParams.hostName;
+        final int port = connectionParams.getPortNumber();
 
-        message = "Connecting to host " + host + ":" + port + (connectionParams.useSsh() ? " (tunneled)" : "");
+        message = "Connecting to host " + host + ":" + port;
         logger.info(message);
         publish(message);
 
-        return new Socket(host, port);
+        final SocketConnector connector = new SocketConnector();
+        final Socket socket = connector.connect(host, port);
+        logger.info("Host " + host + ":" + port + " " + connector);
+        return socket;
     }
 
     private String formatHostString(String hostName) {
@@ -29,6 +29,8 @@ import com.glavsoft.rfb.IRfbSessionListener;
 import com.glavsoft.rfb.protocol.Protocol;
 import com.glavsoft.rfb.protocol.ProtocolSettings;
 import com.glavsoft.transport.BaudrateMeter;
+import com.glavsoft.transport.ChannelTransport;
+import com.glavsoft.transport.FbsRecorder;
 import com.glavsoft.transport.Transport;
 import com.glavsoft.utils.Strings;
 import com.glavsoft.utils.ViewerControlApi;
@@ -65,14 +67,17 @@ public class SwingRfbConnectionWorker extends SwingWorker<Void, String> implemen
     private ProtocolSettings rfbSettings;
     private UiSettings uiSettings;
     private ViewerControlApi viewerControlApi;
+    private FbsRecorder recorder;
 
     @Override
     public Void doInBackground() throws Exception {
         if (null == workingSocket) throw new ConnectionErrorException("Null socket");
         workingSocket.setTcpNoDelay(true); // disable Nagle algorithm
-        Transport transport = new Transport(workingSocket);
+        Transport transport = ChannelTransport.create(workingSocket);
         final BaudrateMeter baudrateMeter = new BaudrateMeter();
         transport.setBaudrateMeter(baudrateMeter);
+        recorder = FbsRecorder.create(connectionString);
+        transport.setRecorder(recorder);
         workingProtocol = new Protocol(transport,
                 new PasswordChooser(connectionString, parent, this),
                 rfbSettings);
@@ -218,6 +223,9 @@ public class SwingRfbConnectionWorker extends SwingWorker<Void, String> implemen
 		if (viewerWindow != null) {
             viewerWindow.close();
 		}
+        if (recorder != null) {
+            recorder.close();
+        }
         synchronized (this) {
 		    isStoppingProcess = false;
         }
@@ -0,0 +1,122 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.viewer.swing.ssh;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket view of ssh channel to remote host (direct-tcpip channel opened through ssh connection).
+ * Data is read and written by channel's streams directly, so there are no loopback socket
+ * and local port forwarder in between.
+ * Only stream and close related methods are meaningful, socket options are ignored because
+ * they are set on ssh connection itself.
+ */
+public class SshChannelSocket extends Socket {
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private final Closeable onClose;
+    private final String description;
+    private volatile boolean closed;
+
+    /**
+     * @param onClose closes channel and releases ssh connection
+     * @param description remote end description for logging, ex. host:port via ssh host
+     */
+    public SshChannelSocket(InputStream inputStream, OutputStream outputStream, Closeable onClose,
+                            String description) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+        this.onClose = onClose;
+        this.description = description;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (closed) throw new SocketException("Socket is closed");
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (closed) throw new SocketException("Socket is closed");
+        return outputStream;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        onClose.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public boolean isBound() {
+        return true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+        // nop, set for ssh connection
+    }
+
+    @Override
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        // nop, channel streams have no read timeouts
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        inputStream.close();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        outputStream.close();
+    }
+
+    @Override
+    public String toString() {
+        return "SshChannelSocket[" + description + "]";
+    }
+}
@@ -38,6 +38,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.net.Socket;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -74,7 +75,11 @@ public abstract class SshConnectionManager {
         throw new ConnectionErrorException("Could not create SSH tunnel: internal error.");
     }
 
-    public int connect(ConnectionParams connectionParams) throws CancelConnectionException, ConnectionErrorException {
+    /**
+     * Make ssh connection and open channel to VNC server through it
+     * @return socket which reads and writes the channel, closing it closes ssh connection
+     */
+    public Socket connect(ConnectionParams connectionParams) throws CancelConnectionException, ConnectionErrorException {
         if (Strings.isTrimmedEmpty(connectionParams.sshUserName)) {
             RequestSomethingDialog dialog = new RequestSomethingDialog(parent,
                     "SSH User Name", false, "Please enter the user name for SSH connection:");
@@ -89,12 +94,12 @@ public abstract class SshConnectionManager {
         }
         initSshEngine();
         addIdentityFiles();
-        return makeConnectionAndGetPort(connectionParams);
+        return makeConnectionAndOpenChannel(connectionParams);
 	}
 
     protected abstract void initSshEngine();
 
-    protected abstract int makeConnectionAndGetPort(ConnectionParams connectionParams) throws CancelConnectionException, ConnectionErrorException;
+    protected abstract Socket makeConnectionAndOpenChannel(ConnectionParams connectionParams) throws CancelConnectionException, ConnectionErrorException;
 
     boolean isKeyFileEncrypted(File keyFile) {
         FileReader fileReader = null;
@@ -0,0 +1,212 @@
+// Copyright (C) 2010 - 2014 GlavSoft LLC.
+// All rights reserved.
+//
+// -----------------------------------------------------------------------
+// This file is part of the TightVNC software.  Please visit our Web site:
+//
+//                       http://www.tightvnc.com/
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+// -----------------------------------------------------------------------
+//
+package com.glavsoft.viewer.swing.ssh;
+
+import com.glavsoft.viewer.settings.ConnectionParams;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.ConnectionMonitor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Process wide pool of authenticated ssh connections, keyed by ssh host, port and user.
+ * Viewer connections through the same ssh server share one ssh connection, each one using
+ * its own channel, so ssh handshake, key exchange and authentication are made once.
+ * Connection without channels is closed after idle timeout, so reconnects made in that time
+ * reuse it.
+ *
+ * Pool may be disabled by {@link #POOL_ENABLED_PROPERTY} system property set to false,
+ * idle timeout is set in seconds by {@link #IDLE_TIMEOUT_PROPERTY}.
+ */
+class SshSessionPool {
+    static final String POOL_ENABLED_PROPERTY = "com.glavsoft.viewer.ssh.sessionPool";
+    static final String IDLE_TIMEOUT_PROPERTY = "com.glavsoft.viewer.ssh.sessionPoolIdleTimeout";
+    private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 300;
+    private static final SshSessionPool instance = new SshSessionPool(
+            ! "false".equalsIgnoreCase(System.getProperty(POOL_ENABLED_PROPERTY)),
+            Integer.getInteger(IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT_SECONDS));
+
+    private final boolean enabled;
+    private final int idleTimeoutSeconds;
+    private final Map<String, Session> sessions = new HashMap<>();
+    private final Map<String, Object> locks = new HashMap<>();
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private ScheduledExecutorService evictor;
+    private int newSessionsCount;
+    private long newSessionsSetupNanos;
+    private int reusedSessionsCount;
+    private long reusedSessionsSetupNanos;
+
+    SshSessionPool(boolean enabled, int idleTimeoutSeconds) {
+        this.enabled = enabled;
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+
+    static SshSessionPool getInstance() {
+        return instance;
+    }
+
+    static String keyOf(ConnectionParams connectionParams) {
+        return connectionParams.getSshUserName() + "@" +
+                connectionParams.getSshHostName() + ":" + connectionParams.getSshPortNumber();
+    }
+
+    /**
+     * Lock to hold while looking up and creating session for the key, so concurrent viewer connections
+     * to the same ssh server wait for one handshake instead of making their own
+     */
+    synchronized Object lockFor(String key) {
+        Object lock = locks.get(key);
+        if (null == lock) {
+            lock = new Object();
+            locks.put(key, lock);
+        }
+        return lock;
+    }
+
+    /**
+     * @return alive pooled session for the key with usage counted, or null when there is no one
+     */
+    synchronized Session acquire(String key) {
+        final Session session = sessions.get(key);
+        if (null == session) return null;
+        ++session.usages;
+        if (session.eviction != null) {
+            session.eviction.cancel(false);
+            session.eviction = null;
+        }
+        return session;
+    }
+
+    /**
+     * Put new authenticated connection into pool
+     * @return session with usage counted
+     */
+    synchronized Session add(String key, Connection connection) {
+        final Session session = new Session(key, connection);
+        session.usages = 1;
+        if (enabled) {
+            sessions.put(key, session);
+            connection.addConnectionMonitor(session);
+        }
+        return session;
+    }
+
+    /**
+     * Release session usage. When session is not used anymore it is closed after idle timeout
+     */
+    synchronized void release(final Session session) {
+        if (--session.usages > 0) return;
+        if ( ! enabled || idleTimeoutSeconds <= 0 || sessions.get(session.key) != session) {
+            close(session);
+            return;
+        }
+        session.eviction = getEvictor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SshSessionPool.this) {
+                    if (0 == session.usages) {
+                        logger.info("Close idle ssh connection: " + session.key);
+                        close(session);
+                    }
+                }
+            }
+        }, idleTimeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Remove broken session from pool, it will be closed when released by all the users
+     */
+    synchronized void discard(Session session) {
+        if (sessions.get(session.key) == session) {
+            sessions.remove(session.key);
+        }
+    }
+
+    synchronized void countSetupTime(boolean reused, long nanos) {
+        if (reused) {
+            ++reusedSessionsCount;
+            reusedSessionsSetupNanos += nanos;
+        } else {
+            ++newSessionsCount;
+            newSessionsSetupNanos += nanos;
+        }
+    }
+
+    private void close(Session session) {
+        discard(session);
+        session.connection.close();
+    }
+
+    private ScheduledExecutorService getEvictor() {
+        if (null == evictor) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    final Thread thread = new Thread(r, "SshSessionPoolEvictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return evictor;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SshSessionPool{" +
+                "enabled=" + enabled +
+                ", sessions=" + sessions.size() +
+                ", newSessions=" + newSessionsCount +
+                ", avgNewSetupMs=" + (newSessionsCount > 0 ? newSessionsSetupNanos / newSessionsCount / 1000000 : 0) +
+                ", reusedSessions=" + reusedSessionsCount +
+                ", avgReusedSetupMs=" + (reusedSessionsCount > 0 ? reusedSessionsSetupNanos / reusedSessionsCount / 1000000 : 0) +
+                '}';
+    }
+
+    class Session implements ConnectionMonitor {
+        final String key;
+        final Connection connection;
+        private int usages;
+        private ScheduledFuture<?> eviction;
+
+        Session(String key, Connection connection) {
+            this.key = key;
+            this.connection = connection;
+        }
+
+        @Override
+        public void connectionLost(Throwable reason) {
+            logger.info("Ssh connection lost: " + key + (reason != null ? ", " + reason.getMessage() : ""));
+            discard(this);
+        }
+    }
+}
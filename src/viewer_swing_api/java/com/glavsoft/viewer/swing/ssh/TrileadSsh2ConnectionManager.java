@@ -30,14 +30,13 @@ import com.glavsoft.viewer.swing.CancelConnectionQuietlyException;
 import com.glavsoft.viewer.swing.ConnectionErrorException;
 import com.glavsoft.viewer.swing.gui.RequestSomethingDialog;
 import com.trilead.ssh2.*;
-import com.trilead.ssh2.channel.LocalAcceptThread;
 import com.trilead.ssh2.crypto.Base64;
 
 import javax.swing.*;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -51,9 +50,11 @@ import java.util.prefs.Preferences;
 public class TrileadSsh2ConnectionManager extends SshConnectionManager {
 
     private Set<File> identityFiles = new HashSet<>();
-    private LocalPortForwarder portForwarder;
+    private LocalStreamForwarder streamForwarder;
     private boolean connected = false;
     private Connection connection;
+    private SshSessionPool.Session session;
+    private final SshSessionPool sessionPool = SshSessionPool.getInstance();
 
     public TrileadSsh2ConnectionManager(JFrame parentWindow) {
         super(parentWindow);
@@ -66,31 +67,45 @@ public class TrileadSsh2ConnectionManager extends SshConnectionManager {
     }
 
     @Override
-    protected int makeConnectionAndGetPort(ConnectionParams connectionParams) throws ConnectionErrorException {
+    protected Socket makeConnectionAndOpenChannel(ConnectionParams connectionParams) throws ConnectionErrorException {
         connected = false;
-        int port = 0;
-        connection = new Connection(connectionParams.getSshHostName(), connectionParams.getSshPortNumber());
+        Socket socket = null;
+        final long start = System.nanoTime();
+        final String key = SshSessionPool.keyOf(connectionParams);
+        boolean reused = false;
         try {
-            KnownHosts knownHosts = getKnownHosts();
-            final ConnectionInfo connectionInfo = connection.connect(new HostVerifier(knownHosts));
-            logger.info("SSH connection established:" +
-                    "\n  clientToServerCryptoAlgorithm: " + connectionInfo.clientToServerCryptoAlgorithm +
-                    "\n  clientToServerMACAlgorithm: " + connectionInfo.clientToServerMACAlgorithm +
-                    "\n  keyExchangeAlgorithm: " + connectionInfo.keyExchangeAlgorithm +
-                    "\n  serverHostKeyAlgorithm: " + connectionInfo.serverHostKeyAlgorithm +
-                    "\n  serverToClientCryptoAlgorithm: " + connectionInfo.serverToClientCryptoAlgorithm +
-                    "\n  serverToClientMACAlgorithm: " + connectionInfo.serverToClientMACAlgorithm);
-
-            if (!connection.isAuthenticationComplete()) {
-                tryAuthenticate(connectionParams, connection);
-            }
-            if (!connection.isAuthenticationComplete()) {
-                throw new ConnectionErrorException("No supported authentication methods available.");
+            synchronized (sessionPool.lockFor(key)) {
+                session = sessionPool.acquire(key);
+                if (session != null) {
+                    try {
+                        streamForwarder = openChannel(session.connection, connectionParams);
+                        reused = true;
+                    } catch (IOException e) {
+                        logger.info("Pooled ssh connection is broken, reconnecting: " + e.getMessage());
+                        sessionPool.discard(session);
+                        sessionPool.release(session);
+                        session = null;
+                    }
+                }
+                if (null == session) {
+                    session = sessionPool.add(key, makeConnection(connectionParams));
+                    streamForwarder = openChannel(session.connection, connectionParams);
+                }
             }
-            connection.setTCPNoDelay(true);
-            portForwarder = connection.createLocalPortForwarder(port, connectionParams.getHostName(), connectionParams.getPortNumber());
-            port = getPortNumber(portForwarder);
+            socket = new SshChannelSocket(streamForwarder.getInputStream(), streamForwarder.getOutputStream(),
+                    new Closeable() {
+                        @Override
+                        public void close() {
+                            closeConnection();
+                        }
+                    },
+                    connectionParams.getHostName() + ":" + connectionParams.getPortNumber() +
+                            " via " + key);
             connected = true;
+            final long setupNanos = System.nanoTime() - start;
+            sessionPool.countSetupTime(reused, setupNanos);
+            logger.info("SSH channel opened in " + setupNanos / 1000000 + " ms using " +
+                    (reused ? "pooled" : "new") + " ssh connection; " + sessionPool);
         } catch (CancelConnectionQuietlyException | AuthenticationFailedException e) {
             logger.info(e.getMessage());
             errorMessage = e.getMessage();
@@ -105,22 +120,61 @@ public class TrileadSsh2ConnectionManager extends SshConnectionManager {
         if ( ! connected ) {
             throw new ConnectionErrorException("Cannot establish SSH connection: " + errorMessage);
         }
-        return port;
+        return socket;
     }
 
-    public void closeConnection() {
-        if (portForwarder != null)
+    /**
+     * Connect and authenticate new ssh connection
+     */
+    private Connection makeConnection(ConnectionParams connectionParams) throws Throwable {
+        connection = new Connection(connectionParams.getSshHostName(), connectionParams.getSshPortNumber());
+        KnownHosts knownHosts = getKnownHosts();
+        final ConnectionInfo connectionInfo = connection.connect(new HostVerifier(knownHosts));
+        logger.info("SSH connection established:" +
+                "\n  clientToServerCryptoAlgorithm: " + connectionInfo.clientToServerCryptoAlgorithm +
+                "\n  clientToServerMACAlgorithm: " + connectionInfo.clientToServerMACAlgorithm +
+                "\n  keyExchangeAlgorithm: " + connectionInfo.keyExchangeAlgorithm +
+                "\n  serverHostKeyAlgorithm: " + connectionInfo.serverHostKeyAlgorithm +
+                "\n  serverToClientCryptoAlgorithm: " + connectionInfo.serverToClientCryptoAlgorithm +
+                "\n  serverToClientMACAlgorithm: " + connectionInfo.serverToClientMACAlgorithm);
+
+        if (!connection.isAuthenticationComplete()) {
+            tryAuthenticate(connectionParams, connection);
+        }
+        if (!connection.isAuthenticationComplete()) {
+            throw new ConnectionErrorException("No supported authentication methods available.");
+        }
+        connection.setTCPNoDelay(true);
+        final Connection authenticated = connection;
+        connection = null; // owned by session pool from now
+        return authenticated;
+    }
+
+    private LocalStreamForwarder openChannel(Connection connection, ConnectionParams connectionParams) throws IOException {
+        return connection.createLocalStreamForwarder(connectionParams.getHostName(), connectionParams.getPortNumber());
+    }
+
+    /**
+     * Close ssh channel and release ssh connection into session pool
+     */
+    public synchronized void closeConnection() {
+        if (streamForwarder != null)
             try {
-                portForwarder.close();
-                portForwarder = null;
+                streamForwarder.close();
+                streamForwarder = null;
             } catch (IOException e) {
-                logger.warning("There was a problem while closing ssh port forwarder: " + e.getMessage());
+                logger.warning("There was a problem while closing ssh channel: " + e.getMessage());
             }
+        if (session != null) {
+            sessionPool.release(session);
+            session = null;
+        }
         if (connection != null) {
             connection.close();
             connection = null;
         }
-        logger.info("Close ssh connection");
+        connected = false;
+        logger.info("Close ssh channel");
     }
 
     private void tryAuthenticate(ConnectionParams connectionParams, Connection connection) throws Throwable {
@@ -208,22 +262,6 @@ public class TrileadSsh2ConnectionManager extends SshConnectionManager {
         return dialog.askResult() ? dialog.getResult() : "";
     }
 
-    /** get local port by reflection because at this library fields we need have got package local visibility */
-    private int getPortNumber(LocalPortForwarder portForwarder) throws IOException {
-        final Field latField;
-        try {
-            latField = portForwarder.getClass().getDeclaredField("lat");
-        latField.setAccessible(true);
-        final LocalAcceptThread lat = (LocalAcceptThread) latField.get(portForwarder);
-        final Field ssField = lat.getClass().getDeclaredField("ss");
-        ssField.setAccessible(true);
-        return ((ServerSocket) ssField.get(lat)).getLocalPort();
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            logger.throwing(this.getClass().getName(), "getPortNumber(..)", e);
-            throw new IOException(e.getMessage());
-        }
-    }
-
     @Override
     protected void addIdentityFile(File keyFile) {
         identityFiles.add(keyFile);